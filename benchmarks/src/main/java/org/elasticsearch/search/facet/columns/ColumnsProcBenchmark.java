@@ -0,0 +1,96 @@
+package org.elasticsearch.search.facet.columns;
+
+import org.elasticsearch.index.field.data.FieldData;
+import org.elasticsearch.index.field.data.FieldDataType;
+import org.elasticsearch.index.mapper.FieldMapper;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Collects one segment of synthetic field data into a {@link ColumnsProc} and builds the shard entries,
+ * for key columns of varying cardinality, count and number of values per document. The parallel variant
+ * collects the segment in chunks on the columns facet pool and merges the tables of its workers. With
+ * <tt>valueFields</tt> above 1, every group aggregates that many value fields.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ColumnsProcBenchmark {
+
+    @Param({"1000000"})
+    int docs;
+
+    @Param({"10", "1000", "100000"})
+    int cardinality;
+
+    @Param({"1", "2", "3"})
+    int keyColumns;
+
+    @Param({"1", "2"})
+    int valuesPerDoc;
+
+    @Param({"1"})
+    int valueFields;
+
+    List<FieldMapper> mappers;
+
+    List<FieldData> keyFieldData;
+
+    List<FieldData> valueFieldsData;
+
+    List<FieldDataType> valueTypes;
+
+    @Setup
+    public void setUp() {
+        Random random = new Random(0);
+        mappers = SyntheticData.keyMappers(keyColumns);
+        keyFieldData = new ArrayList<FieldData>(keyColumns);
+        for (int i = 0; i < keyColumns; i++) {
+            keyFieldData.add(SyntheticData.keyFieldData(random, i, docs, cardinality, valuesPerDoc));
+        }
+        valueFieldsData = new ArrayList<FieldData>(valueFields);
+        valueTypes = new ArrayList<FieldDataType>(valueFields);
+        for (int i = 0; i < valueFields; i++) {
+            valueFieldsData.add(SyntheticData.valueFieldData(random, docs));
+            valueTypes.add(FieldDataType.DefaultTypes.DOUBLE);
+        }
+    }
+
+    @Benchmark
+    public Object collect() {
+        ColumnsProc proc = new ColumnsProc(mappers, null, valueTypes);
+        proc.setKeyFieldsData(keyFieldData);
+        proc.setValueFieldsData(valueFieldsData);
+        for (int doc = 0; doc < docs; doc++) {
+            proc.collect(doc);
+        }
+        return proc.buildEntries();
+    }
+
+    @Benchmark
+    public Object collectParallel() {
+        ParallelCollect parallel = new ParallelCollect() {
+            @Override
+            ColumnsProc newWorker() {
+                return new ColumnsProc(mappers, null, valueTypes);
+            }
+        };
+        parallel.setNextReader(valueFieldsData, keyFieldData);
+        for (int doc = 0; doc < docs; doc++) {
+            parallel.collect(doc);
+        }
+        List<ColumnsProc> workers = parallel.finish();
+        ColumnsProc proc = workers.get(0);
+        for (int i = 1; i < workers.size(); i++) {
+            proc.merge(workers.get(i));
+        }
+        return proc.buildEntries();
+    }
+}
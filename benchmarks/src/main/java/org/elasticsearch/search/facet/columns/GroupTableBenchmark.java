@@ -0,0 +1,86 @@
+package org.elasticsearch.search.facet.columns;
+
+import org.elasticsearch.common.trove.ExtTHashMap;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Insert rate of the {@link GroupTable} against the string keyed map it replaced.
+ * Every operation aggregates {@code docs} documents into {@code groups} distinct groups of two key columns.
+ * Run with {@code -prof gc} to compare the allocation per operation, and see {@link GroupTableFootprint}
+ * for the retained heap.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+public class GroupTableBenchmark {
+
+    @Param({"1000", "100000", "1000000"})
+    int groups;
+
+    @Param({"4"})
+    int docsPerGroup;
+
+    static final byte[] KEY_TYPES = new byte[]{KeyColumn.STRING, KeyColumn.STRING};
+
+    long[][] docKeys;
+
+    String[][] docStrings;
+
+    @Setup
+    public void setUp() {
+        int docs = groups * docsPerGroup;
+        Random random = new Random(0);
+        docKeys = new long[docs][];
+        docStrings = new String[docs][];
+        for (int i = 0; i < docs; i++) {
+            int group = random.nextInt(groups);
+            docKeys[i] = new long[]{group, group % 7};
+            docStrings[i] = new String[]{Long.toString(group), Long.toString(group % 7)};
+        }
+    }
+
+    @Benchmark
+    public GroupTable groupTable() {
+        GroupTable table = new GroupTable(2);
+        for (long[] key : docKeys) {
+            int group = table.add(key);
+            table.count[group]++;
+            table.totalCount[group]++;
+            table.total[group] += 1;
+        }
+        return table;
+    }
+
+    @Benchmark
+    public ExtTHashMap<String, InternalFullColumnsFacet.FullEntry> stringMap() {
+        ExtTHashMap<String, InternalFullColumnsFacet.FullEntry> map = new ExtTHashMap<String, InternalFullColumnsFacet.FullEntry>();
+        for (String[] docString : docStrings) {
+            // what the per document string concatenation path did
+            StringBuilder keyBuf = new StringBuilder();
+            String[] keys = new String[docString.length];
+            for (int i = 0; i < docString.length; i++) {
+                keys[i] = docString[i];
+                keyBuf.append(docString[i]);
+                keyBuf.append(',');
+            }
+            String key = keyBuf.toString();
+            InternalFullColumnsFacet.FullEntry entry = map.get(key);
+            if (entry == null) {
+                entry = new InternalFullColumnsFacet.FullEntry(keys, new long[keys.length], KEY_TYPES,
+                        0, Double.POSITIVE_INFINITY, Double.NEGATIVE_INFINITY, 0, 0);
+                entry.key = key;
+                map.put(key, entry);
+            }
+            entry.count++;
+            entry.totalCount++;
+            entry.total += 1;
+        }
+        return map;
+    }
+}
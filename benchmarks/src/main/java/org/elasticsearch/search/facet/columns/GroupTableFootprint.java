@@ -0,0 +1,52 @@
+package org.elasticsearch.search.facet.columns;
+
+import org.elasticsearch.common.trove.ExtTHashMap;
+
+/**
+ * Prints the retained heap per group of the {@link GroupTable} and of the string keyed map it replaced.
+ * <p/>
+ * Usage: java -cp target/benchmarks.jar org.elasticsearch.search.facet.columns.GroupTableFootprint [groups]
+ */
+public class GroupTableFootprint {
+
+    public static void main(String[] args) {
+        int groups = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+
+        long before = usedHeap();
+        GroupTable table = new GroupTable(2);
+        long[] key = new long[2];
+        for (int i = 0; i < groups; i++) {
+            key[0] = i;
+            key[1] = i % 7;
+            int group = table.add(key);
+            table.count[group]++;
+        }
+        long tableBytes = usedHeap() - before;
+        System.out.println("GroupTable:  " + tableBytes / groups + " bytes/group (estimated " + table.sizeInBytes() / groups + ")");
+        table = null;
+
+        before = usedHeap();
+        ExtTHashMap<String, InternalFullColumnsFacet.FullEntry> map = new ExtTHashMap<String, InternalFullColumnsFacet.FullEntry>();
+        byte[] keyTypes = new byte[]{KeyColumn.STRING, KeyColumn.STRING};
+        for (int i = 0; i < groups; i++) {
+            String[] keys = new String[]{Integer.toString(i), Integer.toString(i % 7)};
+            String k = keys[0] + ',' + keys[1] + ',';
+            InternalFullColumnsFacet.FullEntry entry = new InternalFullColumnsFacet.FullEntry(keys, new long[2], keyTypes, 1, 0, 0, 0, 0);
+            entry.key = k;
+            map.put(k, entry);
+        }
+        long mapBytes = usedHeap() - before;
+        System.out.println("ExtTHashMap: " + mapBytes / groups + " bytes/group");
+        if (map.size() != groups) {
+            throw new IllegalStateException();
+        }
+    }
+
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 5; i++) {
+            System.gc();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
@@ -0,0 +1,81 @@
+package org.elasticsearch.search.facet.columns;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Sorts entries by a long key, a double key and <tt>:count</tt>, comparing the typed key values
+ * against parsing the key strings on every comparison as the comparator used to.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+public class MultiFieldsComparatorBenchmark {
+
+    @Param({"1000000"})
+    int entries;
+
+    InternalFullColumnsFacet.FullEntry[] source;
+
+    InternalFullColumnsFacet.FullEntry[] work;
+
+    Comparator<ColumnsFacet.Entry> typed;
+
+    Comparator<ColumnsFacet.Entry> parsed;
+
+    @Setup
+    public void setUp() {
+        Random random = new Random(0);
+        source = new InternalFullColumnsFacet.FullEntry[entries];
+        for (int i = 0; i < entries; i++) {
+            long l = random.nextInt(1000);
+            double d = random.nextInt(100) / 4.0;
+            String[] keys = new String[]{Long.toString(l), Double.toString(d)};
+            long[] values = new long[]{l, Double.doubleToLongBits(d)};
+            source[i] = new InternalFullColumnsFacet.FullEntry(keys, values, new byte[]{KeyColumn.LONG, KeyColumn.DOUBLE},
+                    random.nextInt(10000), 0, 0, 0, 0);
+        }
+        work = new InternalFullColumnsFacet.FullEntry[entries];
+
+        typed = ColumnsFacet.MultiFieldsComparator.generateComparator(new String[]{"l", "d"}, new String[]{"v"},
+                new String[]{"l", "d desc", ":count"}, new byte[]{KeyColumn.LONG, KeyColumn.DOUBLE}).comparator();
+        parsed = new Comparator<ColumnsFacet.Entry>() {
+            @Override
+            public int compare(ColumnsFacet.Entry o1, ColumnsFacet.Entry o2) {
+                int c = Long.valueOf(o1.keys()[0]).compareTo(Long.valueOf(o2.keys()[0]));
+                if (c != 0) {
+                    return c;
+                }
+                c = Double.valueOf(o2.keys()[1]).compareTo(Double.valueOf(o1.keys()[1]));
+                if (c != 0) {
+                    return c;
+                }
+                return o1.count() < o2.count() ? -1 : (o1.count() == o2.count() ? 0 : 1);
+            }
+        };
+    }
+
+    @Setup(Level.Invocation)
+    public void copy() {
+        System.arraycopy(source, 0, work, 0, entries);
+    }
+
+    @Benchmark
+    public Object typedKeys() {
+        Arrays.sort(work, typed);
+        return work;
+    }
+
+    @Benchmark
+    public Object parsedKeys() {
+        Arrays.sort(work, parsed);
+        return work;
+    }
+}
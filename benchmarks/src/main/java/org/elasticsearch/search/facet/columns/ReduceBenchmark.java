@@ -0,0 +1,77 @@
+package org.elasticsearch.search.facet.columns;
+
+import org.elasticsearch.search.facet.Facet;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reduces the results of N shards of M groups each, ordered by count: hashed in memory, spilling the merged
+ * groups to sorted runs on disk, or merging shard results sorted by key. Reducing merges into the shard
+ * entries, so fresh shard results are read from their serialized form before every invocation.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ReduceBenchmark {
+
+    @Param({"5", "20"})
+    int shards;
+
+    @Param({"10000", "100000"})
+    int groupsPerShard;
+
+    // 0 sorts every group
+    @Param({"10", "0"})
+    long size;
+
+    // merged groups spilled to disk past that many, 0 never spills
+    @Param({"0", "50000"})
+    int spillThreshold;
+
+    // shard results sorted by key and merged with a heap
+    @Param({"false", "true"})
+    boolean sortedMerge;
+
+    byte[][] serialized;
+
+    List<Facet> facets;
+
+    @Setup
+    public void setUp() throws IOException {
+        ReduceSpill.SpillThreshold = spillThreshold;
+        Random random = new Random(0);
+        serialized = new byte[shards][];
+        for (int i = 0; i < shards; i++) {
+            InternalFullColumnsFacet facet = SyntheticData.shardFacet(random, groupsPerShard, groupsPerShard * 2,
+                    ColumnsFacet.ComparatorType.COUNT, size);
+            if (sortedMerge) {
+                Collections.sort(facet.entries(), EntryKeyOrder.INSTANCE);
+                facet.sortedByKey = true;
+            }
+            serialized[i] = SyntheticData.write(facet);
+        }
+        facets = new ArrayList<Facet>(shards);
+    }
+
+    @Setup(Level.Invocation)
+    public void read() throws IOException {
+        facets.clear();
+        for (byte[] bytes : serialized) {
+            facets.add(SyntheticData.read(bytes));
+        }
+    }
+
+    @Benchmark
+    public Object reduce() {
+        return ((InternalFullColumnsFacet) facets.get(0)).reduce("f", facets);
+    }
+}
@@ -0,0 +1,145 @@
+package org.elasticsearch.search.facet.columns;
+
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.search.Scorer;
+import org.elasticsearch.index.field.data.FieldData;
+import org.elasticsearch.index.field.data.FieldDataType;
+import org.elasticsearch.index.mapper.FieldMapper;
+import org.elasticsearch.script.SearchScript;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Collects one segment of synthetic field data grouped by a string key, either from the field data of
+ * the key field or from a <tt>key_script</tt> returning the same value per document, as a native script
+ * reading <tt>doc['k0'].value</tt> would. The difference is the cost of the script column itself: a
+ * script call and a per-segment lookup of the returned value per document, the cost of a script
+ * language coming on top of it.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ScriptKeyBenchmark {
+
+    @Param({"1000000"})
+    int docs;
+
+    @Param({"10", "1000", "100000"})
+    int cardinality;
+
+    List<FieldMapper> mappers;
+
+    List<FieldData> keyFieldData;
+
+    List<FieldData> valueFieldsData;
+
+    List<FieldDataType> valueTypes;
+
+    @Setup
+    public void setUp() {
+        Random random = new Random(0);
+        mappers = SyntheticData.keyMappers(1);
+        keyFieldData = new ArrayList<FieldData>(1);
+        keyFieldData.add(SyntheticData.keyFieldData(random, 0, docs, cardinality, 1));
+        valueFieldsData = new ArrayList<FieldData>(1);
+        valueFieldsData.add(SyntheticData.valueFieldData(random, docs));
+        valueTypes = new ArrayList<FieldDataType>(1);
+        valueTypes.add(FieldDataType.DefaultTypes.DOUBLE);
+    }
+
+    @Benchmark
+    public Object fieldKey() {
+        ColumnsProc proc = new ColumnsProc(mappers, null, valueTypes);
+        proc.setKeyFieldsData(keyFieldData);
+        proc.setValueFieldsData(valueFieldsData);
+        for (int doc = 0; doc < docs; doc++) {
+            proc.collect(doc);
+        }
+        return proc.buildEntries();
+    }
+
+    @Benchmark
+    public Object scriptKey() {
+        ColumnsProc proc = new ColumnsProc(new KeyColumn[]{new KeyColumn.ScriptKeyColumn(new FieldValueScript(keyFieldData.get(0)))},
+                new ValueColumn[]{ValueColumn.forType(valueTypes.get(0))});
+        proc.setKeyFieldsData(Arrays.<FieldData>asList(new FieldData[1]));
+        proc.setValueFieldsData(valueFieldsData);
+        for (int doc = 0; doc < docs; doc++) {
+            proc.collect(doc);
+        }
+        return proc.buildEntries();
+    }
+
+    /**
+     * Returns the string value of a field for the current document.
+     */
+    static final class FieldValueScript implements SearchScript {
+
+        private final FieldData fieldData;
+
+        private int docId;
+
+        FieldValueScript(FieldData fieldData) {
+            this.fieldData = fieldData;
+        }
+
+        @Override
+        public void setNextDocId(int doc) {
+            this.docId = doc;
+        }
+
+        @Override
+        public Object run() {
+            return fieldData.stringValue(docId);
+        }
+
+        @Override
+        public void setScorer(Scorer scorer) {
+        }
+
+        @Override
+        public void setNextReader(IndexReader reader) {
+        }
+
+        @Override
+        public void setNextSource(Map<String, Object> source) {
+        }
+
+        @Override
+        public void setNextScore(float score) {
+        }
+
+        @Override
+        public float runAsFloat() {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public long runAsLong() {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public double runAsDouble() {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void setNextVar(String name, Object value) {
+        }
+
+        @Override
+        public Object unwrap(Object value) {
+            return value;
+        }
+    }
+}
@@ -0,0 +1,58 @@
+package org.elasticsearch.search.facet.columns;
+
+import org.elasticsearch.common.io.stream.BytesStreamInput;
+import org.elasticsearch.common.io.stream.BytesStreamOutput;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Writes a shard result of (string, long) groups to the transport stream format and reads it back.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+public class SerializationBenchmark {
+
+    @Param({"10000", "100000"})
+    int groups;
+
+    InternalFullColumnsFacet facet;
+
+    BytesStreamOutput out;
+
+    byte[] serialized;
+
+    @Setup
+    public void setUp() throws IOException {
+        facet = SyntheticData.shardFacet(new Random(0), groups, groups * 2, ColumnsFacet.ComparatorType.COUNT, 10);
+        out = new BytesStreamOutput();
+        serialized = SyntheticData.write(facet);
+        System.out.println("\n" + groups + " groups: " + serialized.length + " bytes, "
+                + (serialized.length / groups) + " bytes per group");
+    }
+
+    @Benchmark
+    public Object writeTo() throws IOException {
+        out.reset();
+        facet.writeTo(out);
+        return out;
+    }
+
+    @Benchmark
+    public Object readFrom() throws IOException {
+        return InternalFullColumnsFacet.readColumnsFacet(new BytesStreamInput(serialized, false));
+    }
+
+    @Benchmark
+    public Object roundTrip() throws IOException {
+        out.reset();
+        facet.writeTo(out);
+        return InternalFullColumnsFacet.readColumnsFacet(new BytesStreamInput(out.bytes()));
+    }
+}
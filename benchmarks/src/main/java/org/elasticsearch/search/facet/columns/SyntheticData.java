@@ -0,0 +1,130 @@
+package org.elasticsearch.search.facet.columns;
+
+import org.elasticsearch.common.io.stream.BytesStreamInput;
+import org.elasticsearch.common.io.stream.BytesStreamOutput;
+import org.elasticsearch.common.settings.ImmutableSettings;
+import org.elasticsearch.index.field.data.FieldData;
+import org.elasticsearch.index.field.data.doubles.SingleValueDoubleFieldData;
+import org.elasticsearch.index.field.data.longs.MultiValueLongFieldData;
+import org.elasticsearch.index.field.data.longs.SingleValueLongFieldData;
+import org.elasticsearch.index.field.data.strings.MultiValueStringFieldData;
+import org.elasticsearch.index.field.data.strings.SingleValueStringFieldData;
+import org.elasticsearch.index.mapper.ContentPath;
+import org.elasticsearch.index.mapper.FieldMapper;
+import org.elasticsearch.index.mapper.Mapper;
+import org.elasticsearch.index.mapper.core.LongFieldMapper;
+import org.elasticsearch.index.mapper.core.StringFieldMapper;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Synthetic field data and shard facets for the benchmarks. Key columns alternate between string and
+ * long columns, every value is drawn uniformly from the column cardinality.
+ */
+final class SyntheticData {
+
+    static final byte[] KEY_TYPES = new byte[]{KeyColumn.STRING, KeyColumn.LONG};
+
+    private SyntheticData() {
+    }
+
+    private static boolean isString(int column) {
+        return column % 2 == 0;
+    }
+
+    static List<FieldMapper> keyMappers(int keyColumns) {
+        Mapper.BuilderContext context = new Mapper.BuilderContext(ImmutableSettings.Builder.EMPTY_SETTINGS, new ContentPath());
+        List<FieldMapper> mappers = new ArrayList<FieldMapper>(keyColumns);
+        for (int i = 0; i < keyColumns; i++) {
+            mappers.add(isString(i) ? new StringFieldMapper.Builder("k" + i).build(context)
+                    : new LongFieldMapper.Builder("k" + i).build(context));
+        }
+        return mappers;
+    }
+
+    /**
+     * Field data of one key column of a segment, ordinal 0 being the missing value.
+     */
+    static FieldData keyFieldData(Random random, int column, int docs, int cardinality, int valuesPerDoc) {
+        String name = "k" + column;
+        String[] strings = null;
+        long[] longs = null;
+        if (isString(column)) {
+            strings = new String[cardinality + 1];
+            for (int i = 1; i <= cardinality; i++) {
+                // zero padded so that the values are sorted as the ordinals
+                strings[i] = String.format("value-%09d", i);
+            }
+        } else {
+            longs = new long[cardinality + 1];
+            for (int i = 1; i <= cardinality; i++) {
+                longs[i] = i * 1000L;
+            }
+        }
+
+        if (valuesPerDoc == 1) {
+            int[] ordinals = new int[docs];
+            for (int doc = 0; doc < docs; doc++) {
+                ordinals[doc] = 1 + random.nextInt(cardinality);
+            }
+            return strings != null ? new SingleValueStringFieldData(name, ordinals, strings)
+                    : new SingleValueLongFieldData(name, ordinals, longs);
+        }
+        int[][] ordinals = new int[valuesPerDoc][docs];
+        for (int[] ordinal : ordinals) {
+            for (int doc = 0; doc < docs; doc++) {
+                ordinal[doc] = 1 + random.nextInt(cardinality);
+            }
+        }
+        return strings != null ? new MultiValueStringFieldData(name, ordinals, strings)
+                : new MultiValueLongFieldData(name, ordinals, longs);
+    }
+
+    static FieldData valueFieldData(Random random, int docs) {
+        double[] values = new double[1001];
+        for (int i = 1; i < values.length; i++) {
+            values[i] = i / 10.0;
+        }
+        int[] ordinals = new int[docs];
+        for (int doc = 0; doc < docs; doc++) {
+            ordinals[doc] = 1 + random.nextInt(values.length - 1);
+        }
+        return new SingleValueDoubleFieldData("v", ordinals, values);
+    }
+
+    /**
+     * A shard result of <tt>groups</tt> distinct (string, long) groups drawn from <tt>keySpace</tt> keys,
+     * so that shards overlap as much as <tt>groups / keySpace</tt>.
+     */
+    static InternalFullColumnsFacet shardFacet(Random random, int groups, int keySpace, ColumnsFacet.ComparatorType comparatorType,
+                                               long size) {
+        List<InternalFullColumnsFacet.FullEntry> entries = new ArrayList<InternalFullColumnsFacet.FullEntry>(groups);
+        boolean[] taken = new boolean[keySpace];
+        while (entries.size() < groups) {
+            int key = random.nextInt(keySpace);
+            if (taken[key]) {
+                continue;
+            }
+            taken[key] = true;
+            long count = 1 + random.nextInt(1000);
+            double min = random.nextInt(100);
+            double max = min + random.nextInt(100);
+            entries.add(new InternalFullColumnsFacet.FullEntry(new String[]{"value-" + (key % 1000), null},
+                    new long[]{0, key / 1000}, KEY_TYPES, count, min, max, count, count * (min + max) / 2));
+        }
+        return new InternalFullColumnsFacet("f", comparatorType, KEY_TYPES, entries, size, 0, -1L);
+    }
+
+    static byte[] write(InternalFullColumnsFacet facet) throws IOException {
+        BytesStreamOutput out = new BytesStreamOutput();
+        facet.writeTo(out);
+        return out.bytes().toBytes();
+    }
+
+    static InternalFullColumnsFacet read(byte[] bytes) throws IOException {
+        return InternalFullColumnsFacet.readColumnsFacet(new BytesStreamInput(bytes, false));
+    }
+}
@@ -1,8 +1,15 @@
 package org.elasticsearch.plugin.search.facet.columns;
 
+import org.elasticsearch.common.collect.ImmutableList;
+import org.elasticsearch.common.component.LifecycleComponent;
 import org.elasticsearch.plugins.AbstractPlugin;
+import org.elasticsearch.rest.RestModule;
 import org.elasticsearch.search.facet.FacetModule;
 import org.elasticsearch.search.facet.columns.ColumnsFacetProcessor;
+import org.elasticsearch.search.facet.columns.ColumnsFacetService;
+import org.elasticsearch.search.facet.columns.RestColumnsFacetStatsAction;
+
+import java.util.Collection;
 
 public class ColumnsFacetPlugin extends AbstractPlugin {
 
@@ -16,8 +23,17 @@ public class ColumnsFacetPlugin extends AbstractPlugin {
         return "Multiple columns facet support";
     }
 
+    @Override
+    public Collection<Class<? extends LifecycleComponent>> services() {
+        return ImmutableList.<Class<? extends LifecycleComponent>>of(ColumnsFacetService.class);
+    }
+
     public void onModule(FacetModule facetModule) {
         facetModule.addFacetProcessor(ColumnsFacetProcessor.class);
     }
 
+    public void onModule(RestModule restModule) {
+        restModule.addRestAction(RestColumnsFacetStatsAction.class);
+    }
+
 }
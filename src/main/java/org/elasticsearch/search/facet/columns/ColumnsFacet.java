@@ -39,7 +39,13 @@ public interface ColumnsFacet extends Facet, Iterable<ColumnsFacet.Entry> {
         final static int MinId = 13;
         final static int MaxId = 14;
         final static int MeanId = 15;
+        final static int VarianceId = 16;
+        final static int StdDeviationId = 17;
         final static int AggregatesId = CountId;
+        // the aggregates of the value field f > 0 are ordered by f * ValueFieldIdStride + the aggregate id
+        final static int ValueFieldIdStride = 32;
+        // a percentile of the first value field is ordered by PercentileIdBase + its percent in thousandths
+        final static int PercentileIdBase = 1 << 20;
 
         static Map<String, Integer> nameToId = new HashMap<String, Integer>() {{
             put(":count", CountId);
@@ -47,13 +53,18 @@ public interface ColumnsFacet extends Facet, Iterable<ColumnsFacet.Entry> {
             put(":min", MinId);
             put(":max", MaxId);
             put(":mean", MeanId);
+            put(":variance", VarianceId);
+            put(":std_dev", StdDeviationId);
         }};
 
         private Integer[] orders;
 
         private boolean[] des; // true if descending order
 
-        private ComparableConverter[] comparableConverters;
+        private byte[] keyTypes; // KeyColumn type of every key column
+
+        // unboxed orders, compare() runs O(n log n) times
+        private final int[] orderIds;
 
         public Integer[] getOrders() {
             return orders;
@@ -63,14 +74,18 @@ public interface ColumnsFacet extends Facet, Iterable<ColumnsFacet.Entry> {
             return des;
         }
 
-        public ComparableConverter[] getComparableConverter() {
-            return comparableConverters;
+        public byte[] getKeyTypes() {
+            return keyTypes;
         }
 
-        public MultiFieldsComparator(Integer[] orders, boolean[] des, ComparableConverter[] comparableConverters) {
+        public MultiFieldsComparator(Integer[] orders, boolean[] des, byte[] keyTypes) {
             this.orders = orders;
             this.des = des;
-            this.comparableConverters = comparableConverters;
+            this.keyTypes = keyTypes;
+            this.orderIds = new int[orders.length];
+            for (int i = 0; i < orders.length; i++) {
+                orderIds[i] = orders[i];
+            }
         }
 
         public int compare(Entry o1, Entry o2) {
@@ -85,41 +100,77 @@ public interface ColumnsFacet extends Facet, Iterable<ColumnsFacet.Entry> {
                 return -1;
             }
 
-            int idx = 0;
-            for (Integer i : orders)
+            for (int idx = 0; idx < orderIds.length; idx++)
             {
+                int i = orderIds[idx];
                 int c = 0;
-                if (i < AggregatesId) {
-                    ComparableConverter cc = comparableConverters[i];
-                    Comparable c1 = cc.toComparable(o1.keys()[i]);
-                    Comparable c2 = cc.toComparable(o2.keys()[i]);
-                    c = ColumnsProc.compare(c1, c2);
+                if (i >= PercentileIdBase) {
+                    double percent = (i - PercentileIdBase) / 1000.0;
+                    c = Double.compare(o1.percentile(percent), o2.percentile(percent));
+                } else if (i < AggregatesId) {
+                    InternalFullColumnsFacet.FullEntry e1 = (InternalFullColumnsFacet.FullEntry) o1;
+                    InternalFullColumnsFacet.FullEntry e2 = (InternalFullColumnsFacet.FullEntry) o2;
+                    byte keyType = keyTypes[i];
+                    if (KeyColumn.isLong(keyType)) {
+                        long v1 = e1.values[i];
+                        long v2 = e2.values[i];
+                        c = (v1 < v2 ? -1 : (v1 == v2 ? 0 : 1));
+                    } else if (KeyColumn.isDouble(keyType)) {
+                        // a total order, NaN and -0.0 included, as in EntryKeyOrder
+                        c = Double.compare(Double.longBitsToDouble(e1.values[i]), Double.longBitsToDouble(e2.values[i]));
+                    } else {
+                        // string keys are always materialized
+                        c = compareStrings(e1.keys[i], e2.keys[i]);
+                    }
                 } else {
-                    switch (i) {
+                    Aggregates a1 = i < ValueFieldIdStride ? o1 : o1.aggregates(i / ValueFieldIdStride);
+                    Aggregates a2 = i < ValueFieldIdStride ? o2 : o2.aggregates(i / ValueFieldIdStride);
+                    switch (i % ValueFieldIdStride) {
                         case CountId:
                             c = (o1.count() < o2.count() ? -1 : (o1.count() == o2.count() ? 0 : 1));
                             break;
                         case TotalId:
-                            c = (o1.total() < o2.total() ? -1 : (o1.total() == o2.total() ? 0 : 1));
+                            c = (a1.total() < a2.total() ? -1 : (a1.total() == a2.total() ? 0 : 1));
                             break;
                         case MinId:
-                            c = (o1.min() < o2.min() ? -1 : (o1.min() == o2.min() ? 0 : 1));
+                            c = (a1.min() < a2.min() ? -1 : (a1.min() == a2.min() ? 0 : 1));
                             break;
                         case MaxId:
-                            c = (o1.max() < o2.max() ? -1 : (o1.max() == o2.max() ? 0 : 1));
+                            c = (a1.max() < a2.max() ? -1 : (a1.max() == a2.max() ? 0 : 1));
                             break;
                         case MeanId:
-                            c = (o1.mean() < o2.mean() ? -1 : (o1.mean() == o2.mean() ? 0 : 1));
+                            c = (a1.mean() < a2.mean() ? -1 : (a1.mean() == a2.mean() ? 0 : 1));
+                            break;
+                        case VarianceId:
+                            c = Double.compare(a1.variance(), a2.variance());
+                            break;
+                        case StdDeviationId:
+                            c = Double.compare(a1.stdDeviation(), a2.stdDeviation());
                             break;
                     }
                 }
                 if (c != 0) return (des[idx] ? -c : c);
-                idx++;
             }
             return 0;
         }
 
-        static public ComparatorType generateComparator(String[] groups, String[] orders, ComparableConverter[] comparableConverters)
+        // missing values last
+        private static int compareStrings(String s1, String s2) {
+            if (s1 == null) {
+                return s2 == null ? 0 : 1;
+            }
+            if (s2 == null) {
+                return -1;
+            }
+            return s1.compareTo(s2);
+        }
+
+        /**
+         * @param orders key fields, aggregates of the first value field (<tt>:total</tt>), aggregates of
+         *               a value field (<tt>price:total</tt>) or percentiles of the first value field (<tt>:p99</tt>),
+         *               each optionally followed by <tt>asc</tt> or <tt>desc</tt>
+         */
+        static public ComparatorType generateComparator(String[] groups, String[] valueFields, String[] orders, byte[] keyTypes)
         {
             Integer[] indexOrders = new Integer[orders.length];
             boolean[] des = new boolean[orders.length];
@@ -129,7 +180,7 @@ public interface ColumnsFacet extends Facet, Iterable<ColumnsFacet.Entry> {
             for (String orderDes : orders)
             {
                 String[] order = orderDes.split(" ");
-                Integer orderByAggregate = nameToId.get(order[0].toLowerCase());
+                Integer orderByAggregate = aggregateId(valueFields, order[0]);
                 if (orderByAggregate != null) {
                     indexOrders[orderIdx] = orderByAggregate;
                 } else {
@@ -140,16 +191,78 @@ public interface ColumnsFacet extends Facet, Iterable<ColumnsFacet.Entry> {
                         }
                     }
                 }
+                if (indexOrders[orderIdx] == null) {
+                    throw new ElasticSearchIllegalArgumentException("Order [" + order[0] + "] is neither a key field nor an aggregate of a value field of the columns facet");
+                }
                 des[orderIdx] = order.length >= 2 && order[1].equalsIgnoreCase("desc");
                 orderIdx++;
             }
 
-            return generateComparator(indexOrders, des, comparableConverters);
+            return generateComparator(indexOrders, des, keyTypes);
         }
 
-        static public ComparatorType generateComparator(Integer[] orders, boolean[] des, ComparableConverter[] comparableConverters)
+        /**
+         * The order id of an aggregate, <tt>null</tt> if the order is not an aggregate of a value field.
+         */
+        private static Integer aggregateId(String[] valueFields, String order) {
+            int separator = order.lastIndexOf(':');
+            if (separator < 0) {
+                return null;
+            }
+            String valueField = order.substring(0, separator);
+            Integer percentile = percentileId(order.substring(separator + 1));
+            if (percentile != null) {
+                // digests only follow the first value field
+                return separator == 0 || valueField.equals(valueFields[0]) ? percentile : null;
+            }
+            Integer aggregate = nameToId.get(order.substring(separator).toLowerCase());
+            if (aggregate == null || separator == 0 || aggregate == CountId) {
+                return aggregate;
+            }
+            for (int field = 0; field < valueFields.length; field++) {
+                if (valueField.equals(valueFields[field])) {
+                    return field * ValueFieldIdStride + aggregate;
+                }
+            }
+            return null;
+        }
+
+        /**
+         * The order id of a percentile (<tt>p99</tt>, <tt>p99.9</tt>), <tt>null</tt> if it is not one.
+         */
+        private static Integer percentileId(String name) {
+            if (name.length() < 2 || Character.toLowerCase(name.charAt(0)) != 'p' || !Character.isDigit(name.charAt(1))) {
+                return null;
+            }
+            double percent;
+            try {
+                percent = Double.parseDouble(name.substring(1));
+            } catch (NumberFormatException e) {
+                return null;
+            }
+            if (percent > 100) {
+                throw new ElasticSearchIllegalArgumentException("Percentile order [" + name + "] is above 100");
+            }
+            return PercentileIdBase + (int) Math.round(percent * 1000);
+        }
+
+        /**
+         * Whether a comparator orders the entries by a percentile, which needs the percentiles digests.
+         */
+        static boolean ordersByPercentile(ComparatorType comparatorType) {
+            if (comparatorType.comparator() instanceof MultiFieldsComparator) {
+                for (int order : ((MultiFieldsComparator) comparatorType.comparator()).orderIds) {
+                    if (order >= PercentileIdBase) {
+                        return true;
+                    }
+                }
+            }
+            return false;
+        }
+
+        static public ComparatorType generateComparator(Integer[] orders, boolean[] des, byte[] keyTypes)
         {
-            Comparator comp = new MultiFieldsComparator(orders, des, comparableConverters);
+            Comparator comp = new MultiFieldsComparator(orders, des, keyTypes);
             return new ComparatorType((byte)-1, "keys", comp);
         }
     }
@@ -169,6 +282,17 @@ public interface ColumnsFacet extends Facet, Iterable<ColumnsFacet.Entry> {
                 if (o2 == null) {
                     return -1;
                 }
+                InternalFullColumnsFacet.FullEntry e1 = (InternalFullColumnsFacet.FullEntry) o1;
+                InternalFullColumnsFacet.FullEntry e2 = (InternalFullColumnsFacet.FullEntry) o2;
+                // numeric and date keys by value, without formatting them
+                byte keyType = e1.keyTypes[0];
+                if (KeyColumn.isLong(keyType)) {
+                    long v1 = e1.values[0];
+                    long v2 = e2.values[0];
+                    return v1 < v2 ? -1 : (v1 == v2 ? 0 : 1);
+                } else if (KeyColumn.isDouble(keyType)) {
+                    return Double.compare(Double.longBitsToDouble(e1.values[0]), Double.longBitsToDouble(e2.values[0]));
+                }
                 return o1.keys()[0].compareTo(o2.keys()[0]);
             }
         });
@@ -261,8 +385,41 @@ public interface ColumnsFacet extends Facet, Iterable<ColumnsFacet.Entry> {
                 }
                 return (o1.mean() < o2.mean() ? -1 : (o1.mean() == o2.mean() ? 0 : 1));
             }
-        })
-                ;
+        });
+
+        static final ComparatorType VARIANCE = new ComparatorType((byte) 16, "variance", new Comparator<Entry>() {
+            @Override
+            public int compare(Entry o1, Entry o2) {
+                // push nulls to the end
+                if (o1 == null) {
+                    if (o2 == null) {
+                        return 0;
+                    }
+                    return 1;
+                }
+                if (o2 == null) {
+                    return -1;
+                }
+                return Double.compare(o1.variance(), o2.variance());
+            }
+        });
+
+        static final ComparatorType STD_DEVIATION = new ComparatorType((byte) 17, "std_dev", new Comparator<Entry>() {
+            @Override
+            public int compare(Entry o1, Entry o2) {
+                // push nulls to the end
+                if (o1 == null) {
+                    if (o2 == null) {
+                        return 0;
+                    }
+                    return 1;
+                }
+                if (o2 == null) {
+                    return -1;
+                }
+                return Double.compare(o1.stdDeviation(), o2.stdDeviation());
+            }
+        });
 
 
         private final byte id;
@@ -303,6 +460,10 @@ public interface ColumnsFacet extends Facet, Iterable<ColumnsFacet.Entry> {
                     return MAX;
                 case 15:
                     return MEAN;
+                case 16:
+                    return VARIANCE;
+                case 17:
+                    return STD_DEVIATION;
                 default:
                     throw new ElasticSearchIllegalArgumentException("No type argument match for columns comparator [" + id + "]");
             }
@@ -321,6 +482,10 @@ public interface ColumnsFacet extends Facet, Iterable<ColumnsFacet.Entry> {
                 return MAX;
             } else if ("mean".equals(type)) {
                 return MEAN;
+            } else if ("variance".equals(type)) {
+                return VARIANCE;
+            } else if ("std_dev".equals(type)) {
+                return STD_DEVIATION;
             } else if ("keys".equals(type)) {
                 return null;
             }
@@ -328,7 +493,96 @@ public interface ColumnsFacet extends Facet, Iterable<ColumnsFacet.Entry> {
         }
     }
 
-    public interface Entry {
+    /**
+     * The aggregates of the values of one value field within a group.
+     */
+    public interface Aggregates {
+
+        /**
+         * The total count of values aggregated to compute the total.
+         */
+        long totalCount();
+
+        /**
+         * The total count of values aggregated to compute the total.
+         */
+        long getTotalCount();
+
+        /**
+         * The sum / total of the value field that fall within this key "interval".
+         */
+        double total();
+
+        /**
+         * The sum / total of the value field that fall within this key "interval".
+         */
+        double getTotal();
+
+        /**
+         * The mean of this facet interval.
+         */
+        double mean();
+
+        /**
+         * The mean of this facet interval.
+         */
+        double getMean();
+
+        /**
+         * The sum of the squares of the values aggregated to compute the total.
+         */
+        double sumOfSquares();
+
+        /**
+         * The sum of the squares of the values aggregated to compute the total.
+         */
+        double getSumOfSquares();
+
+        /**
+         * The (population) variance of the values aggregated to compute the total.
+         */
+        double variance();
+
+        /**
+         * The (population) variance of the values aggregated to compute the total.
+         */
+        double getVariance();
+
+        /**
+         * The standard deviation of the values aggregated to compute the total.
+         */
+        double stdDeviation();
+
+        /**
+         * The standard deviation of the values aggregated to compute the total.
+         */
+        double getStdDeviation();
+
+        /**
+         * The minimum value.
+         */
+        double min();
+
+        /**
+         * The minimum value.
+         */
+        double getMin();
+
+        /**
+         * The maximum value.
+         */
+        double max();
+
+        /**
+         * The maximum value.
+         */
+        double getMax();
+    }
+
+    /**
+     * A group of a columns facet, with the aggregates of its first value field.
+     */
+    public interface Entry extends Aggregates {
 
         /**
          * The key value of the columns.
@@ -341,6 +595,20 @@ public interface ColumnsFacet extends Facet, Iterable<ColumnsFacet.Entry> {
         String[] getKeys();
 
 
+        /**
+         * The key value of every column in its own type, without formatting: a String for string
+         * columns (null when missing), a Long for integral and date columns (epoch millis), a Double
+         * or a Float for floating point columns.
+         */
+        Object[] typedKeys();
+
+        /**
+         * The key value of every column in its own type, without formatting: a String for string
+         * columns (null when missing), a Long for integral and date columns (epoch millis), a Double
+         * or a Float for floating point columns.
+         */
+        Object[] getTypedKeys();
+
         /**
          * The key value of the columns.
          */
@@ -362,53 +630,63 @@ public interface ColumnsFacet extends Facet, Iterable<ColumnsFacet.Entry> {
         long getCount();
 
         /**
-         * The total count of values aggregated to compute the total.
+         * Upper bound of the hits missing from {@link #count()} because shards only shipped their
+         * top <tt>shard_size</tt> groups. 0 when the count is exact.
          */
-        long totalCount();
+        long countError();
 
         /**
-         * The total count of values aggregated to compute the total.
+         * Upper bound of the hits missing from {@link #count()} because shards only shipped their
+         * top <tt>shard_size</tt> groups. 0 when the count is exact.
          */
-        long getTotalCount();
+        long getCountError();
 
         /**
-         * The sum / total of the value field that fall within this key "interval".
+         * Variance of {@link #count()} when it is estimated from a sample of the hits (see <tt>sample_rate</tt>),
+         * 0 when every hit was collected.
          */
-        double total();
+        double countVariance();
 
         /**
-         * The sum / total of the value field that fall within this key "interval".
+         * Variance of {@link #count()} when it is estimated from a sample of the hits (see <tt>sample_rate</tt>),
+         * 0 when every hit was collected.
          */
-        double getTotal();
+        double getCountVariance();
 
         /**
-         * The mean of this facet interval.
+         * The approximate number of distinct values of the <tt>distinct_field</tt> within the group,
+         * 0 without a distinct field.
          */
-        double mean();
+        long distinctCount();
 
         /**
-         * The mean of this facet interval.
+         * The approximate number of distinct values of the <tt>distinct_field</tt> within the group,
+         * 0 without a distinct field.
          */
-        double getMean();
+        long getDistinctCount();
 
         /**
-         * The minimum value.
+         * The approximate value of the first value field below which the given percent of its values
+         * within the group fall, NaN unless percentiles were requested.
          */
-        double min();
+        double percentile(double percent);
 
         /**
-         * The minimum value.
+         * The approximate value of the first value field below which the given percent of its values
+         * within the group fall, NaN unless percentiles were requested.
          */
-        double getMin();
+        double getPercentile(double percent);
 
         /**
-         * The maximum value.
+         * The aggregates of a value field, in the order of <tt>value_fields</tt>. The aggregates of the
+         * first value field are the ones of the entry itself.
          */
-        double max();
+        Aggregates aggregates(int valueField);
 
         /**
-         * The maximum value.
+         * The aggregates of a value field, in the order of <tt>value_fields</tt>. The aggregates of the
+         * first value field are the ones of the entry itself.
          */
-        double getMax();
+        Aggregates getAggregates(int valueField);
     }
 }
\ No newline at end of file
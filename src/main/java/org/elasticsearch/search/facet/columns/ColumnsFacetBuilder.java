@@ -1,11 +1,17 @@
 package org.elasticsearch.search.facet.columns;
 
+import org.elasticsearch.ElasticSearchIllegalArgumentException;
 import org.elasticsearch.common.xcontent.XContentBuilder;
 import org.elasticsearch.index.query.FilterBuilder;
 import org.elasticsearch.search.builder.SearchSourceBuilderException;
 import org.elasticsearch.search.facet.AbstractFacetBuilder;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.concurrent.TimeUnit;
 
 /**
@@ -14,12 +20,28 @@ import java.util.concurrent.TimeUnit;
  *
  */
 public class ColumnsFacetBuilder extends AbstractFacetBuilder {
-    private String keyFieldName;
-    private String valueFieldName;
+    private List<String> keyFieldNames = new ArrayList<String>();
+    private List<String> valueFieldNames = new ArrayList<String>();
+    private String distinctFieldName;
+    private String keyScript;
+    private String valueScript;
+    private String lang;
+    private Map<String, Object> scriptParams;
+    private int distinctPrecision = -1;
+    private double[] percentiles;
+    private int percentilesCompression = -1;
+    private Boolean typedKeys;
+    private String dateFormat;
+    private boolean cache;
+    private boolean segmentCache;
+    private int shardSize = -1;
+    private boolean approximate;
+    private int approximateGroups = -1;
+    private double sampleRate = -1;
+    private long maxDocsPerShard = -1;
     private long interval = -1;
+    private final Map<String, Object> intervals = new LinkedHashMap<String, Object>();
     private ColumnsFacet.ComparatorType comparatorType;
-    private Object from;
-    private Object to;
 
     /**
      * Constructs a new columns facet with the provided facet logical name.
@@ -35,8 +57,7 @@ public class ColumnsFacetBuilder extends AbstractFacetBuilder {
      * using the provided field as both the {@link #keyField(String)} and {@link #valueField(String)}.
      */
     public ColumnsFacetBuilder field(String field) {
-        this.keyFieldName = field;
-        return this;
+        return keyField(field);
     }
 
     /**
@@ -45,7 +66,14 @@ public class ColumnsFacetBuilder extends AbstractFacetBuilder {
      * bucket controlled by the interval.
      */
     public ColumnsFacetBuilder keyField(String keyField) {
-        this.keyFieldName = keyField;
+        return keyFields(keyField);
+    }
+
+    /**
+     * The fields whose values, combined, make the key of a group.
+     */
+    public ColumnsFacetBuilder keyFields(String... keyFields) {
+        this.keyFieldNames = new ArrayList<String>(Arrays.asList(keyFields));
         return this;
     }
 
@@ -54,12 +82,173 @@ public class ColumnsFacetBuilder extends AbstractFacetBuilder {
      * (for example, total).
      */
     public ColumnsFacetBuilder valueField(String valueField) {
-        this.valueFieldName = valueField;
+        return valueFields(valueField);
+    }
+
+    /**
+     * The fields aggregated in every group, each into aggregates of its own. Aggregates of a value field
+     * are ordered by <tt>field:aggregate</tt>, the first one also by <tt>:aggregate</tt>.
+     */
+    public ColumnsFacetBuilder valueFields(String... valueFields) {
+        this.valueFieldNames = new ArrayList<String>(Arrays.asList(valueFields));
+        return this;
+    }
+
+    /**
+     * A script computing a key column, named <tt>_script</tt>, from the fields of a document: a value, a
+     * collection of values or null. It follows the key fields unless <tt>_script</tt> is one of them.
+     */
+    public ColumnsFacetBuilder keyScript(String keyScript) {
+        this.keyScript = keyScript;
+        return this;
+    }
+
+    /**
+     * A script computing a value column, named <tt>_script</tt>, from the fields of a document: a number,
+     * a collection of numbers or null. It follows the value fields unless <tt>_script</tt> is one of them.
+     */
+    public ColumnsFacetBuilder valueScript(String valueScript) {
+        this.valueScript = valueScript;
+        return this;
+    }
+
+    /**
+     * The language of the key and value scripts.
+     */
+    public ColumnsFacetBuilder lang(String lang) {
+        this.lang = lang;
+        return this;
+    }
+
+    /**
+     * A parameter of the key and value scripts.
+     */
+    public ColumnsFacetBuilder param(String name, Object value) {
+        if (scriptParams == null) {
+            scriptParams = new LinkedHashMap<String, Object>();
+        }
+        scriptParams.put(name, value);
+        return this;
+    }
+
+    /**
+     * A field whose distinct values are counted per group, approximately (see {@link #distinctPrecision(int)}).
+     */
+    public ColumnsFacetBuilder distinctField(String distinctField) {
+        this.distinctFieldName = distinctField;
+        return this;
+    }
+
+    /**
+     * The precision of the distinct values count, from 4 to 18: its relative error is about
+     * 1.04 / sqrt(2^precision), at the cost of up to 2^precision bytes per group.
+     */
+    public ColumnsFacetBuilder distinctPrecision(int distinctPrecision) {
+        this.distinctPrecision = distinctPrecision;
+        return this;
+    }
+
+    /**
+     * Percentiles of the first value field returned per group, approximately (see
+     * {@link #percentilesCompression(int)}). The groups may also be ordered by <tt>:p99</tt>.
+     */
+    public ColumnsFacetBuilder percentiles(double... percentiles) {
+        this.percentiles = percentiles;
         return this;
     }
 
     /**
-     * The interval used to control the bucket "size" where each key value of a hit will fall into.
+     * The compression of the percentiles digests, from 10 to 1000: about that many centroids are kept per
+     * group, more being more accurate.
+     */
+    public ColumnsFacetBuilder percentilesCompression(int percentilesCompression) {
+        this.percentilesCompression = percentilesCompression;
+        return this;
+    }
+
+    /**
+     * Whether numeric and date keys are returned as JSON numbers rather than strings.
+     */
+    public ColumnsFacetBuilder typedKeys(boolean typedKeys) {
+        this.typedKeys = typedKeys;
+        return this;
+    }
+
+    /**
+     * How date keys are returned: <tt>iso</tt> for ISO 8601 dates, the default, or <tt>millis</tt> for
+     * epoch millis.
+     */
+    public ColumnsFacetBuilder dateFormat(String dateFormat) {
+        this.dateFormat = dateFormat;
+        return this;
+    }
+
+    /**
+     * Whether the shard results are cached until the shards are refreshed, for facets repeated with the
+     * same query. Not for <tt>global</tt> or <tt>nested</tt> facets.
+     */
+    public ColumnsFacetBuilder cache(boolean cache) {
+        this.cache = cache;
+        return this;
+    }
+
+    /**
+     * Whether the groups of every segment are cached, so that after a refresh only the new segments are
+     * collected. Applies to <tt>match_all</tt> queries and queries on cached filters.
+     */
+    public ColumnsFacetBuilder segmentCache(boolean segmentCache) {
+        this.segmentCache = segmentCache;
+        return this;
+    }
+
+    /**
+     * The number of groups every shard ships, its top groups in the requested order, at least the
+     * requested page. All the groups by default. The counts are then reported with their count error.
+     */
+    public ColumnsFacetBuilder shardSize(int shardSize) {
+        this.shardSize = shardSize;
+        return this;
+    }
+
+    /**
+     * Whether every shard keeps a fixed number of groups (see {@link #approximateGroups(int)}), evicting
+     * the groups with the lowest counts, for key combinations too many to be grouped exactly. The counts
+     * are then reported with their count error.
+     */
+    public ColumnsFacetBuilder approximate(boolean approximate) {
+        this.approximate = approximate;
+        return this;
+    }
+
+    /**
+     * The number of groups every shard keeps when approximating, at least twice the groups a shard ships.
+     */
+    public ColumnsFacetBuilder approximateGroups(int approximateGroups) {
+        this.approximateGroups = approximateGroups;
+        return this;
+    }
+
+    /**
+     * Collects a deterministic sample of the hits, each sampled with the given probability, the counts
+     * and totals being scaled to estimates over all the hits.
+     */
+    public ColumnsFacetBuilder sampleRate(double sampleRate) {
+        this.sampleRate = sampleRate;
+        return this;
+    }
+
+    /**
+     * Samples the hits of a shard at the rate that collects the given number of its documents on average,
+     * when lower than {@link #sampleRate(double)}. An expected sample size, not a cap.
+     */
+    public ColumnsFacetBuilder maxDocsPerShard(long maxDocsPerShard) {
+        this.maxDocsPerShard = maxDocsPerShard;
+        return this;
+    }
+
+    /**
+     * The interval used to control the bucket "size" where each value of the first key field of a hit
+     * will fall into.
      */
     public ColumnsFacetBuilder interval(long interval) {
         this.interval = interval;
@@ -67,22 +256,35 @@ public class ColumnsFacetBuilder extends AbstractFacetBuilder {
     }
 
     /**
-     * The interval used to control the bucket "size" where each key value of a hit will fall into.
+     * The interval used to control the bucket "size" where each value of the first key field of a hit
+     * will fall into.
      */
     public ColumnsFacetBuilder interval(long interval, TimeUnit unit) {
         return interval(unit.toMillis(interval));
     }
 
     /**
-     * Sets the bounds from and to for the facet. Both performs bounds check and includes only
-     * values within the bounds, and improves performance.
+     * The interval the values of a numeric or date key field are bucketed by: a number, or for dates a
+     * time value (e.g. <tt>6h</tt>) or a calendar unit (<tt>year</tt>, <tt>quarter</tt>, <tt>month</tt>,
+     * <tt>week</tt>, <tt>day</tt>, <tt>hour</tt>, <tt>minute</tt> or <tt>second</tt>).
      */
-    public ColumnsFacetBuilder bounds(Object from, Object to) {
-        this.from = from;
-        this.to = to;
+    public ColumnsFacetBuilder interval(String keyField, Object interval) {
+        intervals.put(keyField, interval);
         return this;
     }
 
+    /**
+     * Not supported by the columns facet: bucket the key values with {@link #interval(long)} or
+     * {@link #interval(String, Object)} and filter the hits with {@link #facetFilter} instead.
+     *
+     * @throws ElasticSearchIllegalArgumentException always
+     */
+    @Deprecated
+    public ColumnsFacetBuilder bounds(Object from, Object to) {
+        throw new ElasticSearchIllegalArgumentException("bounds are not supported by the columns facet [" + name
+                + "], use interval or intervals to bucket the key values");
+    }
+
     public ColumnsFacetBuilder comparator(ColumnsFacet.ComparatorType comparatorType) {
         this.comparatorType = comparatorType;
         return this;
@@ -125,26 +327,92 @@ public class ColumnsFacetBuilder extends AbstractFacetBuilder {
 
     @Override
     public XContentBuilder toXContent(XContentBuilder builder, Params params) throws IOException {
-        if (keyFieldName == null) {
-            throw new SearchSourceBuilderException("field must be set on columns facet for facet [" + name + "]");
-        }
-        if (interval < 0) {
-            throw new SearchSourceBuilderException("interval must be set on columns facet for facet [" + name + "]");
+        if (keyFieldNames.isEmpty() && keyScript == null) {
+            throw new SearchSourceBuilderException("field or key script must be set on columns facet for facet [" + name + "]");
         }
         builder.startObject(name);
 
         builder.startObject(ColumnsFacet.TYPE);
-        if (valueFieldName != null) {
-            builder.field("key_field", keyFieldName);
-            builder.field("value_field", valueFieldName);
-        } else {
-            builder.field("field", keyFieldName);
+        builder.startArray("key_fields");
+        for (String keyFieldName : keyFieldNames) {
+            builder.value(keyFieldName);
         }
-        builder.field("interval", interval);
-
-        if (from != null && to != null) {
-            builder.field("from", from);
-            builder.field("to", to);
+        builder.endArray();
+        if (valueFieldNames.size() > 1) {
+            builder.startArray("value_fields");
+            for (String valueFieldName : valueFieldNames) {
+                builder.value(valueFieldName);
+            }
+            builder.endArray();
+        } else if (!valueFieldNames.isEmpty()) {
+            builder.field("value_field", valueFieldNames.get(0));
+        } else if (valueScript == null && !keyFieldNames.isEmpty()) {
+            builder.field("value_field", keyFieldNames.get(0));
+        }
+        if (keyScript != null) {
+            builder.field("key_script", keyScript);
+        }
+        if (valueScript != null) {
+            builder.field("value_script", valueScript);
+        }
+        if (lang != null) {
+            builder.field("lang", lang);
+        }
+        if (scriptParams != null) {
+            builder.field("params", scriptParams);
+        }
+        if (distinctFieldName != null) {
+            builder.field("distinct_field", distinctFieldName);
+        }
+        if (distinctPrecision >= 0) {
+            builder.field("distinct_precision", distinctPrecision);
+        }
+        if (percentiles != null) {
+            builder.startArray("percentiles");
+            for (double percentile : percentiles) {
+                builder.value(percentile);
+            }
+            builder.endArray();
+        }
+        if (percentilesCompression >= 0) {
+            builder.field("percentiles_compression", percentilesCompression);
+        }
+        if (typedKeys != null) {
+            builder.field("typed_keys", typedKeys.booleanValue());
+        }
+        if (dateFormat != null) {
+            builder.field("date_format", dateFormat);
+        }
+        if (cache) {
+            builder.field("cache", true);
+        }
+        if (segmentCache) {
+            builder.field("segment_cache", true);
+        }
+        if (shardSize >= 0) {
+            builder.field("shard_size", shardSize);
+        }
+        if (approximate) {
+            builder.field("approximate", true);
+        }
+        if (approximateGroups >= 0) {
+            builder.field("approximate_groups", approximateGroups);
+        }
+        if (sampleRate >= 0) {
+            builder.field("sample_rate", sampleRate);
+        }
+        if (maxDocsPerShard >= 0) {
+            builder.field("max_docs_per_shard", maxDocsPerShard);
+        }
+        if (interval >= 0) {
+            builder.field("interval", interval);
+        }
+        if (!intervals.isEmpty()) {
+            builder.startObject("intervals");
+            for (Map.Entry<String, Object> entry : intervals.entrySet()) {
+                builder.field(entry.getKey(), entry.getValue());
+            }
+            builder.endObject();
         }
 
         if (comparatorType != null) {
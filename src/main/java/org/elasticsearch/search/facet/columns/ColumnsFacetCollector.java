@@ -1,11 +1,23 @@
 package org.elasticsearch.search.facet.columns;
 
 import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.SegmentReader;
+import org.apache.lucene.search.ConstantScoreQuery;
+import org.apache.lucene.search.Filter;
+import org.apache.lucene.search.FilteredQuery;
+import org.apache.lucene.search.MatchAllDocsQuery;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.Scorer;
+import org.elasticsearch.common.io.stream.BytesStreamInput;
+import org.elasticsearch.common.io.stream.BytesStreamOutput;
+import org.elasticsearch.common.lucene.search.MatchAllDocsFilter;
 import org.elasticsearch.index.cache.field.data.FieldDataCache;
 import org.elasticsearch.index.field.data.FieldData;
 import org.elasticsearch.index.field.data.FieldDataType;
+import org.elasticsearch.index.field.data.strings.StringFieldDataType;
 import org.elasticsearch.index.mapper.FieldMapper;
 import org.elasticsearch.index.mapper.MapperService;
+import org.elasticsearch.script.SearchScript;
 import org.elasticsearch.search.facet.AbstractFacetCollector;
 import org.elasticsearch.search.facet.Facet;
 import org.elasticsearch.search.facet.FacetPhaseExecutionException;
@@ -13,6 +25,7 @@ import org.elasticsearch.search.internal.SearchContext;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -22,15 +35,23 @@ import java.util.Map;
  */
 public class ColumnsFacetCollector extends AbstractFacetCollector {
 
+    /**
+     * The name of the key or value column computed by the <tt>key_script</tt> or <tt>value_script</tt>,
+     * in the key and value fields.
+     */
+    public static final String SCRIPT_FIELD = "_script";
 
-    private final String valueIndexFieldName;
+    private static final int SAMPLE_SEED = 0x9747b28c;
 
+    private final List<String> valueFieldNames;
+
+    private final List<String> valueIndexFieldNames;
 
     private final ColumnsFacet.ComparatorType comparatorType;
 
     private final FieldDataCache fieldDataCache;
 
-    private final FieldDataType valueFieldDataType;
+    private final List<FieldDataType> valueFieldDataTypes;
 
     private final List<String> keyFieldNames;
     private List<FieldData> keyFieldsData;
@@ -42,21 +63,127 @@ public class ColumnsFacetCollector extends AbstractFacetCollector {
 
     private final long from;
 
-    private final ColumnsProc columnsProc;
+    private final long shardSize;
+
+    private final List<FieldMapper> keyFieldsMapper;
+
+    // the processor collecting serially, or once merged, the processor of the parallel workers
+    private ColumnsProc columnsProc;
+
+    // null unless the segments are collected on the columns facet pool
+    private ParallelCollect parallel;
+
+    private int maxKeysPerDoc = ColumnsProc.MaxKeysPerDoc;
+
+    // null when every key column is grouped on exact values
+    private KeyInterval[] intervals;
+
+    // null unless a key column is computed by a script
+    private SearchScript keyScript;
+
+    // null unless a value column is computed by a script
+    private SearchScript valueScript;
+
+    // null unless the distinct values of a field are counted per group
+    private FieldMapper distinctMapper;
+
+    private int distinctPrecision;
+
+    // compression of the percentiles digests of the first value field, 0 without percentiles
+    private int percentilesCompression;
+
+    // the percentiles output per entry, null for none
+    private double[] percents;
+
+    private long memoryLimit;
+
+    private boolean approximate;
+
+    // the groups kept per shard when approximating with a fixed number of groups, 0 when not capped
+    private int approximateGroups;
+
+    private boolean profile;
+
+    private boolean sortedMerge;
+
+    private boolean typedKeys;
+
+    private boolean dateMillis;
+
+    // the normalized facet definition keying the shard result in the result cache, null when not cached
+    private String cacheDefinition;
+
+    private ResultCache.Key cacheKey;
+
+    // the serialized shard result when it was cached, the segments are then not collected
+    private byte[] cachedResult;
+
+    // the collection definition keying the groups of every segment in the segment cache, null when not cached
+    private String segmentCacheDefinition;
+
+    private FacetRequestKey segmentRequest;
+
+    // collects the current segment when its groups are to be cached, null otherwise
+    private ColumnsProc segmentProc;
+
+    private SegmentCache.Key segmentKey;
+
+    // whether the first segment checked the facet runs along with the query, see doSetNextReader()
+    private boolean scopeChecked;
+
+    // whether the groups of the current segment were cached, its documents are then not collected
+    private boolean segmentCached;
+
+    // whether the hits are sampled, see setSampleRate()
+    private boolean sampling;
+
+    private double sampleRate = 1;
+
+    // the hits whose mixed doc id is below the threshold are sampled, 0 when every hit is collected
+    private long sampleThreshold;
+
+    // mixed with the doc ids of the current segment, so that the segments and shards do not sample the
+    // same doc ids
+    private int sampleSeed;
+
+    // the hits of the shard and those sampled, including the hits of the cached segments
+    private long hits;
+
+    private long sampledHits;
+
+    // the hits and sampled hits when the current segment started, to cache its own along with its groups
+    private long segmentStartHits;
+
+    private long segmentStartSampled;
+
+    private final SearchContext context;
+
+    private long docsCollected;
+
+    private long collectStart;
+
+    private long fieldDataLoadTime;
 
-    public ColumnsFacetCollector(String facetName, List<String> keyFieldNames, String valueFieldName, long size, long from, ColumnsFacet.ComparatorType comparatorType, SearchContext context) {
+    public ColumnsFacetCollector(String facetName, List<String> keyFieldNames, List<String> valueFieldNames, long size, long from, long shardSize, ColumnsFacet.ComparatorType comparatorType, SearchContext context) {
         super(facetName);
+        this.context = context;
         this.comparatorType = comparatorType;
         this.fieldDataCache = context.fieldDataCache();
         this.keyFieldNames = keyFieldNames;
         this.keyFieldDataTypes = new HashMap<String, FieldDataType>();
         this.size = size;
         this.from = from;
-        List<FieldMapper> keyFieldsMapper = new ArrayList<FieldMapper>(keyFieldNames.size());
+        this.shardSize = shardSize;
+        keyFieldsMapper = new ArrayList<FieldMapper>(keyFieldNames.size());
 
         MapperService.SmartNameFieldMappers smartMappers = null;
         keySize = keyFieldNames.size();
         for (String keyField: keyFieldNames) {
+            if (SCRIPT_FIELD.equals(keyField)) {
+                // the key_script column
+                keyFieldsMapper.add(null);
+                continue;
+            }
             smartMappers = context.smartFieldMappers(keyField);
             if (smartMappers == null || !smartMappers.hasMapper()) {
                 throw new FacetPhaseExecutionException(facetName, "No mapping found for field [" + keyField + "]");
@@ -71,33 +198,532 @@ public class ColumnsFacetCollector extends AbstractFacetCollector {
         }
 
 
-        smartMappers = context.smartFieldMappers(valueFieldName);
+        this.valueFieldNames = valueFieldNames;
+        valueIndexFieldNames = new ArrayList<String>(valueFieldNames.size());
+        valueFieldDataTypes = new ArrayList<FieldDataType>(valueFieldNames.size());
+        for (String valueField : valueFieldNames) {
+            if (SCRIPT_FIELD.equals(valueField)) {
+                // the value_script column
+                valueIndexFieldNames.add(null);
+                valueFieldDataTypes.add(null);
+                continue;
+            }
+            smartMappers = context.smartFieldMappers(valueField);
+            if (smartMappers == null || !smartMappers.hasMapper()) {
+                throw new FacetPhaseExecutionException(facetName, "No mapping found for value_field [" + valueField + "]");
+            }
+            valueIndexFieldNames.add(smartMappers.mapper().names().indexName());
+            valueFieldDataTypes.add(smartMappers.mapper().fieldDataType());
+        }
+    }
+
+    /**
+     * Caps the key combinations a document with multi-valued key columns is grouped into, 0 for no limit.
+     */
+    public void setMaxKeysPerDoc(int maxKeysPerDoc) {
+        this.maxKeysPerDoc = maxKeysPerDoc;
+    }
+
+    /**
+     * Buckets the values of numeric and date key columns by an interval, per key column. A null interval
+     * groups the column on its exact values.
+     */
+    public void setIntervals(KeyInterval[] intervals) {
+        this.intervals = intervals;
+    }
+
+    /**
+     * Computes the {@link #SCRIPT_FIELD} key and value columns with scripts, compiled once through the
+     * script service and run against the field data of every segment, which only allows serial collection.
+     *
+     * @param keyScript   the script of the key column, null for none
+     * @param valueScript the script of the value column, null for none
+     */
+    public void setScripts(String lang, String keyScript, String valueScript, Map<String, Object> params) {
+        if (keyScript != null) {
+            this.keyScript = compile("key_script", lang, keyScript, params);
+        }
+        if (valueScript != null) {
+            this.valueScript = compile("value_script", lang, valueScript, params);
+        }
+    }
+
+    private SearchScript compile(String name, String lang, String script, Map<String, Object> params) {
+        try {
+            return context.scriptService().search(context.lookup(), lang, script, params);
+        } catch (RuntimeException e) {
+            throw new FacetPhaseExecutionException(facetName, "Failed to compile " + name + " [" + script + "]", e);
+        }
+    }
+
+    /**
+     * Counts the distinct values of a field per group, approximated by a HyperLogLog sketch of
+     * 2^precision registers.
+     */
+    public void setDistinct(String distinctField, int precision, SearchContext context) {
+        MapperService.SmartNameFieldMappers smartMappers = context.smartFieldMappers(distinctField);
         if (smartMappers == null || !smartMappers.hasMapper()) {
-            throw new FacetPhaseExecutionException(facetName, "No mapping found for value_field [" + valueFieldName + "]");
+            throw new FacetPhaseExecutionException(facetName, "No mapping found for distinct_field [" + distinctField + "]");
+        }
+        this.distinctMapper = smartMappers.mapper();
+        this.distinctPrecision = precision;
+    }
+
+    /**
+     * Estimates percentiles of the first value field per group, with a t-digest of the given compression.
+     * The digests are also needed when the entries are ordered by a percentile, without any output.
+     *
+     * @param percents the percentiles output per entry, null for none
+     */
+    public void setPercentiles(double[] percents, int compression) {
+        if (valueFieldDataTypes.get(0) instanceof StringFieldDataType) {
+            throw new FacetPhaseExecutionException(facetName, "Percentiles require a numeric value_field, ["
+                    + valueFieldNames.get(0) + "] is a string field");
+        }
+        this.percents = percents;
+        this.percentilesCompression = compression;
+    }
+
+    /**
+     * Limits the estimated memory of the groups, in addition to the node limit, 0 for no request limit.
+     * Past a limit the facet fails, or when approximating, evicts the groups with the lowest counts.
+     */
+    public void setMemoryLimit(long requestLimit, boolean approximate) {
+        this.memoryLimit = requestLimit;
+        this.approximate = approximate;
+    }
+
+    /**
+     * Keeps a fixed number of groups, evicting the groups with the lowest counts when a new one does not
+     * fit, whatever the number of key combinations. The counts of the groups created after an eviction
+     * may miss up to the counts evicted, reported as their count error.
+     */
+    public void setApproximateGroups(int approximateGroups) {
+        this.approximateGroups = approximateGroups;
+    }
+
+    /**
+     * Collects a sample of the hits, each hit being sampled with the given probability, and scales the
+     * counts and totals of the groups by its inverse. The entries report the variance of their count,
+     * the facet the hits sampled.
+     */
+    public void setSampleRate(double sampleRate) {
+        this.sampling = true;
+        this.sampleRate = sampleRate;
+        this.sampleThreshold = sampleRate < 1 ? Math.max(1, (long) (sampleRate * (1L << 32))) : 0;
+    }
+
+    /**
+     * Whether to collect the segments on the columns facet pool, each worker thread into its own
+     * group table, the tables being merged by {@link #facet()}. A request limit applies to every table.
+     */
+    public void setParallel(boolean parallel) {
+        if (parallel) {
+            this.parallel = new ParallelCollect() {
+                @Override
+                ColumnsProc newWorker() {
+                    return newProc();
+                }
+            };
+        } else {
+            this.parallel = null;
+        }
+    }
+
+    /**
+     * Whether to send the entries sorted by key, so that the shard results are merged without hashing.
+     */
+    public void setSortedMerge(boolean sortedMerge) {
+        this.sortedMerge = sortedMerge;
+    }
+
+    /**
+     * How the keys are output: numeric and date keys as JSON numbers rather than strings, date keys
+     * as epoch millis rather than ISO 8601 dates.
+     */
+    public void setKeyFormat(boolean typedKeys, boolean dateMillis) {
+        this.typedKeys = typedKeys;
+        this.dateMillis = dateMillis;
+    }
+
+    /**
+     * Caches the shard result in the {@link ResultCache}, or reuses the cached one, keyed by the given
+     * normalized facet definition along with the shard reader, the query and the filters.
+     */
+    public void setResultCache(String definition) {
+        this.cacheDefinition = definition;
+    }
+
+    /**
+     * Caches the groups of every segment in the {@link SegmentCache}, or reuses the cached ones, keyed by
+     * the given collection definition along with the segment, the query and the filters. Only applies
+     * when the documents a segment matches do not depend on the other segments, see {@link #segmentLocal(Query)}.
+     * The segments are then collected serially.
+     */
+    public void setSegmentCache(String definition) {
+        this.segmentCacheDefinition = definition;
+    }
+
+    /**
+     * Whether to return the execution metrics of this facet with its result.
+     */
+    public void setProfile(boolean profile) {
+        this.profile = profile;
+    }
+
+    private ColumnsProc newProc() {
+        KeyColumn[] keyColumns = new KeyColumn[keySize];
+        for (int i = 0; i < keySize; i++) {
+            FieldMapper mapper = keyFieldsMapper.get(i);
+            keyColumns[i] = mapper == null ? new KeyColumn.ScriptKeyColumn(keyScript)
+                    : KeyColumn.forMapper(mapper, intervals == null ? null : intervals[i]);
+        }
+        ValueColumn[] valueColumns = new ValueColumn[valueFieldDataTypes.size()];
+        for (int i = 0; i < valueColumns.length; i++) {
+            FieldDataType type = valueFieldDataTypes.get(i);
+            valueColumns[i] = type == null ? new ValueColumn.ScriptValueColumn(valueScript) : ValueColumn.forType(type);
+        }
+        ColumnsProc proc = new ColumnsProc(keyColumns, valueColumns);
+        proc.maxKeysPerDoc = maxKeysPerDoc;
+        if (distinctMapper != null) {
+            proc.setDistinctColumn(new DistinctColumn(distinctMapper, distinctPrecision));
+        }
+        if (percentilesCompression != 0) {
+            proc.setPercentiles(percentilesCompression);
+        }
+        proc.budget = newBudget();
+        proc.minGroups = (int) (shardSize > 0 ? shardSize : from + size);
+        if (approximateGroups > 0) {
+            proc.setMaxGroups(approximateGroups);
+        }
+        return proc;
+    }
+
+    private GroupMemoryBudget newBudget() {
+        if (memoryLimit > 0 || GroupMemoryBudget.NodeLimit > 0) {
+            return new GroupMemoryBudget(memoryLimit, GroupMemoryBudget.NodeLimit, approximate);
         }
-        valueIndexFieldName = smartMappers.mapper().names().indexName();
-        valueFieldDataType = smartMappers.mapper().fieldDataType();
+        return null;
+    }
 
-        columnsProc = ColumnsProc.getColumnProc(keyFieldsMapper, valueFieldDataType);
+    @Override
+    public void setScorer(Scorer scorer) throws IOException {
+        if (keyScript != null) {
+            keyScript.setScorer(scorer);
+        }
+        if (valueScript != null) {
+            valueScript.setScorer(scorer);
+        }
     }
 
     @Override
     protected void doCollect(int doc) throws IOException {
-        keyFieldsData.get(0).forEachValueInDoc(doc, columnsProc);
+        if (cachedResult != null || segmentCached) {
+            return;
+        }
+        hits++;
+        if (sampleThreshold != 0 && !inSample(doc)) {
+            return;
+        }
+        sampledHits++;
+        docsCollected++;
+        if (parallel != null) {
+            parallel.collect(doc);
+        } else if (segmentProc != null) {
+            segmentProc.collect(doc);
+        } else {
+            columnsProc.collect(doc);
+        }
     }
 
     @Override
     protected void doSetNextReader(IndexReader reader, int docBase) throws IOException {
-        columnsProc.setFieldData(fieldDataCache.cache(valueFieldDataType, reader, valueIndexFieldName));
+        if (!scopeChecked) {
+            scopeChecked = true;
+            // the query already ran: a global facet, collected on a query of its own the cache keys do not see
+            if (context.queryResult().topDocs() != null) {
+                cacheDefinition = null;
+                segmentCacheDefinition = null;
+            }
+        }
+        if (cacheDefinition != null && cacheKey == null) {
+            // the query is parsed by now, and the facet filter set
+            cacheKey = newCacheKey();
+            if (cacheKey != null) {
+                cachedResult = ResultCache.get(cacheKey);
+            }
+        }
+        if (cachedResult != null) {
+            return;
+        }
+        if (segmentCacheDefinition != null) {
+            if (segmentRequest == null) {
+                Query query = query();
+                if (!segmentLocal(query) || !segmentLocal(context.aliasFilter()) || !segmentLocal(filter)) {
+                    segmentCacheDefinition = null;
+                } else {
+                    segmentRequest = new FacetRequestKey(segmentCacheDefinition, query, context.types(), context.aliasFilter(), filter);
+                }
+            }
+            if (segmentRequest != null) {
+                cacheSegment();
+                if (columnsProc == null) {
+                    columnsProc = newProc();
+                }
+                segmentKey = new SegmentCache.Key(reader.getCoreCacheKey(), reader.numDocs(), segmentRequest);
+                SegmentCache.Partial partial = SegmentCache.get(segmentKey);
+                segmentCached = partial != null;
+                if (segmentCached) {
+                    columnsProc.merge(partial);
+                    hits += partial.hits;
+                    sampledHits += partial.sampled;
+                    return;
+                }
+            }
+        }
+        long start = System.nanoTime();
+        if (collectStart == 0) {
+            collectStart = start;
+        }
+        if (sampleThreshold != 0) {
+            // the segment name, unlike the doc base, does not change with the other segments
+            int segment = reader instanceof SegmentReader ? ((SegmentReader) reader).getSegmentName().hashCode() : 0;
+            sampleSeed = mix(SAMPLE_SEED ^ (31 * segment + context.indexShard().shardId().id()));
+        }
+        if (keyScript != null) {
+            keyScript.setNextReader(reader);
+        }
+        if (valueScript != null) {
+            valueScript.setNextReader(reader);
+        }
+        List<FieldData> valueFieldsData = new ArrayList<FieldData>(valueIndexFieldNames.size() + 1);
+        for (int i = 0; i < valueIndexFieldNames.size(); i++) {
+            // no field data for the value_script column
+            FieldDataType type = valueFieldDataTypes.get(i);
+            valueFieldsData.add(type == null ? null : fieldDataCache.cache(type, reader, valueIndexFieldNames.get(i)));
+        }
+        if (distinctMapper != null) {
+            valueFieldsData.add(fieldDataCache.cache(distinctMapper.fieldDataType(), reader, distinctMapper.names().indexName()));
+        }
         keyFieldsData = new ArrayList<FieldData>();
         for (String keyFieldName : keyFieldNames) {
-            keyFieldsData.add(fieldDataCache.cache(keyFieldDataTypes.get(keyFieldName), reader, keyFieldName));
+            // no field data for the key_script column
+            FieldDataType type = keyFieldDataTypes.get(keyFieldName);
+            keyFieldsData.add(type == null ? null : fieldDataCache.cache(type, reader, keyFieldName));
+        }
+        if (parallel != null) {
+            parallel.setNextReader(valueFieldsData, keyFieldsData);
+        } else {
+            if (columnsProc == null) {
+                columnsProc = newProc();
+            }
+            ColumnsProc proc = columnsProc;
+            if (segmentRequest != null) {
+                segmentProc = newProc();
+                proc = segmentProc;
+                segmentStartHits = hits;
+                segmentStartSampled = sampledHits;
+            }
+            proc.setValueFieldsData(valueFieldsData);
+            proc.setKeyFieldsData(keyFieldsData);
         }
-        columnsProc.keyFieldsData = keyFieldsData;
+        fieldDataLoadTime += System.nanoTime() - start;
+    }
+
+    /**
+     * Caches the groups of the segment just collected, and adds them to the groups of the shard. A segment
+     * whose collection was cut short by the search timeout is not cached.
+     */
+    private void cacheSegment() {
+        if (segmentProc == null) {
+            return;
+        }
+        SegmentCache.Partial partial = segmentProc.partial(hits - segmentStartHits, sampledHits - segmentStartSampled);
+        if (!timedOut()) {
+            SegmentCache.put(segmentKey, partial);
+        }
+        columnsProc.merge(partial);
+        segmentProc = null;
+    }
+
+    /**
+     * Whether a hit of the current segment is sampled: its segment doc id, seeded per segment, goes
+     * through the MurmurHash3 finalizer, so that every request samples the same documents of a segment,
+     * and the sample of a rate holds the samples of the lower rates.
+     */
+    private boolean inSample(int doc) {
+        return (mix(doc ^ sampleSeed) & 0xFFFFFFFFL) < sampleThreshold;
+    }
+
+    // the MurmurHash3 finalizer, a bijection spreading close ints over the whole hash
+    private static int mix(int h) {
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        h ^= h >>> 16;
+        return h;
+    }
+
+    /**
+     * Whether the search timed out, the groups then missing the hits left uncollected.
+     */
+    private boolean timedOut() {
+        return context.queryResult().searchTimedOut();
+    }
+
+    private Query query() {
+        return context.parsedQuery() != null ? context.parsedQuery().query() : context.query();
+    }
+
+    /**
+     * Whether the documents a segment matches only depend on that segment: all of them, or those of
+     * filters cached per segment by the filter cache.
+     */
+    private boolean segmentLocal(Query query) {
+        if (query instanceof MatchAllDocsQuery) {
+            return true;
+        }
+        if (query instanceof ConstantScoreQuery) {
+            ConstantScoreQuery constantScore = (ConstantScoreQuery) query;
+            return constantScore.getFilter() != null ? segmentLocal(constantScore.getFilter()) : segmentLocal(constantScore.getQuery());
+        }
+        if (query instanceof FilteredQuery) {
+            FilteredQuery filtered = (FilteredQuery) query;
+            return segmentLocal(filtered.getQuery()) && segmentLocal(filtered.getFilter());
+        }
+        return false;
+    }
+
+    private boolean segmentLocal(Filter filter) {
+        return filter == null || filter instanceof MatchAllDocsFilter || context.filterCache().isCached(filter);
+    }
+
+    private ResultCache.Key newCacheKey() {
+        long readerVersion;
+        try {
+            readerVersion = context.searcher().getIndexReader().getVersion();
+        } catch (UnsupportedOperationException e) {
+            // not a directory reader, which has no version
+            return null;
+        }
+        return new ResultCache.Key(context.indexShard().shardId(), readerVersion,
+                new FacetRequestKey(cacheDefinition, query(), context.types(), context.aliasFilter(), filter));
     }
 
     @Override
     public Facet facet() {
-        return new InternalFullColumnsFacet(facetName, comparatorType, columnsProc.entries, true, size, from, -1L);
+        if (cachedResult != null) {
+            try {
+                return InternalFullColumnsFacet.readColumnsFacet(new BytesStreamInput(cachedResult, false));
+            } catch (IOException e) {
+                throw new FacetPhaseExecutionException(facetName, "Failed to read the cached shard result", e);
+            }
+        }
+        cacheSegment();
+        long groupsCreated;
+        if (parallel != null) {
+            groupsCreated = mergeWorkers(parallel.finish());
+        } else {
+            if (columnsProc == null) {
+                columnsProc = newProc();
+            }
+            columnsProc.fold();
+            groupsCreated = columnsProc.groups.size();
+        }
+        List<InternalFullColumnsFacet.FullEntry> entries = columnsProc.buildEntries();
+        // groups evicted to fit the memory budget may have missed up to that count
+        long countErrorBound = columnsProc.groups.newGroupError;
+        if (sampleRate < 1) {
+            // estimates over all the hits, before the groups are ranked
+            for (InternalFullColumnsFacet.FullEntry entry : entries) {
+                entry.scaleSample(sampleRate);
+            }
+            countErrorBound = Math.round(countErrorBound / sampleRate);
+        }
+        if (shardSize > 0 && entries.size() > shardSize) {
+            // only ship the top shard_size groups, remembering the largest count left behind
+            EntryPriorityQueue queue = new EntryPriorityQueue((int) shardSize, comparatorType.comparator());
+            for (InternalFullColumnsFacet.FullEntry entry : entries) {
+                InternalFullColumnsFacet.FullEntry dropped = queue.insertWithOverflow(entry);
+                if (dropped != null) {
+                    countErrorBound = Math.max(countErrorBound, dropped.count() + dropped.countError());
+                }
+            }
+            entries = queue.drain();
+        }
+        if (sortedMerge) {
+            InternalFullColumnsFacet.FullEntry[] sorted = entries.toArray(new InternalFullColumnsFacet.FullEntry[entries.size()]);
+            Arrays.sort(sorted, EntryKeyOrder.INSTANCE);
+            entries = Arrays.asList(sorted);
+        }
+        InternalFullColumnsFacet facet = new InternalFullColumnsFacet(facetName, comparatorType, columnsProc.keyTypes, entries, size, from, -1L);
+        facet.valueFields = valueFieldNames.toArray(new String[valueFieldNames.size()]);
+        facet.distinct = distinctMapper != null;
+        facet.digests = percentilesCompression != 0;
+        facet.percents = percents;
+        facet.typedKeys = typedKeys;
+        facet.dateMillis = dateMillis;
+        facet.countErrorBound = countErrorBound;
+        facet.sortedByKey = sortedMerge;
+        if (sampling) {
+            facet.sampled = true;
+            facet.sampleHits = hits;
+            facet.sampleSize = sampledHits;
+        }
+
+        long collectTime = collectStart == 0 ? 0 : System.nanoTime() - collectStart;
+        ColumnsFacetStats.recordShard(docsCollected, groupsCreated, collectTime, fieldDataLoadTime);
+        if (profile) {
+            facet.profile = new ColumnsFacetStats();
+            facet.profile.shards = 1;
+            facet.profile.docsCollected = docsCollected;
+            facet.profile.groupsCreated = groupsCreated;
+            facet.profile.collectTime = collectTime;
+            facet.profile.fieldDataLoadTime = fieldDataLoadTime;
+        }
+        if (cacheKey != null && !timedOut()) {
+            BytesStreamOutput out = new BytesStreamOutput();
+            try {
+                facet.write(out);
+            } catch (IOException e) {
+                throw new FacetPhaseExecutionException(facetName, "Failed to cache the shard result", e);
+            }
+            ResultCache.put(cacheKey, out.bytes().toBytes());
+        }
+        return facet;
+    }
+
+    /**
+     * Merges the group tables of the workers into the largest one, which then reserves the merged
+     * groups from a budget of its own.
+     *
+     * @return the groups created by all the workers
+     */
+    private long mergeWorkers(List<ColumnsProc> workers) {
+        long groupsCreated = 0;
+        ColumnsProc target = null;
+        for (ColumnsProc worker : workers) {
+            worker.fold();
+            groupsCreated += worker.groups.size();
+            if (target == null || worker.groups.size() > target.groups.size()) {
+                target = worker;
+            }
+        }
+        if (target == null) {
+            columnsProc = newProc();
+            return 0;
+        }
+        if (target.budget != null) {
+            target.budget.release();
+            target.budget = newBudget();
+        }
+        for (ColumnsProc worker : workers) {
+            if (worker != target) {
+                target.merge(worker);
+            }
+        }
+        columnsProc = target;
+        return groupsCreated;
     }
-}
\ No newline at end of file
+}
@@ -1,11 +1,12 @@
 package org.elasticsearch.search.facet.columns;
 
-import com.google.common.collect.Lists;
+import org.elasticsearch.ElasticSearchIllegalArgumentException;
+import org.elasticsearch.common.collect.Lists;
 import org.elasticsearch.common.component.AbstractComponent;
 import org.elasticsearch.common.inject.Inject;
 import org.elasticsearch.common.settings.Settings;
 import org.elasticsearch.common.xcontent.XContentParser;
-import org.elasticsearch.index.mapper.FieldMapper;
+import org.elasticsearch.index.mapper.MapperService;
 import org.elasticsearch.search.facet.Facet;
 import org.elasticsearch.search.facet.FacetCollector;
 import org.elasticsearch.search.facet.FacetPhaseExecutionException;
@@ -13,11 +14,27 @@ import org.elasticsearch.search.facet.FacetProcessor;
 import org.elasticsearch.search.internal.SearchContext;
 
 import java.io.IOException;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.TreeMap;
 
 public class ColumnsFacetProcessor extends AbstractComponent implements FacetProcessor {
 
+    // Whether shards send their groups sorted by key, to be merged without hashing, unless the request
+    // says otherwise with sorted_merge.
+    // Usage:
+    // in config/elasticsearch.yml
+    // columns_facet.sorted_merge = true
+    static boolean SortedMerge = Boolean.parseBoolean(Config.get("columns_facet.sorted_merge", "false"));
+
+    // Whether numeric and date keys are output as JSON numbers rather than strings, unless the request
+    // says otherwise with typed_keys. Date keys stay ISO 8601 strings unless date_format is millis.
+    // Usage:
+    // in config/elasticsearch.yml
+    // columns_facet.typed_keys = true
+    static boolean TypedKeys = Boolean.parseBoolean(Config.get("columns_facet.typed_keys", "false"));
+
     @Inject
     public ColumnsFacetProcessor(Settings settings) {
         super(settings);
@@ -29,29 +46,44 @@ public class ColumnsFacetProcessor extends AbstractComponent implements FacetPro
         return new String[]{ColumnsFacet.TYPE};
     }
 
-    /**
-     * TODO: Support keyScript, valueScript, scriptLang, params
-     * @param facetName
-     * @param parser
-     * @param context
-     * @return
-     * @throws IOException
-     */
     @Override
     public FacetCollector parse(String facetName, XContentParser parser, SearchContext context) throws IOException {
         List<String> keyFields = Lists.newArrayListWithCapacity(ColumnsFacet.NUM_COLUMNS_INIT_SIZE);
         List<String> orders = Lists.newArrayListWithCapacity(ColumnsFacet.NUM_COLUMNS_INIT_SIZE);
-        List<ComparableConverter> keyComparableConverters = Lists.newArrayListWithCapacity(ColumnsFacet.NUM_COLUMNS_INIT_SIZE);
+        List<Byte> keyTypes = Lists.newArrayListWithCapacity(ColumnsFacet.NUM_COLUMNS_INIT_SIZE);
+        List<String> valueFields = Lists.newArrayListWithCapacity(ColumnsFacet.NUM_COLUMNS_INIT_SIZE);
         String valueField = null;
+        String distinctField = null;
+        int distinctPrecision = DistinctColumn.DefaultPrecision;
+        List<Double> percents = Lists.newArrayList();
+        int percentilesCompression = TDigest.DefaultCompression;
         String keyScript = null;
         String valueScript = null;
         String scriptLang = null;
         Map<String, Object> params = null;
+        Map<String, String> intervals = new HashMap<String, String>();
+        String interval = null;
         ColumnsFacet.ComparatorType comparatorType = ColumnsFacet.ComparatorType.KEY;
         XContentParser.Token token;
         String fieldName = null;
         long size = 10L; // following ES convention of limiting to 10 rows.
         long from = 0L;
+        long shardSize = 0L; // ship every group of a shard unless asked otherwise.
+        int maxKeysPerDoc = ColumnsProc.MaxKeysPerDoc;
+        boolean profile = false;
+        boolean sortedMerge = SortedMerge;
+        boolean typedKeys = TypedKeys;
+        boolean cache = false;
+        boolean segmentCache = false;
+        String dateFormat = "iso";
+        boolean parallel = ParallelCollect.Parallel;
+        long memoryLimit = GroupMemoryBudget.RequestLimit;
+        boolean approximate = GroupMemoryBudget.Approximate;
+        boolean approximateCounts = false;
+        int approximateGroups = ColumnsProc.ApproximateGroups;
+        double sampleRate = 1;
+        long maxDocsPerShard = 0;
+        boolean sampling = false;
 
         while ((token = parser.nextToken()) != XContentParser.Token.END_OBJECT) {
             if (token == XContentParser.Token.FIELD_NAME) {
@@ -59,15 +91,32 @@ public class ColumnsFacetProcessor extends AbstractComponent implements FacetPro
             } else if (token == XContentParser.Token.START_OBJECT) {
                 if ("params".equals(fieldName)) {
                     params = parser.map();
+                } else if ("intervals".equals(fieldName)) {
+                    String intervalField = null;
+                    while ((token = parser.nextToken()) != XContentParser.Token.END_OBJECT) {
+                        if (token == XContentParser.Token.FIELD_NAME) {
+                            intervalField = parser.currentName();
+                        } else if (token.isValue()) {
+                            intervals.put(intervalField, parser.text());
+                        }
+                    }
                 }
             } else if (token == XContentParser.Token.START_ARRAY) {
                 if ("key_fields".equalsIgnoreCase(fieldName)) {
                     while ((token = parser.nextToken()) != XContentParser.Token.END_ARRAY) {
                         String keyField = parser.text();
                         keyFields.add(keyField);
-                        FieldMapper mapper = context.smartFieldMappers(keyField).mapper();
-                        ComparableConverter comparableConverter = ComparableConverter.converters.get(mapper.getClass());
-                        keyComparableConverters.add(comparableConverter);
+                        // a missing mapping is reported by the collector
+                        MapperService.SmartNameFieldMappers smartMappers = context.smartFieldMappers(keyField);
+                        keyTypes.add(smartMappers == null || !smartMappers.hasMapper() ? KeyColumn.STRING : KeyColumn.typeOf(smartMappers.mapper()));
+                    }
+                } else if ("value_fields".equals(fieldName) || "valueFields".equals(fieldName)) {
+                    while ((token = parser.nextToken()) != XContentParser.Token.END_ARRAY) {
+                        valueFields.add(parser.text());
+                    }
+                } else if ("percentiles".equals(fieldName)) {
+                    while ((token = parser.nextToken()) != XContentParser.Token.END_ARRAY) {
+                        percents.add(parser.doubleValue());
                     }
                 } else if ("orders".equalsIgnoreCase(fieldName)) {
                     while ((token = parser.nextToken()) != XContentParser.Token.END_ARRAY) {
@@ -77,6 +126,12 @@ public class ColumnsFacetProcessor extends AbstractComponent implements FacetPro
             } else if (token.isValue()) {
                 if ("value_field".equals(fieldName) || "valueField".equals(fieldName)) {
                     valueField = parser.text();
+                } else if ("distinct_field".equals(fieldName) || "distinctField".equals(fieldName)) {
+                    distinctField = parser.text();
+                } else if ("distinct_precision".equals(fieldName) || "distinctPrecision".equals(fieldName)) {
+                    distinctPrecision = parser.intValue();
+                } else if ("percentiles_compression".equals(fieldName) || "percentilesCompression".equals(fieldName)) {
+                    percentilesCompression = parser.intValue();
                 } else if ("key_script".equals(fieldName) || "keyScript".equals(fieldName)) {
                     keyScript = parser.text();
                 } else if ("value_script".equals(fieldName) || "valueScript".equals(fieldName)) {
@@ -87,22 +142,219 @@ public class ColumnsFacetProcessor extends AbstractComponent implements FacetPro
                     size = parser.longValue();
                 } else if ("from".equals(fieldName)) {
                     from = parser.longValue();
+                } else if ("shard_size".equals(fieldName) || "shardSize".equals(fieldName)) {
+                    shardSize = parser.longValue();
+                } else if ("max_keys_per_doc".equals(fieldName) || "maxKeysPerDoc".equals(fieldName)) {
+                    maxKeysPerDoc = parser.intValue();
+                } else if ("memory_limit".equals(fieldName) || "memoryLimit".equals(fieldName)) {
+                    memoryLimit = GroupMemoryBudget.parseLimit(parser.text());
+                } else if ("memory_limit_mode".equals(fieldName) || "memoryLimitMode".equals(fieldName)) {
+                    approximate = GroupMemoryBudget.parseApproximate(parser.text());
+                } else if ("approximate".equals(fieldName)) {
+                    approximateCounts = parser.booleanValue();
+                } else if ("approximate_groups".equals(fieldName) || "approximateGroups".equals(fieldName)) {
+                    approximateGroups = parser.intValue();
+                } else if ("sample_rate".equals(fieldName) || "sampleRate".equals(fieldName)) {
+                    sampleRate = parser.doubleValue();
+                    sampling = true;
+                } else if ("max_docs_per_shard".equals(fieldName) || "maxDocsPerShard".equals(fieldName)) {
+                    maxDocsPerShard = parser.longValue();
+                    sampling = true;
+                } else if ("sorted_merge".equals(fieldName) || "sortedMerge".equals(fieldName)) {
+                    sortedMerge = parser.booleanValue();
+                } else if ("typed_keys".equals(fieldName) || "typedKeys".equals(fieldName)) {
+                    typedKeys = parser.booleanValue();
+                } else if ("date_format".equals(fieldName) || "dateFormat".equals(fieldName)) {
+                    dateFormat = parser.text();
+                } else if ("cache".equals(fieldName)) {
+                    cache = parser.booleanValue();
+                } else if ("segment_cache".equals(fieldName) || "segmentCache".equals(fieldName)) {
+                    segmentCache = parser.booleanValue();
+                } else if ("parallel".equals(fieldName)) {
+                    parallel = parser.booleanValue();
+                } else if ("interval".equals(fieldName)) {
+                    interval = parser.text();
+                } else if ("profile".equals(fieldName)) {
+                    profile = parser.booleanValue();
                 } else if ("lang".equals(fieldName)) {
                     scriptLang = parser.text();
                 }
             }
         }
 
+        String script = ColumnsFacetCollector.SCRIPT_FIELD;
+        if (keyScript != null && !keyFields.contains(script)) {
+            // the key_script column follows the key fields, unless placed among them as _script
+            keyFields.add(script);
+            keyTypes.add(KeyColumn.STRING);
+        } else if (keyScript == null && keyFields.contains(script)) {
+            throw new FacetPhaseExecutionException(facetName, "key field [" + script + "] requires a [key_script]");
+        }
         if (keyFields.isEmpty()) {
             throw new FacetPhaseExecutionException(facetName, "key fields is required to be set for columns facet, either using [field] or using [key_field]");
         }
 
+        if (valueField != null && !valueFields.contains(valueField)) {
+            // value_field is the first value field
+            valueFields.add(0, valueField);
+        }
+        if (valueScript != null && !valueFields.contains(script)) {
+            // the value_script column follows the value fields, unless placed among them as _script
+            valueFields.add(script);
+        } else if (valueScript == null && valueFields.contains(script)) {
+            throw new FacetPhaseExecutionException(facetName, "value field [" + script + "] requires a [value_script]");
+        }
+        if (valueFields.isEmpty()) {
+            throw new FacetPhaseExecutionException(facetName, "value field is required to be set for columns facet, either using [value_field] or using [value_fields]");
+        }
+
         if (!orders.isEmpty()) {
+            byte[] types = new byte[keyTypes.size()];
+            for (int i = 0; i < types.length; i++) {
+                types[i] = keyTypes.get(i);
+            }
             comparatorType = ColumnsFacet.MultiFieldsComparator.generateComparator(
-                    keyFields.toArray(new String[0]), orders.toArray(new String[0]), keyComparableConverters.toArray(new ComparableConverter[0]));
+                    keyFields.toArray(new String[0]), valueFields.toArray(new String[0]), orders.toArray(new String[0]), types);
+        }
+
+        KeyInterval[] keyIntervals = null;
+        if (interval != null) {
+            // the interval of the leading key field, as in the histogram facets
+            intervals.put(keyFields.get(0), interval);
+        }
+        if (!intervals.isEmpty()) {
+            keyIntervals = new KeyInterval[keyFields.size()];
+            for (Map.Entry<String, String> entry : intervals.entrySet()) {
+                int column = keyFields.indexOf(entry.getKey());
+                if (column < 0) {
+                    throw new FacetPhaseExecutionException(facetName, "interval set on [" + entry.getKey() + "], which is not a key field");
+                }
+                try {
+                    keyIntervals[column] = KeyInterval.parse(entry.getKey(), keyTypes.get(column), entry.getValue());
+                } catch (ElasticSearchIllegalArgumentException e) {
+                    throw new FacetPhaseExecutionException(facetName, e.getMessage(), e);
+                }
+            }
+        }
+
+        if (!"iso".equals(dateFormat) && !"millis".equals(dateFormat)) {
+            throw new FacetPhaseExecutionException(facetName, "Unknown date_format [" + dateFormat + "], expected [iso] or [millis]");
+        }
+
+        if (shardSize > 0 && size > 0 && shardSize < from + size) {
+            // a shard must at least ship the requested page
+            shardSize = from + size;
         }
 
-        return new ColumnsFacetCollector(facetName, keyFields, valueField, size, from, comparatorType, context);
+        if (approximateCounts) {
+            if (approximateGroups < 2) {
+                throw new FacetPhaseExecutionException(facetName, "approximate_groups must be at least 2, got [" + approximateGroups + "]");
+            }
+            // evicting the lower half must keep the groups a shard ships
+            long shardGroups = shardSize > 0 ? shardSize : from + size;
+            if (approximateGroups < 2 * shardGroups) {
+                approximateGroups = (int) Math.min(Integer.MAX_VALUE, 2 * shardGroups);
+            }
+        } else {
+            approximateGroups = 0;
+        }
+
+        if (sampling) {
+            if (!(sampleRate > 0 && sampleRate <= 1)) {
+                throw new FacetPhaseExecutionException(facetName, "sample_rate must be greater than 0 and at most 1, got [" + sampleRate + "]");
+            }
+            if (maxDocsPerShard < 0) {
+                throw new FacetPhaseExecutionException(facetName, "max_docs_per_shard must be positive, got [" + maxDocsPerShard + "]");
+            }
+            // the rate sampling max_docs_per_shard of the documents of the shard on average: the hits sampled are
+            // that many at most in expectation, not a hard cap, as the sample of a hash may come out larger
+            int numDocs = context.searcher().getIndexReader().numDocs();
+            if (maxDocsPerShard > 0 && numDocs > maxDocsPerShard) {
+                sampleRate = Math.min(sampleRate, (double) maxDocsPerShard / numDocs);
+            }
+        }
+
+        ColumnsFacetCollector collector = new ColumnsFacetCollector(facetName, keyFields, valueFields, size, from, shardSize, comparatorType, context);
+        collector.setMaxKeysPerDoc(maxKeysPerDoc);
+        boolean scripts = keyScript != null || valueScript != null;
+        if (scripts) {
+            collector.setScripts(scriptLang, keyScript, valueScript, params);
+        }
+        if (distinctField != null) {
+            try {
+                HyperLogLog.checkPrecision(distinctPrecision);
+            } catch (ElasticSearchIllegalArgumentException e) {
+                throw new FacetPhaseExecutionException(facetName, e.getMessage(), e);
+            }
+            collector.setDistinct(distinctField, distinctPrecision, context);
+        }
+        boolean percentiles = !percents.isEmpty() || ColumnsFacet.MultiFieldsComparator.ordersByPercentile(comparatorType);
+        if (percentiles) {
+            double[] outputPercents = null;
+            if (!percents.isEmpty()) {
+                outputPercents = new double[percents.size()];
+                for (int i = 0; i < outputPercents.length; i++) {
+                    outputPercents[i] = percents.get(i);
+                    if (outputPercents[i] < 0 || outputPercents[i] > 100) {
+                        throw new FacetPhaseExecutionException(facetName, "percentiles must be between 0 and 100, got [" + outputPercents[i] + "]");
+                    }
+                }
+            }
+            try {
+                TDigest.checkCompression(percentilesCompression);
+            } catch (ElasticSearchIllegalArgumentException e) {
+                throw new FacetPhaseExecutionException(facetName, e.getMessage(), e);
+            }
+            collector.setPercentiles(outputPercents, percentilesCompression);
+        }
+        collector.setIntervals(keyIntervals);
+        collector.setMemoryLimit(memoryLimit, approximate);
+        collector.setApproximateGroups(approximateGroups);
+        if (sampling) {
+            collector.setSampleRate(sampleRate);
+        }
+        collector.setSortedMerge(sortedMerge);
+        collector.setKeyFormat(typedKeys, "millis".equals(dateFormat));
+        segmentCache = segmentCache && SegmentCache.enabled();
+        // scripts and the segment cache collect the segments serially
+        parallel = parallel && !segmentCache && !scripts;
+        collector.setParallel(parallel);
+        collector.setProfile(profile);
+        cache = cache && !profile && ResultCache.enabled();
+        if (cache || segmentCache) {
+            // every parameter the groups collected depend on
+            StringBuilder collection = new StringBuilder();
+            collection.append("keys=").append(keyFields).append("|values=").append(valueFields)
+                    .append("|max_keys_per_doc=").append(maxKeysPerDoc)
+                    .append("|intervals=").append(new TreeMap<String, String>(intervals))
+                    .append("|distinct=").append(distinctField).append(':').append(distinctPrecision)
+                    .append("|digests=").append(percentiles ? percentilesCompression : 0)
+                    .append("|memory_limit=").append(memoryLimit).append(':').append(approximate)
+                    .append("|approximate_groups=").append(approximateGroups)
+                    .append("|sample_rate=").append(sampling ? sampleRate : 0)
+                    .append("|min_groups=").append(shardSize > 0 ? shardSize : from + size);
+            if (scripts) {
+                collection.append("|lang=").append(scriptLang).append("|key_script=").append(keyScript)
+                        .append("|value_script=").append(valueScript).append("|params=").append(params);
+            }
+            if (segmentCache) {
+                collector.setSegmentCache(collection.toString());
+            }
+            if (cache) {
+                // and every output parameter, and parallel: the tables of the threads evict on their own
+                // with approximate_groups or an approximate memory limit
+                StringBuilder definition = new StringBuilder(facetName);
+                definition.append('|').append(collection)
+                        .append("|orders=").append(orders).append("|order=").append(comparatorType.description())
+                        .append("|size=").append(size).append("|from=").append(from).append("|shard_size=").append(shardSize)
+                        .append("|percentiles=").append(percents)
+                        .append("|sorted_merge=").append(sortedMerge)
+                        .append("|typed_keys=").append(typedKeys).append("|date_format=").append(dateFormat)
+                        .append("|parallel=").append(parallel);
+                collector.setResultCache(definition.toString());
+            }
+        }
+        return collector;
     }
 
     @Override
@@ -0,0 +1,46 @@
+package org.elasticsearch.search.facet.columns;
+
+import org.elasticsearch.ElasticSearchException;
+import org.elasticsearch.common.component.AbstractLifecycleComponent;
+import org.elasticsearch.common.inject.Inject;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.index.shard.ShardId;
+import org.elasticsearch.indices.IndicesLifecycle;
+import org.elasticsearch.indices.IndicesService;
+
+/**
+ * Drops the cached results of the shards closed on the node, and shuts the pool collecting the parallel
+ * columns facets down when the node closes.
+ */
+public class ColumnsFacetService extends AbstractLifecycleComponent<ColumnsFacetService> {
+
+    private final IndicesService indicesService;
+
+    private final IndicesLifecycle.Listener shardListener = new IndicesLifecycle.Listener() {
+        @Override
+        public void afterIndexShardClosed(ShardId shardId, boolean delete) {
+            ResultCache.clear(shardId);
+        }
+    };
+
+    @Inject
+    public ColumnsFacetService(Settings settings, IndicesService indicesService) {
+        super(settings);
+        this.indicesService = indicesService;
+    }
+
+    @Override
+    protected void doStart() throws ElasticSearchException {
+        indicesService.indicesLifecycle().addListener(shardListener);
+    }
+
+    @Override
+    protected void doStop() throws ElasticSearchException {
+        indicesService.indicesLifecycle().removeListener(shardListener);
+    }
+
+    @Override
+    protected void doClose() throws ElasticSearchException {
+        ParallelCollect.shutdown();
+    }
+}
@@ -0,0 +1,170 @@
+package org.elasticsearch.search.facet.columns;
+
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
+import org.elasticsearch.common.metrics.CounterMetric;
+import org.elasticsearch.common.metrics.MeanMetric;
+import org.elasticsearch.common.xcontent.ToXContent;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.XContentBuilderString;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Execution metrics of the columns facet. The static metrics accumulate every facet executed or reduced on
+ * this node and are exposed by {@link RestColumnsFacetStatsAction}. An instance is the profile of a single
+ * facet, requested with <tt>profile</tt>: summed over the shards, then completed by the reduce phase.
+ * Times are in nanoseconds.
+ */
+final class ColumnsFacetStats implements ToXContent {
+
+    // Node level metrics, since the node started.
+    static final CounterMetric NodeDocsCollected = new CounterMetric();
+    static final CounterMetric NodeGroupsCreated = new CounterMetric();
+    static final CounterMetric NodeBytesSerialized = new CounterMetric();
+    static final MeanMetric NodeShardCollect = new MeanMetric();
+    static final MeanMetric NodeFieldDataLoad = new MeanMetric();
+    static final MeanMetric NodeSerialize = new MeanMetric();
+    static final MeanMetric NodeReduce = new MeanMetric();
+    static final MeanMetric NodeReduceSort = new MeanMetric();
+
+    static void recordShard(long docsCollected, long groupsCreated, long collectTime, long fieldDataLoadTime) {
+        NodeDocsCollected.inc(docsCollected);
+        NodeGroupsCreated.inc(groupsCreated);
+        NodeShardCollect.inc(collectTime);
+        NodeFieldDataLoad.inc(fieldDataLoadTime);
+    }
+
+    static void recordSerialize(long bytes, long time) {
+        NodeBytesSerialized.inc(bytes);
+        NodeSerialize.inc(time);
+    }
+
+    static void recordReduce(long reduceTime, long sortTime) {
+        NodeReduce.inc(reduceTime);
+        NodeReduceSort.inc(sortTime);
+    }
+
+    long shards;
+    long docsCollected;
+    long groupsCreated;
+    // from the first segment to the shard result, including the evaluation of the query
+    long collectTime;
+    long fieldDataLoadTime;
+    long bytesSerialized;
+    long reduceTime;
+    long reduceSortTime;
+
+    /**
+     * Adds the profile of another shard.
+     */
+    void add(ColumnsFacetStats other) {
+        shards += other.shards;
+        docsCollected += other.docsCollected;
+        groupsCreated += other.groupsCreated;
+        collectTime += other.collectTime;
+        fieldDataLoadTime += other.fieldDataLoadTime;
+        bytesSerialized += other.bytesSerialized;
+        reduceTime += other.reduceTime;
+        reduceSortTime += other.reduceSortTime;
+    }
+
+    static ColumnsFacetStats readStats(StreamInput in) throws IOException {
+        ColumnsFacetStats stats = new ColumnsFacetStats();
+        stats.shards = in.readVLong();
+        stats.docsCollected = in.readVLong();
+        stats.groupsCreated = in.readVLong();
+        stats.collectTime = in.readVLong();
+        stats.fieldDataLoadTime = in.readVLong();
+        stats.bytesSerialized = in.readVLong();
+        stats.reduceTime = in.readVLong();
+        stats.reduceSortTime = in.readVLong();
+        return stats;
+    }
+
+    /**
+     * Writes the profile, adding the bytes of the shard result it is sent with.
+     */
+    void writeTo(StreamOutput out, long resultBytes) throws IOException {
+        out.writeVLong(shards);
+        out.writeVLong(docsCollected);
+        out.writeVLong(groupsCreated);
+        out.writeVLong(collectTime);
+        out.writeVLong(fieldDataLoadTime);
+        out.writeVLong(bytesSerialized + resultBytes);
+        out.writeVLong(reduceTime);
+        out.writeVLong(reduceSortTime);
+    }
+
+    static final class Fields {
+        static final XContentBuilderString PROFILE = new XContentBuilderString("profile");
+        static final XContentBuilderString SHARDS = new XContentBuilderString("shards");
+        static final XContentBuilderString DOCS_COLLECTED = new XContentBuilderString("docs_collected");
+        static final XContentBuilderString GROUPS_CREATED = new XContentBuilderString("groups_created");
+        static final XContentBuilderString BYTES_SERIALIZED = new XContentBuilderString("bytes_serialized");
+        static final XContentBuilderString COLLECT = new XContentBuilderString("collect");
+        static final XContentBuilderString FIELD_DATA_LOAD = new XContentBuilderString("field_data_load");
+        static final XContentBuilderString SERIALIZE = new XContentBuilderString("serialize");
+        static final XContentBuilderString REDUCE = new XContentBuilderString("reduce");
+        static final XContentBuilderString REDUCE_SORT = new XContentBuilderString("reduce_sort");
+        static final XContentBuilderString COUNT = new XContentBuilderString("count");
+        static final XContentBuilderString TIME_IN_MILLIS = new XContentBuilderString("time_in_millis");
+        static final XContentBuilderString COLLECT_TIME_IN_MILLIS = new XContentBuilderString("collect_time_in_millis");
+        static final XContentBuilderString FIELD_DATA_LOAD_TIME_IN_MILLIS = new XContentBuilderString("field_data_load_time_in_millis");
+        static final XContentBuilderString REDUCE_TIME_IN_MILLIS = new XContentBuilderString("reduce_time_in_millis");
+        static final XContentBuilderString REDUCE_SORT_TIME_IN_MILLIS = new XContentBuilderString("reduce_sort_time_in_millis");
+        static final XContentBuilderString RESULT_CACHE = new XContentBuilderString("result_cache");
+        static final XContentBuilderString SEGMENT_CACHE = new XContentBuilderString("segment_cache");
+        static final XContentBuilderString HITS = new XContentBuilderString("hits");
+        static final XContentBuilderString MISSES = new XContentBuilderString("misses");
+        static final XContentBuilderString SIZE_IN_BYTES = new XContentBuilderString("size_in_bytes");
+    }
+
+    @Override
+    public XContentBuilder toXContent(XContentBuilder builder, Params params) throws IOException {
+        builder.startObject(Fields.PROFILE);
+        builder.field(Fields.SHARDS, shards);
+        builder.field(Fields.DOCS_COLLECTED, docsCollected);
+        builder.field(Fields.GROUPS_CREATED, groupsCreated);
+        builder.field(Fields.BYTES_SERIALIZED, bytesSerialized);
+        builder.field(Fields.COLLECT_TIME_IN_MILLIS, TimeUnit.NANOSECONDS.toMillis(collectTime));
+        builder.field(Fields.FIELD_DATA_LOAD_TIME_IN_MILLIS, TimeUnit.NANOSECONDS.toMillis(fieldDataLoadTime));
+        builder.field(Fields.REDUCE_TIME_IN_MILLIS, TimeUnit.NANOSECONDS.toMillis(reduceTime));
+        builder.field(Fields.REDUCE_SORT_TIME_IN_MILLIS, TimeUnit.NANOSECONDS.toMillis(reduceSortTime));
+        builder.endObject();
+        return builder;
+    }
+
+    private static void meanField(XContentBuilder builder, XContentBuilderString name, MeanMetric metric) throws IOException {
+        builder.startObject(name);
+        builder.field(Fields.COUNT, metric.count());
+        builder.field(Fields.TIME_IN_MILLIS, TimeUnit.NANOSECONDS.toMillis(metric.sum()));
+        builder.endObject();
+    }
+
+    /**
+     * Writes the node level metrics.
+     */
+    static XContentBuilder nodeStatsToXContent(XContentBuilder builder) throws IOException {
+        builder.field(Fields.DOCS_COLLECTED, NodeDocsCollected.count());
+        builder.field(Fields.GROUPS_CREATED, NodeGroupsCreated.count());
+        builder.field(Fields.BYTES_SERIALIZED, NodeBytesSerialized.count());
+        meanField(builder, Fields.COLLECT, NodeShardCollect);
+        meanField(builder, Fields.FIELD_DATA_LOAD, NodeFieldDataLoad);
+        meanField(builder, Fields.SERIALIZE, NodeSerialize);
+        meanField(builder, Fields.REDUCE, NodeReduce);
+        meanField(builder, Fields.REDUCE_SORT, NodeReduceSort);
+        builder.startObject(Fields.RESULT_CACHE);
+        builder.field(Fields.HITS, ResultCache.NodeHits.count());
+        builder.field(Fields.MISSES, ResultCache.NodeMisses.count());
+        builder.field(Fields.SIZE_IN_BYTES, ResultCache.sizeInBytes());
+        builder.endObject();
+        builder.startObject(Fields.SEGMENT_CACHE);
+        builder.field(Fields.HITS, SegmentCache.NodeHits.count());
+        builder.field(Fields.MISSES, SegmentCache.NodeMisses.count());
+        builder.field(Fields.SIZE_IN_BYTES, SegmentCache.sizeInBytes());
+        builder.endObject();
+        return builder;
+    }
+}
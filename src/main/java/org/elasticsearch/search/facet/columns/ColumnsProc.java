@@ -1,91 +1,611 @@
 package org.elasticsearch.search.facet.columns;
 
-import org.elasticsearch.common.CacheRecycler;
-import org.elasticsearch.common.trove.ExtTHashMap;
 import org.elasticsearch.index.field.data.FieldData;
 import org.elasticsearch.index.field.data.FieldDataType;
-import org.elasticsearch.index.field.data.strings.StringFieldDataType;
 import org.elasticsearch.index.mapper.FieldMapper;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
-abstract class ColumnsProc implements FieldData.StringValueInDocProc {
+/**
+ * Collects the groups of a columns facet from the per-segment field data ordinals of the key columns.
+ * Each group is identified by a composite key of one primitive long per key column (see {@link KeyColumn}),
+ * so no string is built per document, and aggregated into the primitive arrays of a {@link GroupTable}.
+ * Every value field (see {@link ValueColumn}) has its own aggregate slot in a group, the key of a document
+ * being computed once for all of them. Strings are only materialized once per distinct group by
+ * {@link #buildEntries()}.
+ */
+class ColumnsProc {
 
-    static ColumnsProc getColumnProc(List<FieldMapper> keyFieldsMapper, FieldDataType valueDataType) {
+    // Default maximum of key combinations a document with multi-valued key columns is grouped into,
+    // the cross product stops after that many combinations. 0 or clear means no limit.
+    // Can be overridden per request with max_keys_per_doc.
+    // Usage:
+    // in config/elasticsearch.yml
+    // columns_facet.max_keys_per_doc = 100
+    static int MaxKeysPerDoc = Integer.parseInt(Config.get("columns_facet.max_keys_per_doc", "0"));
+
+    // Largest product of the ordinal counts of the key columns of a segment for which the segment is
+    // aggregated into arrays indexed by the ordinals instead of the group hash table. 0 disables it.
+    // Usage:
+    // in config/elasticsearch.yml
+    // columns_facet.dense_max_slots = 65536
+    static int DenseMaxSlots = Integer.parseInt(Config.get("columns_facet.dense_max_slots", "65536"));
+
+    // Default number of groups an approximate facet keeps per shard, whatever the number of distinct key
+    // combinations: once that many, the lower half by count is evicted. Can be overridden per request with
+    // approximate_groups.
+    // Usage:
+    // in config/elasticsearch.yml
+    // columns_facet.approximate_groups = 10000
+    static int ApproximateGroups = Integer.parseInt(Config.get("columns_facet.approximate_groups", "10000"));
+
+    final GroupTable groups;
+
+    final KeyColumn[] keyColumns;
+
+    final byte[] keyTypes;
+
+    final ValueColumn[] valueColumns;
+
+    // null unless the distinct values of a field are counted per group
+    private DistinctColumn distinctColumn;
+
+    // compression of the percentiles digests of the first value field, 0 without digests
+    private int digestCompression;
+
+    int maxKeysPerDoc = MaxKeysPerDoc;
+
+    // null when the memory of the groups is not limited
+    GroupMemoryBudget budget;
+
+    // groups never evicted to approximate within the budget, i.e. the groups of the requested page
+    int minGroups;
+
+    // the groups kept when approximating with a fixed number of groups, 0 when the groups are not capped
+    private int maxGroups;
+
+    // the table aggregate() aggregates into: the groups, or the dense slots of the current segment
+    GroupTable aggregates;
+
+    // aggregates of the current segment by ordinal combination, reused by the next dense segments
+    private GroupTable dense;
+
+    // the dense slots of the current segment, 0 when its groups are hashed
+    private int denseSlots;
+
+    // dense slot distance between two consecutive ordinals, per key column
+    private final int[] strides;
+
+    private List<FieldData> keyFieldsData;
+
+    // reused for every lookup, only copied when a new group is created
+    private final long[] probe;
+
+    // the keys of the current document, per key column
+    private final ColumnValues[] columnValues;
+
+    // position of the current combination in every column's values
+    private final int[] position;
+
+    /**
+     * @param intervals the interval of every key column, null for a column, or all of them, grouped on exact values
+     * @param valueTypes the field data type of every value field
+     */
+    ColumnsProc(List<FieldMapper> keyFieldsMapper, KeyInterval[] intervals, List<FieldDataType> valueTypes) {
+        this(keyColumns(keyFieldsMapper, intervals), valueColumns(valueTypes));
+    }
+
+    ColumnsProc(KeyColumn[] keyColumns, ValueColumn[] valueColumns) {
+        this.keyColumns = keyColumns;
+        keyTypes = new byte[keyColumns.length];
+        for (int i = 0; i < keyColumns.length; i++) {
+            keyTypes[i] = keyColumns[i].type;
+        }
+        probe = new long[keyColumns.length];
+        position = new int[keyColumns.length];
+        strides = new int[keyColumns.length];
+        columnValues = new ColumnValues[keyColumns.length];
+        for (int i = 0; i < keyColumns.length; i++) {
+            // documents without a value for the leading key column are not grouped
+            columnValues[i] = new ColumnValues(keyColumns[i], i == 0);
+        }
+        this.valueColumns = valueColumns;
+        groups = new GroupTable(keyColumns.length, valueColumns.length, 0);
+        aggregates = groups;
+    }
+
+    private static KeyColumn[] keyColumns(List<FieldMapper> keyFieldsMapper, KeyInterval[] intervals) {
+        KeyColumn[] keyColumns = new KeyColumn[keyFieldsMapper.size()];
+        for (int i = 0; i < keyColumns.length; i++) {
+            keyColumns[i] = KeyColumn.forMapper(keyFieldsMapper.get(i), intervals == null ? null : intervals[i]);
+        }
+        return keyColumns;
+    }
 
-        if (valueDataType instanceof StringFieldDataType) {
-            return new NonNumericColumnsProc(keyFieldsMapper);
+    private static ValueColumn[] valueColumns(List<FieldDataType> valueTypes) {
+        ValueColumn[] valueColumns = new ValueColumn[valueTypes.size()];
+        for (int i = 0; i < valueColumns.length; i++) {
+            valueColumns[i] = ValueColumn.forType(valueTypes.get(i));
+        }
+        return valueColumns;
+    }
 
+    /**
+     * Counts the distinct values of a field per group, in a sketch of every group.
+     */
+    void setDistinctColumn(DistinctColumn distinctColumn) {
+        this.distinctColumn = distinctColumn;
+        groups.trackDistinct();
+    }
+
+    /**
+     * Estimates the percentiles of the first value field, which must be numeric, per group, in a digest
+     * of every group.
+     */
+    void setPercentiles(int compression) {
+        this.digestCompression = compression;
+        ((ValueColumn.NumericValueColumn) valueColumns[0]).trackDigests(compression);
+        groups.trackDigests();
+    }
+
+    /**
+     * Keeps at most the given number of groups, evicting the lower half by count whenever a new group
+     * does not fit, so that the memory of the groups does not depend on the number of key combinations.
+     * Must leave room for twice {@link #minGroups}.
+     */
+    void setMaxGroups(int maxGroups) {
+        this.maxGroups = maxGroups;
+        groups.limitCapacity(maxGroups);
+    }
+
+    /**
+     * Switches to the field data of the value fields of the next segment, followed by the field data
+     * of the distinct field if any.
+     */
+    void setValueFieldsData(List<FieldData> valueFieldsData) {
+        for (int i = 0; i < valueColumns.length; i++) {
+            valueColumns[i].setNextReader(valueFieldsData.get(i));
+        }
+        if (distinctColumn != null) {
+            distinctColumn.setNextReader(valueFieldsData.get(valueColumns.length));
+        }
+    }
+
+    /**
+     * Aggregates the values of a document into every value field slot of a group of {@link #aggregates}.
+     */
+    private void aggregate(int docId, int group) {
+        int valueWidth = valueColumns.length;
+        for (int i = 0; i < valueWidth; i++) {
+            valueColumns[i].aggregate(docId, aggregates, group * valueWidth + i);
+        }
+        if (distinctColumn != null) {
+            distinctColumn.aggregate(docId, aggregates, group);
+        }
+    }
+
+    /**
+     * Switches to the key field data of the next segment. When the ordinal combinations of the segment
+     * are few, its documents are aggregated by combination into dense arrays, folded into the groups
+     * once the segment is done.
+     */
+    void setKeyFieldsData(List<FieldData> keyFieldsData) {
+        if (keyFieldsData == this.keyFieldsData) {
+            // another chunk of the same segment
+            return;
+        }
+        fold();
+        this.keyFieldsData = keyFieldsData;
+        long slots = 1;
+        for (int i = keyColumns.length - 1; i >= 0; i--) {
+            keyColumns[i].setNextReader(keyFieldsData.get(i));
+            if (slots <= DenseMaxSlots) {
+                strides[i] = (int) slots;
+                slots *= keyColumns[i].ordinals();
+            }
+        }
+        if (slots <= DenseMaxSlots) {
+            denseSlots = (int) slots;
+            if (dense == null || dense.capacity() < denseSlots) {
+                dense = GroupTable.aggregatesOnly(valueColumns.length, denseSlots);
+                if (distinctColumn != null) {
+                    dense.trackDistinct();
+                }
+                if (digestCompression != 0) {
+                    dense.trackDigests();
+                }
+            }
+            aggregates = dense;
         } else {
-            return new NumericColumnsProc(keyFieldsMapper);
+            denseSlots = 0;
+            aggregates = groups;
+        }
+        for (ColumnValues values : columnValues) {
+            values.resolveKeys = denseSlots == 0;
         }
     }
 
-    // Maximum distinct group allowered per shard before a shard throw exception.
-    // 0 or clear means no limit.
-    // Usage:
-    // in config/elasticsearch.yml
-    // columns_facet.max_distinct_groups = 10000
-    static int MaxDistinctGroups = Integer.parseInt(Config.get("columns_facet.max_distinct_groups", "0"));
+    /**
+     * Groups a document into every combination of the values of its key columns,
+     * up to {@link #maxKeysPerDoc} combinations.
+     */
+    void collect(int docId) {
+        int keySize = keyColumns.length;
+        for (int i = 0; i < keySize; i++) {
+            ColumnValues values = columnValues[i];
+            values.count = 0;
+            keyColumns[i].forEachOrdinalInDoc(docId, values);
+            if (values.count == 0) {
+                return;
+            }
+            position[i] = 0;
+        }
+        if (denseSlots > 0) {
+            collectDense(docId);
+            return;
+        }
+        for (int i = 0; i < keySize; i++) {
+            probe[i] = columnValues[i].keys[0];
+        }
+
+        int combinations = 0;
+        while (true) {
+            int group = groups.find(probe);
+            if (group < 0) {
+                if (groups.isFull() && makeRoom()) {
+                    // the evicted string keys were dropped from the dictionaries, the document's keys changed
+                    for (int i = 0; i < keySize; i++) {
+                        columnValues[i].resolve();
+                        probe[i] = columnValues[i].keys[position[i]];
+                    }
+                }
+                group = groups.add(probe);
+            }
+            groups.count[group]++;
+            aggregate(docId, group);
+
+            if (++combinations == maxKeysPerDoc) {
+                return;
+            }
+            // next combination, the last key column varying fastest
+            int i = keySize - 1;
+            for (; i >= 0; i--) {
+                ColumnValues values = columnValues[i];
+                if (++position[i] < values.count) {
+                    probe[i] = values.keys[position[i]];
+                    break;
+                }
+                position[i] = 0;
+                probe[i] = values.keys[0];
+            }
+            if (i < 0) {
+                return;
+            }
+        }
+    }
 
-    final ExtTHashMap<String, InternalFullColumnsFacet.FullEntry> entries = CacheRecycler.popHashMap();
+    private void collectDense(int docId) {
+        int keySize = keyColumns.length;
+        int combinations = 0;
+        while (true) {
+            int slot = 0;
+            for (int i = 0; i < keySize; i++) {
+                slot += columnValues[i].ordinals[position[i]] * strides[i];
+            }
+            dense.count[slot]++;
+            aggregate(docId, slot);
 
+            if (++combinations == maxKeysPerDoc) {
+                return;
+            }
+            int i = keySize - 1;
+            for (; i >= 0; i--) {
+                if (++position[i] < columnValues[i].count) {
+                    break;
+                }
+                position[i] = 0;
+            }
+            if (i < 0) {
+                return;
+            }
+        }
+    }
 
-    List<FieldData> keyFieldsData = new ArrayList<FieldData>();
+    /**
+     * Adds the groups aggregated in the dense slots of the current segment to the group table.
+     */
+    void fold() {
+        for (int slot = 0; slot < denseSlots; slot++) {
+            if (dense.count[slot] == 0) {
+                continue;
+            }
+            slotKey(slot);
+            int group = groups.find(probe);
+            if (group < 0) {
+                if (groups.isFull() && makeRoom()) {
+                    // an eviction compacts the string dictionaries, the keys resolve to other ids
+                    slotKey(slot);
+                }
+                group = groups.add(probe);
+            }
+            groups.merge(group, dense, slot, false);
+            dense.clear(slot);
+        }
+    }
 
-    List<FieldMapper> keyFieldsMapper;
+    // resolves the key of a dense slot of the current segment into the probe
+    private void slotKey(int slot) {
+        int rest = slot;
+        for (int i = 0; i < keyColumns.length; i++) {
+            int ordinal = rest / strides[i];
+            rest -= ordinal * strides[i];
+            probe[i] = keyColumns[i].key(ordinal);
+        }
+    }
 
-    abstract void setFieldData(FieldData fieldData);
+    private long keyColumnsSizeInBytes() {
+        long bytes = 0;
+        for (KeyColumn column : keyColumns) {
+            bytes += column.sizeInBytes();
+        }
+        return bytes;
+    }
+
+    /**
+     * Makes room for a new group in a full table: evicts the lower half of the groups by count once
+     * {@link #maxGroups} are kept, otherwise grows the table within the memory budget if any.
+     *
+     * @return whether groups were evicted, the keys resolved before then being stale
+     */
+    private boolean makeRoom() {
+        if (maxGroups > 0 && groups.atCapacityLimit()) {
+            evict(maxGroups / 2);
+            return true;
+        }
+        return budget != null && ensureMemory();
+    }
+
+    /**
+     * Reserves the memory of the grown table, or when that exceeds the budget, fails or evicts the
+     * groups with the lowest counts.
+     *
+     * @return whether groups were evicted, the keys resolved before then being stale
+     */
+    private boolean ensureMemory() {
+        long bytes = groups.grownSizeInBytes() + keyColumnsSizeInBytes();
+        long limit = budget.reserve(bytes);
+        if (limit == 0) {
+            return false;
+        }
+        if (budget.approximate && groups.size() / 2 >= minGroups && groups.size() >= 2) {
+            evict(groups.size() / 2);
+            // the table does not grow anymore, the compacted dictionaries must fit
+            bytes = groups.sizeInBytes() + keyColumnsSizeInBytes();
+            limit = budget.reserve(bytes);
+            if (limit == 0) {
+                return true;
+            }
+        }
+        budget.release();
+        throw new TooManyDistinctValuesException(groups.size(), bytes, limit);
+    }
+
+    /**
+     * Keeps the <tt>retained</tt> groups with the highest counts. The counts evicted become the count
+     * error of the groups created afterwards, which may have been evicted before.
+     */
+    private void evict(int retained) {
+        int size = groups.size();
+        long[] counts = Arrays.copyOf(groups.count, size);
+        Arrays.sort(counts);
+        long threshold = counts[size - retained];
+        // ties with the threshold are kept in id order
+        int ties = 0;
+        for (int i = size - retained; i < size && counts[i] == threshold; i++) {
+            ties++;
+        }
+
+        int[] ids = new int[retained];
+        int kept = 0;
+        long evictedCount = 0;
+        for (int id = 0; id < size; id++) {
+            long count = groups.count[id];
+            if (count > threshold || (count == threshold && ties-- > 0)) {
+                ids[kept++] = id;
+            } else if (count > evictedCount) {
+                evictedCount = count;
+            }
+        }
+        for (int i = 0; i < keyColumns.length; i++) {
+            keyColumns[i].compact(groups, i, ids, kept);
+        }
+        groups.retain(ids, kept, evictedCount);
+    }
 
+    /**
+     * Adds the groups of another processor of the same facet, which collected other documents, and
+     * releases it.
+     */
+    void merge(ColumnsProc other) {
+        other.fold();
+        merge(other.groups, other.dictionaries(), false);
+        other.release();
+    }
 
-    abstract public void aggregateFun(int docId, InternalFullColumnsFacet.FullEntry entry);
+    /**
+     * Adds the cached groups of a segment, which are only read.
+     */
+    void merge(SegmentCache.Partial partial) {
+        merge(partial.groups, partial.dictionaries, true);
+    }
 
-    static int compare(Comparable o1, Comparable o2) {
-        if (o1 == null) {
-            if (o2 == null) {
-                return 0;
+    /**
+     * Adds the groups of another table of the same facet, its string keys resolving in the given
+     * dictionaries. A group missing from one of the tables may have been evicted from it, so it gets
+     * the count error of that table's new groups.
+     */
+    private void merge(GroupTable from, String[][] dictionaries, boolean shared) {
+        fold();
+        long otherError = from.newGroupError;
+        if (otherError > 0) {
+            groups.addCountError(otherError);
+        }
+        for (int id = 0; id < from.size(); id++) {
+            translateKey(from, dictionaries, id);
+            int group = groups.find(probe);
+            if (group >= 0) {
+                // known to the other table, its own count error applies
+                groups.addCountError(group, -otherError);
+            } else {
+                if (groups.isFull() && makeRoom()) {
+                    // an eviction compacts the string dictionaries, the keys translate to other ids
+                    translateKey(from, dictionaries, id);
+                }
+                group = groups.add(probe);
             }
-            return 1;
+            groups.merge(group, from, id, shared);
         }
-        if (o2 == null) {
-            return -1;
+        groups.newGroupError += otherError;
+    }
+
+    // translates the key of a group of another table into the probe
+    private void translateKey(GroupTable from, String[][] dictionaries, int id) {
+        for (int i = 0; i < keyColumns.length; i++) {
+            probe[i] = keyColumns[i].translate(dictionaries[i], from.key(id, i));
         }
-        return o1.compareTo(o2);
     }
 
-    @Override
-    public void onValue(int docId, String value) {
+    private String[][] dictionaries() {
+        String[][] dictionaries = new String[keyColumns.length][];
+        for (int i = 0; i < keyColumns.length; i++) {
+            dictionaries[i] = keyColumns[i].dictionary();
+        }
+        return dictionaries;
+    }
 
-        StringBuilder keyBuf = new StringBuilder();
-        String[] keys = new String[keyFieldsMapper.size()];
-        String key;
-        int idx = 0;
-        for (FieldData keyFieldData : keyFieldsData) {
-            FieldMapper mapper = keyFieldsMapper.get(idx);
-            ComparableConverter conv = ComparableConverter.converters.get(mapper.getClass());
-            key = conv.getStringValue(docId, keyFieldData);
-            keys[idx] = key;
-            keyBuf.append(key);
-            keyBuf.append(',');
-            idx++;
+    /**
+     * The groups collected so far as the partial aggregates of a segment, to be cached, and releases
+     * the collection structures. The partial is only read afterwards.
+     *
+     * @param hits the hits of the segment
+     * @param sampled the hits of the segment collected, fewer than the hits when sampling
+     */
+    SegmentCache.Partial partial(long hits, long sampled) {
+        fold();
+        if (groups.digests != null) {
+            // compressed once, so that merging or copying them does not write
+            for (int id = 0; id < groups.size(); id++) {
+                if (groups.digests[id] != null) {
+                    groups.digests[id].compress();
+                }
+            }
         }
+        SegmentCache.Partial partial = new SegmentCache.Partial(groups, dictionaries(),
+                groups.sizeInBytes() + keyColumnsSizeInBytes(), hits, sampled);
+        release();
+        return partial;
+    }
 
-        key = keyBuf.toString();
-        InternalFullColumnsFacet.FullEntry entry =  entries.get(key);
-        if (entry == null) {
-            entry = new InternalFullColumnsFacet.FullEntry(keys, key, 0, Double.POSITIVE_INFINITY, Double.NEGATIVE_INFINITY, 0, 0);
-            entries.put(key, entry);
-            if (MaxDistinctGroups > 0 && entries.size() > MaxDistinctGroups) {
-                throw new TooManyDistinctValuesException(MaxDistinctGroups);
+    /**
+     * Builds the entries of every group and releases the collection structures.
+     * Only the string keys are materialized, numeric keys are formatted on demand by the entries.
+     */
+    List<InternalFullColumnsFacet.FullEntry> buildEntries() {
+        fold();
+        int size = groups.size();
+        List<InternalFullColumnsFacet.FullEntry> result = new ArrayList<InternalFullColumnsFacet.FullEntry>(size);
+        for (int group = 0; group < size; group++) {
+            String[] keys = new String[keyColumns.length];
+            long[] values = new long[keyColumns.length];
+            for (int i = 0; i < keys.length; i++) {
+                values[i] = groups.key(group, i);
+                if (keyTypes[i] == KeyColumn.STRING) {
+                    keys[i] = keyColumns[i].toString(values[i]);
+                }
             }
+            int slot = group * valueColumns.length;
+            InternalFullColumnsFacet.FullEntry entry = new InternalFullColumnsFacet.FullEntry(keys, values, keyTypes,
+                    groups.count[group], groups.min[slot], groups.max[slot], groups.totalCount[slot], groups.total[slot]);
+            entry.sumOfSquares = groups.sumOfSquares[slot];
+            if (valueColumns.length > 1) {
+                entry.valueAggregates = new InternalFullColumnsFacet.ValueAggregates[valueColumns.length - 1];
+                for (int i = 1; i < valueColumns.length; i++) {
+                    entry.valueAggregates[i - 1] = new InternalFullColumnsFacet.ValueAggregates(groups.totalCount[slot + i],
+                            groups.total[slot + i], groups.sumOfSquares[slot + i], groups.min[slot + i], groups.max[slot + i]);
+                }
+            }
+            if (groups.countError != null) {
+                entry.countError = groups.countError[group];
+            }
+            if (groups.distinct != null) {
+                entry.distinct = groups.distinct[group];
+            }
+            if (groups.digests != null) {
+                entry.digest = groups.digests[group];
+            }
+            result.add(entry);
+        }
+        release();
+        return result;
+    }
+
+    /**
+     * Releases the key dictionaries and the memory reserved by the groups.
+     */
+    void release() {
+        for (KeyColumn column : keyColumns) {
+            column.release();
+        }
+        if (budget != null) {
+            budget.release();
         }
-        entry.count++;
-        aggregateFun(docId, entry);
     }
 
-    public void onMissing(int docId) {
+    /**
+     * Buffers the ordinals and keys of one key column for the current document.
+     */
+    private static final class ColumnValues implements FieldData.OrdinalInDocProc {
 
+        private final KeyColumn column;
+
+        private final boolean skipMissing;
+
+        // whether the keys are resolved along the ordinals, not needed by dense segments
+        boolean resolveKeys = true;
+
+        int[] ordinals = new int[4];
+
+        long[] keys = new long[4];
+
+        int count;
+
+        ColumnValues(KeyColumn column, boolean skipMissing) {
+            this.column = column;
+            this.skipMissing = skipMissing;
+        }
+
+        @Override
+        public void onOrdinal(int docId, int ordinal) {
+            if (ordinal == 0 && skipMissing) {
+                return;
+            }
+            if (count == keys.length) {
+                ordinals = Arrays.copyOf(ordinals, count << 1);
+                keys = Arrays.copyOf(keys, count << 1);
+            }
+            ordinals[count] = ordinal;
+            if (resolveKeys) {
+                keys[count] = column.key(ordinal);
+            }
+            count++;
+        }
+
+        void resolve() {
+            for (int i = 0; i < count; i++) {
+                keys[i] = column.key(ordinals[i]);
+            }
+        }
     }
 }
-
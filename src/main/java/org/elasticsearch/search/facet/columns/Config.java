@@ -2,14 +2,20 @@ package org.elasticsearch.search.facet.columns;
 
 import org.elasticsearch.common.settings.ImmutableSettings;
 import org.elasticsearch.env.Environment;
-
-import java.net.URL;
+import org.elasticsearch.env.FailedToResolveConfigException;
 
 public class Config {
 
-    private static URL url = new Environment().resolveConfig("elasticsearch.yml");
+    private static ImmutableSettings.Builder builder = load();
 
-    private static ImmutableSettings.Builder builder = ImmutableSettings.settingsBuilder().loadFromUrl(url);
+    // Outside of a node (benchmarks, tools) there may be no config/elasticsearch.yml: every setting takes its default.
+    private static ImmutableSettings.Builder load() {
+        try {
+            return ImmutableSettings.settingsBuilder().loadFromUrl(new Environment().resolveConfig("elasticsearch.yml"));
+        } catch (FailedToResolveConfigException e) {
+            return ImmutableSettings.settingsBuilder();
+        }
+    }
 
     static String get(String key, String valueIfMissing) {
         String v = builder.get(key);
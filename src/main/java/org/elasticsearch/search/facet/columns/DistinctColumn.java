@@ -0,0 +1,113 @@
+package org.elasticsearch.search.facet.columns;
+
+import org.elasticsearch.common.MurmurHash;
+import org.elasticsearch.common.Unicode;
+import org.elasticsearch.index.field.data.FieldData;
+import org.elasticsearch.index.field.data.strings.StringFieldData;
+import org.elasticsearch.index.mapper.FieldMapper;
+
+/**
+ * The column of the <tt>distinct_field</tt>, adding the values of a document to the {@link HyperLogLog}
+ * sketch of its group. Values are hashed once per ordinal of a segment: strings by their UTF-8 bytes,
+ * numbers and dates by their raw key value (see {@link KeyColumn}), so that the hashes of a value agree
+ * across segments and shards.
+ */
+final class DistinctColumn implements FieldData.OrdinalInDocProc {
+
+    // Default precision of the distinct sketches: 2^precision registers, a relative error of about
+    // 1.04 / sqrt(2^precision), and at most 2^precision bytes per group. Can be overridden per request
+    // with distinct_precision.
+    // Usage:
+    // in config/elasticsearch.yml
+    // columns_facet.distinct_precision = 12
+    static int DefaultPrecision = Integer.parseInt(Config.get("columns_facet.distinct_precision", "12"));
+
+    private static final long SEED = 0x9747b28c;
+
+    final int precision;
+
+    // the raw values of a numeric or date field, null for a string field
+    private final KeyColumn numeric;
+
+    private FieldData fieldData;
+
+    private String[] strings;
+
+    // the hash of every ordinal of the segment, 0 until computed
+    private long[] hashes;
+
+    private GroupTable groups;
+
+    private int group;
+
+    DistinctColumn(FieldMapper mapper, int precision) {
+        HyperLogLog.checkPrecision(precision);
+        this.precision = precision;
+        this.numeric = KeyColumn.typeOf(mapper) == KeyColumn.STRING ? null : KeyColumn.forMapper(mapper);
+    }
+
+    void setNextReader(FieldData fieldData) {
+        if (fieldData == this.fieldData) {
+            // another chunk of the same segment
+            return;
+        }
+        this.fieldData = fieldData;
+        if (numeric != null) {
+            numeric.setNextReader(fieldData);
+            hashes = new long[numeric.ordinals()];
+        } else {
+            strings = ((StringFieldData) fieldData).values();
+            hashes = new long[strings.length];
+        }
+    }
+
+    /**
+     * Adds the values of a document to the sketch of a group of the given table.
+     */
+    void aggregate(int docId, GroupTable groups, int group) {
+        this.groups = groups;
+        this.group = group;
+        fieldData.forEachOrdinalInDoc(docId, this);
+    }
+
+    @Override
+    public void onOrdinal(int docId, int ordinal) {
+        if (ordinal == 0) {
+            // missing value
+            return;
+        }
+        long hash = hashes[ordinal];
+        if (hash == 0) {
+            hash = hash(ordinal);
+            hashes[ordinal] = hash;
+        }
+        HyperLogLog sketch = groups.distinct[group];
+        if (sketch == null) {
+            sketch = new HyperLogLog(precision);
+            groups.distinct[group] = sketch;
+        }
+        sketch.offer(hash);
+    }
+
+    private long hash(int ordinal) {
+        long hash;
+        if (numeric != null) {
+            hash = mix(numeric.key(ordinal));
+        } else {
+            byte[] bytes = Unicode.fromStringAsBytes(strings[ordinal]);
+            hash = MurmurHash.hash2_64(bytes, 0, bytes.length, SEED);
+        }
+        // 0 marks an ordinal not hashed yet, losing one bit of a single hash value is harmless
+        return hash == 0 ? 1 : hash;
+    }
+
+    // the MurmurHash3 finalizer, spreading the bits of close numbers over the whole hash
+    private static long mix(long k) {
+        k ^= k >>> 33;
+        k *= 0xff51afd7ed558ccdL;
+        k ^= k >>> 33;
+        k *= 0xc4ceb9fe1a85ec53L;
+        k ^= k >>> 33;
+        return k;
+    }
+}
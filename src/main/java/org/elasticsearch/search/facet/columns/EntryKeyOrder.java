@@ -0,0 +1,62 @@
+package org.elasticsearch.search.facet.columns;
+
+import java.util.Comparator;
+
+/**
+ * Total order of entries by their composite key, independent of the requested order: string keys by value
+ * (missing last), numeric and date keys by value. Two entries compare equal exactly when they are the same
+ * group. The order agrees with a requested order on the leading key columns, ascending (see {@link #isPrefixOf}).
+ */
+final class EntryKeyOrder implements Comparator<InternalFullColumnsFacet.FullEntry> {
+
+    static final EntryKeyOrder INSTANCE = new EntryKeyOrder();
+
+    private EntryKeyOrder() {
+    }
+
+    @Override
+    public int compare(InternalFullColumnsFacet.FullEntry o1, InternalFullColumnsFacet.FullEntry o2) {
+        for (int i = 0; i < o1.values.length; i++) {
+            int c;
+            if (o1.keyTypes[i] == KeyColumn.STRING) {
+                c = compareStrings(o1.keys[i], o2.keys[i]);
+            } else if (KeyColumn.isDouble(o1.keyTypes[i])) {
+                c = Double.compare(Double.longBitsToDouble(o1.values[i]), Double.longBitsToDouble(o2.values[i]));
+            } else {
+                long v1 = o1.values[i];
+                long v2 = o2.values[i];
+                c = v1 < v2 ? -1 : (v1 == v2 ? 0 : 1);
+            }
+            if (c != 0) {
+                return c;
+            }
+        }
+        return 0;
+    }
+
+    private static int compareStrings(String s1, String s2) {
+        if (s1 == null) {
+            return s2 == null ? 0 : 1;
+        }
+        return s2 == null ? -1 : s1.compareTo(s2);
+    }
+
+    /**
+     * Whether the comparator orders by the first key columns, in key column order and ascending, so that
+     * entries in key order are in the requested order too.
+     */
+    static boolean isPrefixOf(Comparator<ColumnsFacet.Entry> comparator) {
+        if (!(comparator instanceof ColumnsFacet.MultiFieldsComparator)) {
+            return false;
+        }
+        ColumnsFacet.MultiFieldsComparator multiFields = (ColumnsFacet.MultiFieldsComparator) comparator;
+        Integer[] orders = multiFields.getOrders();
+        boolean[] des = multiFields.getDes();
+        for (int i = 0; i < orders.length; i++) {
+            if (orders[i] != i || des[i]) {
+                return false;
+            }
+        }
+        return orders.length > 0;
+    }
+}
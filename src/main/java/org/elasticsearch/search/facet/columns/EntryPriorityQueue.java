@@ -0,0 +1,38 @@
+package org.elasticsearch.search.facet.columns;
+
+import org.apache.lucene.util.PriorityQueue;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Bounded queue keeping the first <tt>maxSize</tt> entries of a columns facet in the order of
+ * a {@link ColumnsFacet.ComparatorType} comparator, without sorting all the entries.
+ * The top of the queue is the last retained entry, the first one to be evicted.
+ */
+class EntryPriorityQueue extends PriorityQueue<InternalFullColumnsFacet.FullEntry> {
+
+    private final Comparator<ColumnsFacet.Entry> comparator;
+
+    EntryPriorityQueue(int maxSize, Comparator<ColumnsFacet.Entry> comparator) {
+        this.comparator = comparator;
+        initialize(maxSize);
+    }
+
+    @Override
+    protected boolean lessThan(InternalFullColumnsFacet.FullEntry a, InternalFullColumnsFacet.FullEntry b) {
+        return comparator.compare(a, b) > 0;
+    }
+
+    /**
+     * Empties the queue into a list, in comparator order.
+     */
+    List<InternalFullColumnsFacet.FullEntry> drain() {
+        InternalFullColumnsFacet.FullEntry[] ordered = new InternalFullColumnsFacet.FullEntry[size()];
+        for (int i = ordered.length - 1; i >= 0; i--) {
+            ordered[i] = pop();
+        }
+        return Arrays.asList(ordered);
+    }
+}
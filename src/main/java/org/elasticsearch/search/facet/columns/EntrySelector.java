@@ -0,0 +1,65 @@
+package org.elasticsearch.search.facet.columns;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Selects the <tt>from..from+size</tt> page of the entries it is given in comparator order. Only the first
+ * <tt>from + size</tt> entries are kept, in a bounded queue; all of them are kept and sorted when no size
+ * is requested.
+ */
+final class EntrySelector {
+
+    private final Comparator<ColumnsFacet.Entry> comparator;
+
+    private final long from;
+
+    private final EntryPriorityQueue queue;
+
+    private final List<InternalFullColumnsFacet.FullEntry> all;
+
+    private long total;
+
+    EntrySelector(Comparator<ColumnsFacet.Entry> comparator, long size, long from, int expected) {
+        this.comparator = comparator;
+        this.from = from;
+        if (size > 0) {
+            queue = new EntryPriorityQueue((int) Math.min(expected, from + size), comparator);
+            all = null;
+        } else {
+            queue = null;
+            all = new ArrayList<InternalFullColumnsFacet.FullEntry>(expected);
+        }
+    }
+
+    void add(InternalFullColumnsFacet.FullEntry entry) {
+        total++;
+        if (queue != null) {
+            queue.insertWithOverflow(entry);
+        } else {
+            all.add(entry);
+        }
+    }
+
+    /**
+     * The number of entries given.
+     */
+    long total() {
+        return total;
+    }
+
+    List<InternalFullColumnsFacet.FullEntry> page() {
+        List<InternalFullColumnsFacet.FullEntry> ordered;
+        if (queue != null) {
+            ordered = queue.drain();
+        } else {
+            InternalFullColumnsFacet.FullEntry[] values = all.toArray(new InternalFullColumnsFacet.FullEntry[all.size()]);
+            Arrays.sort(values, comparator);
+            ordered = Arrays.asList(values);
+        }
+        int offset = (int) Math.min(ordered.size(), from);
+        return ordered.subList(offset, ordered.size());
+    }
+}
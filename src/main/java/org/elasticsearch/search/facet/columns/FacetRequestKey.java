@@ -0,0 +1,68 @@
+package org.elasticsearch.search.facet.columns;
+
+import org.apache.lucene.search.DeletionAwareConstantScoreQuery;
+import org.apache.lucene.search.Filter;
+import org.apache.lucene.search.Query;
+
+import java.util.Arrays;
+
+/**
+ * What decides the documents a columns facet collects and how it groups them, besides the index: the
+ * normalized facet definition, the query, the types, the alias filter and the facet filter. Queries and
+ * filters are compared with their own equals, which falls back to identity for filters that do not define
+ * it: such requests never hit the caches keyed by this key. A constant score query is keyed by its filter,
+ * as it wraps the filter into one skipping the deleted documents, which does not define equals.
+ */
+final class FacetRequestKey {
+
+    // the facet name and its normalized parameters
+    private final String definition;
+
+    // the query, or the filter of a constant score query
+    private final Object query;
+
+    private final String[] types;
+
+    private final Filter aliasFilter;
+
+    private final Filter facetFilter;
+
+    private final int hash;
+
+    FacetRequestKey(String definition, Query query, String[] types, Filter aliasFilter, Filter facetFilter) {
+        this.definition = definition;
+        this.query = query instanceof DeletionAwareConstantScoreQuery ? ((DeletionAwareConstantScoreQuery) query).getFilter() : query;
+        this.types = types;
+        this.aliasFilter = aliasFilter;
+        this.facetFilter = facetFilter;
+        int h = definition.hashCode();
+        h = 31 * h + (this.query != null ? this.query.hashCode() : 0);
+        h = 31 * h + Arrays.hashCode(types);
+        h = 31 * h + (aliasFilter != null ? aliasFilter.hashCode() : 0);
+        h = 31 * h + (facetFilter != null ? facetFilter.hashCode() : 0);
+        this.hash = h;
+    }
+
+    @Override
+    public int hashCode() {
+        return hash;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (!(o instanceof FacetRequestKey)) {
+            return false;
+        }
+        FacetRequestKey other = (FacetRequestKey) o;
+        return hash == other.hash
+                && definition.equals(other.definition)
+                && equal(query, other.query)
+                && Arrays.equals(types, other.types)
+                && equal(aliasFilter, other.aliasFilter)
+                && equal(facetFilter, other.facetFilter);
+    }
+
+    private static boolean equal(Object o1, Object o2) {
+        return o1 == null ? o2 == null : o1.equals(o2);
+    }
+}
@@ -0,0 +1,109 @@
+package org.elasticsearch.search.facet.columns;
+
+import org.elasticsearch.ElasticSearchIllegalArgumentException;
+import org.elasticsearch.common.unit.ByteSizeValue;
+
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ * Memory budget of the groups of a columns facet on a shard: the estimated heap of its group table and
+ * key dictionaries must fit both the request limit and what the other facets running on this node left
+ * of the node limit. A budget reserves its current estimate until released; a facet that failed without
+ * releasing its budget stops counting once it has been garbage collected.
+ */
+final class GroupMemoryBudget {
+
+    // Default memory limit of the groups of one facet on one shard, in bytes or as a percentage of the heap.
+    // 0 or clear means no limit. Can be overridden per request with memory_limit.
+    // Usage:
+    // in config/elasticsearch.yml
+    // columns_facet.memory_limit_per_request = 100mb
+    static long RequestLimit = parseLimit(Config.get("columns_facet.memory_limit_per_request", "0"));
+
+    // Memory limit of the groups of all the columns facets running on a node, in bytes or as a percentage of the heap.
+    // 0 or clear means no limit.
+    // Usage:
+    // in config/elasticsearch.yml
+    // columns_facet.memory_limit_per_node = 20%
+    static long NodeLimit = parseLimit(Config.get("columns_facet.memory_limit_per_node", "0"));
+
+    // What to do when a limit is reached: fail the facet, or approximate by evicting the groups with the
+    // lowest counts and reporting the count error. Can be overridden per request with memory_limit_mode.
+    // Usage:
+    // in config/elasticsearch.yml
+    // columns_facet.memory_limit_mode = approximate
+    static boolean Approximate = parseApproximate(Config.get("columns_facet.memory_limit_mode", "fail"));
+
+    static long parseLimit(String limit) {
+        if (limit.endsWith("%")) {
+            double percent = Double.parseDouble(limit.substring(0, limit.length() - 1));
+            return (long) (Runtime.getRuntime().maxMemory() * percent / 100);
+        }
+        return ByteSizeValue.parseBytesSizeValue(limit).bytes();
+    }
+
+    static boolean parseApproximate(String mode) {
+        if ("approximate".equals(mode)) {
+            return true;
+        } else if ("fail".equals(mode)) {
+            return false;
+        }
+        throw new ElasticSearchIllegalArgumentException("Unknown columns facet memory limit mode [" + mode + "], expected [fail] or [approximate]");
+    }
+
+    private static final Map<GroupMemoryBudget, Boolean> reservations = new WeakHashMap<GroupMemoryBudget, Boolean>();
+
+    /**
+     * The bytes reserved by all the facets running on this node.
+     */
+    static long nodeReserved() {
+        synchronized (reservations) {
+            long reserved = 0;
+            for (GroupMemoryBudget budget : reservations.keySet()) {
+                reserved += budget.reserved;
+            }
+            return reserved;
+        }
+    }
+
+    final long requestLimit;
+
+    final long nodeLimit;
+
+    final boolean approximate;
+
+    private long reserved;
+
+    GroupMemoryBudget(long requestLimit, long nodeLimit, boolean approximate) {
+        this.requestLimit = requestLimit;
+        this.nodeLimit = nodeLimit;
+        this.approximate = approximate;
+    }
+
+    /**
+     * Reserves the given estimate in place of the current reservation.
+     *
+     * @return the limit the estimate exceeds, 0 when it is reserved
+     */
+    long reserve(long bytes) {
+        if (requestLimit > 0 && bytes > requestLimit) {
+            return requestLimit;
+        }
+        synchronized (reservations) {
+            if (nodeLimit > 0 && nodeReserved() - reserved + bytes > nodeLimit) {
+                return nodeLimit;
+            }
+            reserved = bytes;
+            reservations.put(this, Boolean.TRUE);
+        }
+        return 0;
+    }
+
+    void release() {
+        synchronized (reservations) {
+            reserved = 0;
+            reservations.remove(this);
+        }
+    }
+}
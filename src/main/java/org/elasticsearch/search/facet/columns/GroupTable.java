@@ -0,0 +1,451 @@
+package org.elasticsearch.search.facet.columns;
+
+import java.util.Arrays;
+
+/**
+ * Open addressing hash table of the groups of a columns facet.
+ * <p/>
+ * Groups are addressed by a dense id, assigned in insertion order. The composite keys (one long per
+ * key column) and the aggregates are stored in parallel primitive arrays indexed by that id, so a group
+ * costs a few array slots instead of an entry object, a key string and a map slot. The hash slots only
+ * hold group ids and are probed linearly.
+ * <p/>
+ * The aggregates of the values (total count, total, sum of squares, min and max) have a slot per value
+ * field, at <tt>id * valueWidth + field</tt>, next to the slots of the other value fields of the group.
+ */
+final class GroupTable {
+
+    private static final float LOAD_FACTOR = 0.6f;
+
+    private static final int INITIAL_GROUPS = 16;
+
+    final int keyWidth;
+
+    // number of value fields, the aggregate slots of every group
+    final int valueWidth;
+
+    private int size;
+
+    // hash slot -> group id + 1, 0 when free
+    private int[] slots;
+
+    private int mask;
+
+    private int resizeThreshold;
+
+    private int[] hashes;
+
+    long[] keys;
+
+    long[] count;
+
+    // valueWidth slots per group
+    long[] totalCount;
+
+    double[] total;
+
+    double[] sumOfSquares;
+
+    double[] min;
+
+    double[] max;
+
+    // distinct values sketch of every group, only allocated by trackDistinct(), null until the group has a value
+    HyperLogLog[] distinct;
+
+    // percentiles digest of the first value field of every group, only allocated by trackDigests(), null
+    // until the group has a value
+    TDigest[] digests;
+
+    // count a group may have missed because it was evicted before, only allocated by the first retain
+    long[] countError;
+
+    // count error of the groups created from now on: the largest count evicted by every retain, summed
+    long newGroupError;
+
+    // the number of groups the arrays never grow past, see limitCapacity()
+    private int maxCapacity = Integer.MAX_VALUE;
+
+    GroupTable(int keyWidth) {
+        this(keyWidth, 1, INITIAL_GROUPS);
+    }
+
+    GroupTable(int keyWidth, int expectedGroups) {
+        this(keyWidth, 1, expectedGroups);
+    }
+
+    GroupTable(int keyWidth, int valueWidth, int expectedGroups) {
+        this(keyWidth, valueWidth, Math.max(INITIAL_GROUPS, expectedGroups), true);
+    }
+
+    /**
+     * A table of aggregates only, addressed directly by the caller: no keys, no hash slots and no group added.
+     */
+    static GroupTable aggregatesOnly(int valueWidth, int capacity) {
+        return new GroupTable(0, valueWidth, capacity, false);
+    }
+
+    private GroupTable(int keyWidth, int valueWidth, int capacity, boolean hashed) {
+        this.keyWidth = keyWidth;
+        this.valueWidth = valueWidth;
+        if (hashed) {
+            allocateSlots(slotsFor(capacity));
+            hashes = new int[capacity];
+            keys = new long[capacity * keyWidth];
+        }
+        count = new long[capacity];
+        int values = capacity * valueWidth;
+        totalCount = new long[values];
+        total = new double[values];
+        sumOfSquares = new double[values];
+        min = new double[values];
+        max = new double[values];
+        if (!hashed) {
+            // groups are not added, their aggregates start cleared
+            Arrays.fill(min, Double.POSITIVE_INFINITY);
+            Arrays.fill(max, Double.NEGATIVE_INFINITY);
+        }
+    }
+
+    /**
+     * Keeps a distinct values sketch per group.
+     */
+    void trackDistinct() {
+        distinct = new HyperLogLog[count.length];
+    }
+
+    /**
+     * Keeps a percentiles digest of the first value field per group.
+     */
+    void trackDigests() {
+        digests = new TDigest[count.length];
+    }
+
+    /**
+     * The number of groups the arrays hold before growing.
+     */
+    int capacity() {
+        return count.length;
+    }
+
+    /**
+     * Never grows the arrays past the given number of groups: once that many groups are added, the table
+     * is full for good, groups must be retained before another one is added.
+     */
+    void limitCapacity(int maxCapacity) {
+        this.maxCapacity = maxCapacity;
+    }
+
+    /**
+     * Whether the table holds as many groups as its capacity limit allows.
+     */
+    boolean atCapacityLimit() {
+        return size >= maxCapacity;
+    }
+
+    /**
+     * Resets the aggregates of a group of an aggregates only table.
+     */
+    void clear(int id) {
+        count[id] = 0;
+        for (int slot = id * valueWidth; slot < (id + 1) * valueWidth; slot++) {
+            totalCount[slot] = 0;
+            total[slot] = 0;
+            sumOfSquares[slot] = 0;
+            min[slot] = Double.POSITIVE_INFINITY;
+            max[slot] = Double.NEGATIVE_INFINITY;
+        }
+        if (distinct != null) {
+            distinct[id] = null;
+        }
+        if (digests != null) {
+            digests[id] = null;
+        }
+    }
+
+    /**
+     * The number of groups.
+     */
+    int size() {
+        return size;
+    }
+
+    /**
+     * Returns the id of the group of the given composite key, or -1 if there is none.
+     */
+    int find(long[] key) {
+        int hash = hash(key, 0, keyWidth);
+        for (int slot = hash & mask; ; slot = (slot + 1) & mask) {
+            int id = slots[slot] - 1;
+            if (id < 0) {
+                return -1;
+            }
+            if (hashes[id] == hash && keyEquals(id, key)) {
+                return id;
+            }
+        }
+    }
+
+    /**
+     * Returns the id of the group of the given composite key, creating an empty group if there is none.
+     * The key array is copied, so it can be reused by the caller.
+     */
+    int add(long[] key) {
+        int hash = hash(key, 0, keyWidth);
+        int slot = hash & mask;
+        for (; ; slot = (slot + 1) & mask) {
+            int id = slots[slot] - 1;
+            if (id < 0) {
+                break;
+            }
+            if (hashes[id] == hash && keyEquals(id, key)) {
+                return id;
+            }
+        }
+
+        int id = size++;
+        if (id == count.length) {
+            grow();
+        }
+        System.arraycopy(key, 0, keys, id * keyWidth, keyWidth);
+        hashes[id] = hash;
+        Arrays.fill(min, id * valueWidth, (id + 1) * valueWidth, Double.POSITIVE_INFINITY);
+        Arrays.fill(max, id * valueWidth, (id + 1) * valueWidth, Double.NEGATIVE_INFINITY);
+        if (countError != null) {
+            countError[id] = newGroupError;
+        }
+        slots[slot] = id + 1;
+        if (size > resizeThreshold) {
+            rehash(slots.length << 1);
+        }
+        return id;
+    }
+
+    /**
+     * The key value of a group for one key column.
+     */
+    long key(int id, int column) {
+        return keys[id * keyWidth + column];
+    }
+
+    /**
+     * Whether the next new group grows the arrays, or exceeds the capacity limit.
+     */
+    boolean isFull() {
+        return size == count.length || size == maxCapacity;
+    }
+
+    /**
+     * Estimated heap used by the table.
+     */
+    long sizeInBytes() {
+        return slots.length * 4L + count.length * bytesPerGroup() + sketchesSizeInBytes();
+    }
+
+    /**
+     * Estimated heap used by the table once the arrays have grown for the next group.
+     */
+    long grownSizeInBytes() {
+        int capacity = grownCapacity();
+        return slotsFor(capacity) * 4L + capacity * bytesPerGroup() + sketchesSizeInBytes();
+    }
+
+    private long sketchesSizeInBytes() {
+        long bytes = 0;
+        if (distinct != null) {
+            for (int id = 0; id < size; id++) {
+                if (distinct[id] != null) {
+                    bytes += distinct[id].sizeInBytes();
+                }
+            }
+        }
+        if (digests != null) {
+            for (int id = 0; id < size; id++) {
+                if (digests[id] != null) {
+                    bytes += digests[id].sizeInBytes();
+                }
+            }
+        }
+        return bytes;
+    }
+
+    private long bytesPerGroup() {
+        // hashes, count, countError, then totalCount, total, sumOfSquares, min, max per value field
+        return 4 + 8 + 8 * 5 * valueWidth + 8 * keyWidth + (countError != null ? 8 : 0) + (distinct != null ? 8 : 0)
+                + (digests != null ? 8 : 0);
+    }
+
+    /**
+     * Keeps the given groups only, renumbered in the given order, which must be ascending.
+     * The keys may have been rewritten since they were added, the hashes are computed again.
+     *
+     * @param evictedCount the largest count of the groups evicted, which groups created from now on may have missed
+     */
+    void retain(int[] ids, int retained, long evictedCount) {
+        ensureCountError();
+        for (int j = 0; j < retained; j++) {
+            int id = ids[j];
+            System.arraycopy(keys, id * keyWidth, keys, j * keyWidth, keyWidth);
+            hashes[j] = hash(keys, j * keyWidth, keyWidth);
+            count[j] = count[id];
+            countError[j] = countError[id];
+            System.arraycopy(totalCount, id * valueWidth, totalCount, j * valueWidth, valueWidth);
+            System.arraycopy(total, id * valueWidth, total, j * valueWidth, valueWidth);
+            System.arraycopy(sumOfSquares, id * valueWidth, sumOfSquares, j * valueWidth, valueWidth);
+            System.arraycopy(min, id * valueWidth, min, j * valueWidth, valueWidth);
+            System.arraycopy(max, id * valueWidth, max, j * valueWidth, valueWidth);
+            if (distinct != null) {
+                distinct[j] = distinct[id];
+            }
+            if (digests != null) {
+                digests[j] = digests[id];
+            }
+        }
+        // new groups expect cleared aggregates
+        Arrays.fill(count, retained, size, 0);
+        Arrays.fill(totalCount, retained * valueWidth, size * valueWidth, 0);
+        Arrays.fill(total, retained * valueWidth, size * valueWidth, 0);
+        Arrays.fill(sumOfSquares, retained * valueWidth, size * valueWidth, 0);
+        if (distinct != null) {
+            Arrays.fill(distinct, retained, size, null);
+        }
+        if (digests != null) {
+            Arrays.fill(digests, retained, size, null);
+        }
+        size = retained;
+        newGroupError += evictedCount;
+        rehash(slots.length);
+    }
+
+    /**
+     * Adds the aggregates of a group of another table to a group of this table. Unless the other table is
+     * shared, a distinct values sketch or a percentiles digest of the other group may be taken over, the
+     * other group must be cleared or dropped afterwards. A shared table is only read.
+     */
+    void merge(int id, GroupTable other, int otherId, boolean shared) {
+        count[id] += other.count[otherId];
+        for (int field = 0; field < valueWidth; field++) {
+            int slot = id * valueWidth + field;
+            int otherSlot = otherId * valueWidth + field;
+            totalCount[slot] += other.totalCount[otherSlot];
+            total[slot] += other.total[otherSlot];
+            sumOfSquares[slot] += other.sumOfSquares[otherSlot];
+            if (other.min[otherSlot] < min[slot]) {
+                min[slot] = other.min[otherSlot];
+            }
+            if (other.max[otherSlot] > max[slot]) {
+                max[slot] = other.max[otherSlot];
+            }
+        }
+        if (distinct != null && other.distinct[otherId] != null) {
+            if (distinct[id] == null) {
+                distinct[id] = shared ? other.distinct[otherId].copy() : other.distinct[otherId];
+            } else {
+                distinct[id].merge(other.distinct[otherId]);
+            }
+        }
+        if (digests != null && other.digests[otherId] != null) {
+            if (digests[id] == null) {
+                digests[id] = shared ? other.digests[otherId].copy() : other.digests[otherId];
+            } else {
+                digests[id].merge(other.digests[otherId]);
+            }
+        }
+        if (other.countError != null) {
+            addCountError(id, other.countError[otherId]);
+        }
+    }
+
+    /**
+     * Adds to the count error of every group, e.g. a count another table evicted.
+     */
+    void addCountError(long error) {
+        ensureCountError();
+        for (int id = 0; id < size; id++) {
+            countError[id] += error;
+        }
+    }
+
+    /**
+     * Adds to the count error of one group.
+     */
+    void addCountError(int id, long error) {
+        if (error != 0) {
+            ensureCountError();
+            countError[id] += error;
+        }
+    }
+
+    private void ensureCountError() {
+        if (countError == null) {
+            countError = new long[count.length];
+        }
+    }
+
+    private boolean keyEquals(int id, long[] key) {
+        int offset = id * keyWidth;
+        for (int i = 0; i < keyWidth; i++) {
+            if (keys[offset + i] != key[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private int grownCapacity() {
+        return Math.min(count.length + (count.length >> 1), Math.max(maxCapacity, count.length + 1));
+    }
+
+    private void grow() {
+        int capacity = grownCapacity();
+        hashes = Arrays.copyOf(hashes, capacity);
+        keys = Arrays.copyOf(keys, capacity * keyWidth);
+        count = Arrays.copyOf(count, capacity);
+        int values = capacity * valueWidth;
+        totalCount = Arrays.copyOf(totalCount, values);
+        total = Arrays.copyOf(total, values);
+        sumOfSquares = Arrays.copyOf(sumOfSquares, values);
+        min = Arrays.copyOf(min, values);
+        max = Arrays.copyOf(max, values);
+        if (countError != null) {
+            countError = Arrays.copyOf(countError, capacity);
+        }
+        if (distinct != null) {
+            distinct = Arrays.copyOf(distinct, capacity);
+        }
+        if (digests != null) {
+            digests = Arrays.copyOf(digests, capacity);
+        }
+    }
+
+    private void rehash(int slotCount) {
+        allocateSlots(slotCount);
+        for (int id = 0; id < size; id++) {
+            int slot = hashes[id] & mask;
+            while (slots[slot] != 0) {
+                slot = (slot + 1) & mask;
+            }
+            slots[slot] = id + 1;
+        }
+    }
+
+    private void allocateSlots(int slotCount) {
+        slots = new int[slotCount];
+        mask = slotCount - 1;
+        resizeThreshold = (int) (slotCount * LOAD_FACTOR);
+    }
+
+    private static int slotsFor(int groups) {
+        int slotCount = Integer.highestOneBit((int) (groups / LOAD_FACTOR));
+        return slotCount < groups / LOAD_FACTOR ? slotCount << 1 : slotCount;
+    }
+
+    static int hash(long[] key, int offset, int width) {
+        long h = 0;
+        for (int i = offset; i < offset + width; i++) {
+            h = (h ^ key[i]) * 0x9E3779B97F4A7C15L;
+            h ^= h >>> 29;
+        }
+        return (int) (h ^ (h >>> 32));
+    }
+}
@@ -0,0 +1,248 @@
+package org.elasticsearch.search.facet.columns;
+
+import org.elasticsearch.ElasticSearchIllegalArgumentException;
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * HyperLogLog sketch of the distinct values of a group, fed with 64 bit hashes of the values. The first
+ * <tt>precision</tt> bits of a hash select one of 2^precision registers, which keeps the highest rank
+ * (leading zeros + 1) of the remaining bits. Sketches of the same precision merge by keeping the highest
+ * rank of every register.
+ * <p/>
+ * A sketch starts sparse, as the sorted <tt>(register &lt;&lt; 6) | rank</tt> of its non zero registers,
+ * and turns into one byte per register once the sparse form would take more memory, so that a group
+ * costs at most 2^precision bytes whatever the number of distinct values.
+ */
+final class HyperLogLog {
+
+    static final int MIN_PRECISION = 4;
+
+    static final int MAX_PRECISION = 18;
+
+    // the number of distinct hashes, 2^64
+    private static final double HASH_SPACE = Math.scalb(1.0, 64);
+
+    private static final byte NONE = 0;
+    private static final byte SPARSE = 1;
+    private static final byte DENSE = 2;
+
+    static void checkPrecision(int precision) {
+        if (precision < MIN_PRECISION || precision > MAX_PRECISION) {
+            throw new ElasticSearchIllegalArgumentException("Distinct precision must be between " + MIN_PRECISION
+                    + " and " + MAX_PRECISION + ", got [" + precision + "]");
+        }
+    }
+
+    final int precision;
+
+    // one rank per register, null while sparse
+    private byte[] registers;
+
+    // (register << 6) | rank of the non zero registers, sorted by register
+    private int[] sparse;
+
+    private int sparseSize;
+
+    HyperLogLog(int precision) {
+        this.precision = precision;
+        this.sparse = new int[4];
+    }
+
+    /**
+     * Adds the hash of a value.
+     */
+    void offer(long hash) {
+        int register = (int) (hash >>> (64 - precision));
+        // the bit past the remaining bits caps the rank at 64 - precision + 1, which fits the 6 rank bits
+        int rank = Long.numberOfLeadingZeros((hash << precision) | (1L << (precision - 1))) + 1;
+        set(register, rank);
+    }
+
+    private void set(int register, int rank) {
+        if (registers != null) {
+            if (rank > registers[register]) {
+                registers[register] = (byte) rank;
+            }
+            return;
+        }
+        int low = 0;
+        int high = sparseSize - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int midRegister = sparse[mid] >>> 6;
+            if (midRegister < register) {
+                low = mid + 1;
+            } else if (midRegister > register) {
+                high = mid - 1;
+            } else {
+                if (rank > (sparse[mid] & 63)) {
+                    sparse[mid] = (register << 6) | rank;
+                }
+                return;
+            }
+        }
+        if (sparseSize == sparse.length) {
+            if (sparse.length * 2 * 4 > (1 << precision)) {
+                toDense();
+                registers[register] = (byte) rank;
+                return;
+            }
+            sparse = Arrays.copyOf(sparse, sparse.length * 2);
+        }
+        System.arraycopy(sparse, low, sparse, low + 1, sparseSize - low);
+        sparse[low] = (register << 6) | rank;
+        sparseSize++;
+    }
+
+    private void toDense() {
+        registers = new byte[1 << precision];
+        for (int i = 0; i < sparseSize; i++) {
+            registers[sparse[i] >>> 6] = (byte) (sparse[i] & 63);
+        }
+        sparse = null;
+        sparseSize = 0;
+    }
+
+    /**
+     * Adds the values of another sketch of the same precision.
+     */
+    void merge(HyperLogLog other) {
+        if (other.precision != precision) {
+            throw new ElasticSearchIllegalArgumentException("Cannot merge distinct sketches of precision ["
+                    + precision + "] and [" + other.precision + "]");
+        }
+        if (other.registers != null) {
+            if (registers == null) {
+                toDense();
+            }
+            for (int i = 0; i < registers.length; i++) {
+                if (other.registers[i] > registers[i]) {
+                    registers[i] = other.registers[i];
+                }
+            }
+        } else {
+            for (int i = 0; i < other.sparseSize; i++) {
+                set(other.sparse[i] >>> 6, other.sparse[i] & 63);
+            }
+        }
+    }
+
+    /**
+     * A copy of the sketch, which can be merged into without changing this one.
+     */
+    HyperLogLog copy() {
+        HyperLogLog copy = new HyperLogLog(precision);
+        if (registers != null) {
+            copy.registers = registers.clone();
+            copy.sparse = null;
+        } else {
+            copy.sparse = sparse.clone();
+            copy.sparseSize = sparseSize;
+        }
+        return copy;
+    }
+
+    /**
+     * The estimated number of distinct values, with the corrections of the original HyperLogLog: linear counting
+     * of the empty registers in the small range, up to <tt>2.5 m</tt> while some register is empty, and the
+     * correction of hash collisions in the large range, past <tt>1/30</tt> of the hash space.
+     */
+    long cardinality() {
+        int m = 1 << precision;
+        double sum = 0;
+        int zeros = 0;
+        if (registers != null) {
+            for (byte rank : registers) {
+                if (rank == 0) {
+                    zeros++;
+                }
+                sum += Math.scalb(1.0, -rank);
+            }
+        } else {
+            zeros = m - sparseSize;
+            sum = zeros;
+            for (int i = 0; i < sparseSize; i++) {
+                sum += Math.scalb(1.0, -(sparse[i] & 63));
+            }
+        }
+        double estimate = alpha(m) * m * m / sum;
+        if (estimate <= 2.5 * m) {
+            if (zeros > 0) {
+                estimate = m * Math.log((double) m / zeros);
+            }
+        } else if (estimate > HASH_SPACE / 30) {
+            // a sketch with every register at the highest rank saturates
+            estimate = estimate < HASH_SPACE ? -HASH_SPACE * Math.log(1 - estimate / HASH_SPACE) : Double.POSITIVE_INFINITY;
+        }
+        return Math.round(estimate);
+    }
+
+    private static double alpha(int m) {
+        switch (m) {
+            case 16:
+                return 0.673;
+            case 32:
+                return 0.697;
+            case 64:
+                return 0.709;
+            default:
+                return 0.7213 / (1 + 1.079 / m);
+        }
+    }
+
+    /**
+     * Estimated heap used by the sketch.
+     */
+    long sizeInBytes() {
+        return 24 + (registers != null ? registers.length : sparse.length * 4L);
+    }
+
+    /**
+     * Writes a sketch that may be null: its precision, then the deltas of its sparse registers, or all
+     * its registers once dense.
+     */
+    static void writeTo(StreamOutput out, HyperLogLog sketch) throws IOException {
+        if (sketch == null) {
+            out.writeByte(NONE);
+        } else if (sketch.registers != null) {
+            out.writeByte(DENSE);
+            out.writeByte((byte) sketch.precision);
+            out.writeBytes(sketch.registers);
+        } else {
+            out.writeByte(SPARSE);
+            out.writeByte((byte) sketch.precision);
+            out.writeVInt(sketch.sparseSize);
+            int previous = 0;
+            for (int i = 0; i < sketch.sparseSize; i++) {
+                out.writeVInt(sketch.sparse[i] - previous);
+                previous = sketch.sparse[i];
+            }
+        }
+    }
+
+    static HyperLogLog readFrom(StreamInput in) throws IOException {
+        byte form = in.readByte();
+        if (form == NONE) {
+            return null;
+        }
+        HyperLogLog sketch = new HyperLogLog(in.readByte());
+        if (form == DENSE) {
+            sketch.registers = new byte[1 << sketch.precision];
+            in.readFully(sketch.registers);
+            sketch.sparse = null;
+        } else {
+            sketch.sparseSize = in.readVInt();
+            sketch.sparse = new int[Math.max(4, sketch.sparseSize)];
+            int previous = 0;
+            for (int i = 0; i < sketch.sparseSize; i++) {
+                previous += in.readVInt();
+                sketch.sparse[i] = previous;
+            }
+        }
+        return sketch;
+    }
+}
@@ -1,22 +1,31 @@
 package org.elasticsearch.search.facet.columns;
 
+import org.elasticsearch.ElasticSearchIllegalStateException;
 import org.elasticsearch.common.CacheRecycler;
 import org.elasticsearch.common.io.stream.StreamInput;
 import org.elasticsearch.common.io.stream.StreamOutput;
 import org.elasticsearch.common.trove.ExtTHashMap;
+import org.elasticsearch.common.trove.map.hash.TObjectIntHashMap;
 import org.elasticsearch.common.xcontent.XContentBuilder;
 import org.elasticsearch.common.xcontent.XContentBuilderString;
 import org.elasticsearch.search.facet.Facet;
+import org.elasticsearch.search.facet.FacetPhaseExecutionException;
 
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
 import java.util.*;
 
 public class InternalFullColumnsFacet extends InternalColumnsFacet {
 
     private static final String STREAM_TYPE = "fColumns";
 
+    /**
+     * Version of the stream format written by {@link #writeTo(StreamOutput)}.
+     */
+    static final byte STREAM_VERSION = 1;
+
+    // z score of the confidence intervals of the counts estimated from a sample, 95%
+    private static final double CONFIDENCE_Z = 1.96;
+
     public static void registerStreams() {
         Streams.registerStream(STREAM, STREAM_TYPE);
     }
@@ -35,20 +44,177 @@ public class InternalFullColumnsFacet extends InternalColumnsFacet {
 
 
     /**
-     * A columns facet entry representing a single entry within the result of a columns facet.
+     * The aggregates of one value field of an entry.
      */
-    public static class FullEntry implements Entry {
-        String[] keys;
-        String key;
-        long count;
+    public static class ValueAggregates implements Aggregates {
         long totalCount;
         double total;
+        double sumOfSquares;
         double min = Double.POSITIVE_INFINITY;
         double max = Double.NEGATIVE_INFINITY;
 
-        public FullEntry(String[] keys, String key, long count, double min, double max, long totalCount, double total) {
+        ValueAggregates() {
+        }
+
+        ValueAggregates(long totalCount, double total, double sumOfSquares, double min, double max) {
+            this.totalCount = totalCount;
+            this.total = total;
+            this.sumOfSquares = sumOfSquares;
+            this.min = min;
+            this.max = max;
+        }
+
+        @Override
+        public double total() {
+            return total;
+        }
+
+        @Override
+        public double getTotal() {
+            return total();
+        }
+
+        @Override
+        public long totalCount() {
+            return totalCount;
+        }
+
+        @Override
+        public long getTotalCount() {
+            return this.totalCount;
+        }
+
+        @Override
+        public double mean() {
+            return total / totalCount;
+        }
+
+        @Override
+        public double getMean() {
+            return total / totalCount;
+        }
+
+        @Override
+        public double sumOfSquares() {
+            return sumOfSquares;
+        }
+
+        @Override
+        public double getSumOfSquares() {
+            return sumOfSquares();
+        }
+
+        @Override
+        public double variance() {
+            // clamped, the difference of two close sums may round below 0
+            return Math.max(0, (sumOfSquares - (total * total) / totalCount) / totalCount);
+        }
+
+        @Override
+        public double getVariance() {
+            return variance();
+        }
+
+        @Override
+        public double stdDeviation() {
+            return Math.sqrt(variance());
+        }
+
+        @Override
+        public double getStdDeviation() {
+            return stdDeviation();
+        }
+
+        @Override
+        public double min() {
+            return this.min;
+        }
+
+        @Override
+        public double getMin() {
+            return this.min;
+        }
+
+        @Override
+        public double max() {
+            return this.max;
+        }
+
+        @Override
+        public double getMax() {
+            return this.max;
+        }
+
+        /**
+         * Scales the total count and the sums by the given factor, which keeps the mean and the variance.
+         */
+        void scaleAggregates(double factor) {
+            totalCount = Math.round(totalCount * factor);
+            total *= factor;
+            sumOfSquares *= factor;
+        }
+
+        /**
+         * Adds the aggregates of the same value field of another entry of the same group.
+         */
+        void mergeAggregates(ValueAggregates other) {
+            total += other.total;
+            sumOfSquares += other.sumOfSquares;
+            totalCount += other.totalCount;
+            if (other.min < min) {
+                min = other.min;
+            }
+            if (other.max > max) {
+                max = other.max;
+            }
+        }
+
+        void readAggregates(StreamInput in) throws IOException {
+            totalCount = in.readVLong();
+            total = in.readDouble();
+            sumOfSquares = in.readDouble();
+            min = in.readDouble();
+            max = in.readDouble();
+        }
+
+        void writeAggregates(StreamOutput out) throws IOException {
+            out.writeVLong(totalCount);
+            out.writeDouble(total);
+            out.writeDouble(sumOfSquares);
+            out.writeDouble(min);
+            out.writeDouble(max);
+        }
+    }
+
+    /**
+     * A columns facet entry representing a single entry within the result of a columns facet.
+     */
+    public static class FullEntry extends ValueAggregates implements Entry {
+        // string keys, numeric and date keys are only formatted by keys()
+        String[] keys;
+        // typed key values, compared instead of the strings for numeric and date columns
+        long[] values;
+        byte[] keyTypes;
+        boolean formatted;
+        String key;
+        long count;
+        long countError;
+        // variance of the count estimated from a sample, 0 when every hit was collected
+        double countVariance;
+        // the aggregates of the value fields after the first one, null when there is a single value field
+        ValueAggregates[] valueAggregates;
+        // sketch of the distinct values of the distinct field, null without one or without a value
+        HyperLogLog distinct;
+        // percentiles digest of the first value field, null without percentiles or without a value
+        TDigest digest;
+        // the last percentile asked, which a comparator asks again for every comparison
+        private double cachedPercent = Double.NaN;
+        private double cachedPercentile;
+
+        public FullEntry(String[] keys, long[] values, byte[] keyTypes, long count, double min, double max, long totalCount, double total) {
             this.keys = keys;
-            this.key = key;
+            this.values = values;
+            this.keyTypes = keyTypes;
             this.count = count;
             this.min = min;
             this.max = max;
@@ -58,6 +224,14 @@ public class InternalFullColumnsFacet extends InternalColumnsFacet {
 
         //   @Override
         public String[] keys() {
+            if (!formatted) {
+                for (int i = 0; i < keys.length; i++) {
+                    if (keyTypes[i] != KeyColumn.STRING) {
+                        keys[i] = KeyColumn.format(keyTypes[i], values[i]);
+                    }
+                }
+                formatted = true;
+            }
             return keys;
         }
 
@@ -66,8 +240,46 @@ public class InternalFullColumnsFacet extends InternalColumnsFacet {
             return keys();
         }
 
+        @Override
+        public Object[] typedKeys() {
+            Object[] typed = new Object[keys.length];
+            for (int i = 0; i < typed.length; i++) {
+                typed[i] = keyTypes[i] == KeyColumn.STRING ? keys[i] : KeyColumn.toNumber(keyTypes[i], values[i]);
+            }
+            return typed;
+        }
+
+        @Override
+        public Object[] getTypedKeys() {
+            return typedKeys();
+        }
+
+        /**
+         * Hash of the group, consistent with {@link EntryKeyOrder}, computed from the typed key values.
+         */
+        int keyHash() {
+            int hash = 0;
+            for (int i = 0; i < values.length; i++) {
+                long value = values[i];
+                if (keyTypes[i] == KeyColumn.STRING) {
+                    // the string values are references into a shard dictionary
+                    value = keys[i] == null ? 0 : keys[i].hashCode();
+                }
+                hash = 31 * hash + (int) (value ^ (value >>> 32));
+            }
+            return hash;
+        }
+
         @Override
         public String key() {
+            if (key == null) {
+                StringBuilder keyBuf = new StringBuilder();
+                for (String k : keys()) {
+                    keyBuf.append(k);
+                    keyBuf.append(',');
+                }
+                key = keyBuf.toString();
+            }
             return key;
         }
 
@@ -87,53 +299,105 @@ public class InternalFullColumnsFacet extends InternalColumnsFacet {
         }
 
         @Override
-        public double total() {
-            return total;
+        public long countError() {
+            return countError;
         }
 
         @Override
-        public double getTotal() {
-            return total();
+        public long getCountError() {
+            return countError();
         }
 
         @Override
-        public long totalCount() {
-            return totalCount;
+        public double countVariance() {
+            return countVariance;
         }
 
         @Override
-        public long getTotalCount() {
-            return this.totalCount;
+        public double getCountVariance() {
+            return countVariance();
         }
 
         @Override
-        public double mean() {
-            return total / totalCount;
+        public long distinctCount() {
+            return distinct != null ? distinct.cardinality() : 0;
         }
 
         @Override
-        public double getMean() {
-            return total / totalCount;
+        public long getDistinctCount() {
+            return distinctCount();
         }
 
         @Override
-        public double min() {
-            return this.min;
+        public double percentile(double percent) {
+            if (digest == null) {
+                return Double.NaN;
+            }
+            if (percent != cachedPercent) {
+                cachedPercentile = digest.quantile(percent / 100);
+                cachedPercent = percent;
+            }
+            return cachedPercentile;
         }
 
         @Override
-        public double getMin() {
-            return this.min;
+        public double getPercentile(double percent) {
+            return percentile(percent);
         }
 
         @Override
-        public double max() {
-            return this.max;
+        public Aggregates aggregates(int valueField) {
+            return valueField == 0 ? this : valueAggregates[valueField - 1];
         }
 
         @Override
-        public double getMax() {
-            return this.max;
+        public Aggregates getAggregates(int valueField) {
+            return aggregates(valueField);
+        }
+
+        /**
+         * Adds the counts and aggregates of another entry of the same group.
+         */
+        void merge(FullEntry other) {
+            count += other.count;
+            countError += other.countError;
+            countVariance += other.countVariance;
+            mergeAggregates(other);
+            if (distinct == null) {
+                distinct = other.distinct;
+            } else if (other.distinct != null) {
+                distinct.merge(other.distinct);
+            }
+            if (digest == null) {
+                digest = other.digest;
+            } else if (other.digest != null) {
+                digest.merge(other.digest);
+                cachedPercent = Double.NaN;
+            }
+            if (valueAggregates != null && other.valueAggregates != null) {
+                for (int i = 0; i < valueAggregates.length; i++) {
+                    valueAggregates[i].mergeAggregates(other.valueAggregates[i]);
+                }
+            }
+        }
+
+        /**
+         * Scales the counts and totals of an entry collected from a sample of the hits, each hit sampled
+         * with the given probability, to estimates over all the hits. The count, a sum of Bernoulli trials
+         * scaled by <tt>1 / rate</tt>, has a variance of <tt>count (1 - rate) / rate^2</tt>. Distinct counts
+         * and percentiles are left to the sample.
+         */
+        void scaleSample(double rate) {
+            double factor = 1 / rate;
+            countVariance = count * (1 - rate) * factor * factor;
+            count = Math.round(count * factor);
+            countError = Math.round(countError * factor);
+            scaleAggregates(factor);
+            if (valueAggregates != null) {
+                for (ValueAggregates aggregates : valueAggregates) {
+                    aggregates.scaleAggregates(factor);
+                }
+            }
         }
     }
 
@@ -141,8 +405,27 @@ public class InternalFullColumnsFacet extends InternalColumnsFacet {
 
     private ComparatorType comparatorType;
 
-    ExtTHashMap<String, FullEntry> tEntries;
-    boolean cachedEntries;
+    // KeyColumn type of every key column
+    byte[] keyTypes;
+
+    // the value fields, in the order of the aggregates of the entries, null when read from an older node
+    String[] valueFields;
+
+    // whether the entries count the distinct values of a distinct field
+    boolean distinct;
+
+    // whether the entries have a percentiles digest of the first value field
+    boolean digests;
+
+    // the percentiles of the first value field output per entry, null for none
+    double[] percents;
+
+    // whether numeric and date keys are output as JSON numbers rather than strings
+    boolean typedKeys;
+
+    // whether date keys are output as epoch millis rather than ISO 8601 dates
+    boolean dateMillis;
+
     Collection<FullEntry> entries;
 
     private long size;
@@ -156,22 +439,49 @@ public class InternalFullColumnsFacet extends InternalColumnsFacet {
      */
     private long total = -1L;
 
+    /**
+     * Upper bound of the count of a group that is missing from the entries because shards were
+     * limited to their top <tt>shard_size</tt> groups. 0 when no group was left behind.
+     */
+    long countErrorBound;
+
+    /**
+     * Whether the entries of this shard result are sorted in {@link EntryKeyOrder}, see <tt>sorted_merge</tt>.
+     */
+    boolean sortedByKey;
+
+    /**
+     * Whether the entries were estimated from a sample of the hits, see <tt>sample_rate</tt>.
+     */
+    boolean sampled;
+
+    /**
+     * The hits the sample was taken from, and the hits sampled, when sampled.
+     */
+    long sampleHits;
+
+    long sampleSize;
+
+    /**
+     * Execution metrics, only when requested with <tt>profile</tt>.
+     */
+    ColumnsFacetStats profile;
+
     private InternalFullColumnsFacet() {
     }
 
     public InternalFullColumnsFacet(
             String name,
             ComparatorType comparatorType,
-            ExtTHashMap<String, FullEntry> entries,
-            boolean cachedEntries,
+            byte[] keyTypes,
+            List<FullEntry> entries,
             long size,
             long from,
             long total) {
         this.name = name;
         this.comparatorType = comparatorType;
-        this.tEntries = entries;
-        this.cachedEntries = cachedEntries;
-        this.entries = entries.values();
+        this.keyTypes = keyTypes;
+        this.entries = entries;
         this.size = size;
         this.from = from;
         this.total = total;
@@ -221,6 +531,26 @@ public class InternalFullColumnsFacet extends InternalColumnsFacet {
         return total();
     }
 
+    public long countErrorBound() {
+        return this.countErrorBound;
+    }
+
+    public long getCountErrorBound() {
+        return countErrorBound();
+    }
+
+    /**
+     * The number of hits the entries were estimated from when sampled, see <tt>sample_rate</tt>; the
+     * number of hits collected otherwise.
+     */
+    public long sampleSize() {
+        return this.sampleSize;
+    }
+
+    public long getSampleSize() {
+        return sampleSize();
+    }
+
     @Override
     public List<FullEntry> entries() {
         if (!(entries instanceof List)) {
@@ -239,101 +569,209 @@ public class InternalFullColumnsFacet extends InternalColumnsFacet {
         return (Iterator) entries().iterator();
     }
 
-    void releaseCache() {
-        if (cachedEntries) {
-            CacheRecycler.pushHashMap(tEntries);
-            cachedEntries = false;
-            tEntries = null;
-        }
-    }
-
     @Override
     public Facet reduce(String name, List<Facet> facets) {
+        long start = System.nanoTime();
+
+        long countErrorBound = 0;
+        ColumnsFacetStats profile = null;
+        int maxGroups = 0;
+        boolean sortedByKey = true;
+        boolean sampled = false;
+        long sampleHits = 0;
+        long sampleSize = 0;
+        for (Facet facet : facets) {
+            InternalFullColumnsFacet columnsFacet = (InternalFullColumnsFacet) facet;
+            countErrorBound += columnsFacet.countErrorBound;
+            sampled |= columnsFacet.sampled;
+            sampleHits += columnsFacet.sampleHits;
+            sampleSize += columnsFacet.sampleSize;
+            sortedByKey &= columnsFacet.sortedByKey;
+            maxGroups += columnsFacet.entries.size();
+            if (columnsFacet.profile != null) {
+                if (profile == null) {
+                    profile = new ColumnsFacetStats();
+                }
+                profile.add(columnsFacet.profile);
+            }
+        }
 
-        int offset;
-        int limit;
-        int end;
-
+        EntrySelector selector = new EntrySelector(comparatorType.comparator(), size, from, maxGroups);
+        long sortTime;
+        boolean complete = true;
         if (facets.size() == 1) {
-            // we need to sort it
             InternalFullColumnsFacet internalFacet = (InternalFullColumnsFacet) facets.get(0);
-            List<FullEntry> entries = internalFacet.entries();
-            Collections.sort(entries, comparatorType.comparator());
-            internalFacet.releaseCache();
-
-            // handle paging
-            if (size > 0) {
-                offset = (int)Math.min(entries.size(), from);
-                limit = (int)Math.min(entries.size() - offset, size);
-                end = offset + limit;
-
-                InternalFullColumnsFacet retFacet = new InternalFullColumnsFacet();
-                entries = entries.subList(offset, limit);
-                retFacet.total = entries.size();
-                retFacet.name = name;
-                retFacet.comparatorType = comparatorType;
-                retFacet.entries = entries.subList(offset, offset + limit);
-                internalFacet = retFacet;
+            long sortStart = System.nanoTime();
+            for (FullEntry entry : internalFacet.entries) {
+                selector.add(entry);
             }
+            sortTime = System.nanoTime() - sortStart;
+        } else if (sortedByKey) {
+            // merging and selecting is a single pass
+            long sortStart = System.nanoTime();
+            complete = mergeSorted(facets, selector);
+            sortTime = System.nanoTime() - sortStart;
+        } else {
+            ExtTHashMap<GroupKey, FullEntry> map = CacheRecycler.popHashMap();
+            ReduceSpill spill = new ReduceSpill(keyTypes);
+            try {
+                // A group missing from a pruned shard may have up to that shard's bound there. Entries first
+                // subtract the bound of every shard they come from, then the sum of all bounds is added back.
+                for (Facet facet : facets) {
+                    InternalFullColumnsFacet columnsFacet = (InternalFullColumnsFacet) facet;
+                    for (FullEntry fullEntry : columnsFacet.entries) {
+                        fullEntry.countError -= columnsFacet.countErrorBound;
+                        GroupKey groupKey = new GroupKey(fullEntry);
+                        FullEntry current = map.get(groupKey);
+                        if (current != null) {
+                            current.merge(fullEntry);
+                        } else {
+                            map.put(groupKey, fullEntry);
+                        }
+                    }
+                    // the entries not merged into the map can go right away
+                    columnsFacet.entries = Collections.emptyList();
 
-            return internalFacet;
-        }
-
-        ExtTHashMap<String, FullEntry> map = CacheRecycler.popHashMap();
-
-        for (Facet facet : facets) {
-            InternalFullColumnsFacet columnsFacet = (InternalFullColumnsFacet) facet;
-            for (FullEntry fullEntry : columnsFacet.entries) {
-                FullEntry current = map.get(fullEntry.key);
-                if (current != null) {
-                    current.count += fullEntry.count;
-                    current.total += fullEntry.total;
-                    current.totalCount += fullEntry.totalCount;
-                    if (fullEntry.min < current.min) {
-                        current.min = fullEntry.min;
+                    if (ReduceSpill.SpillThreshold > 0 && map.size() >= ReduceSpill.SpillThreshold) {
+                        spill.spill(map.values());
+                        map.clear();
                     }
-                    if (fullEntry.max > current.max) {
-                        current.max = fullEntry.max;
+                }
+
+                long sortStart = System.nanoTime();
+                if (spill.isEmpty()) {
+                    for (FullEntry entry : map.values()) {
+                        selector.add(entry);
                     }
                 } else {
-                    map.put(fullEntry.key, fullEntry);
+                    if (!map.isEmpty()) {
+                        spill.spill(map.values());
+                        map.clear();
+                    }
+                    Iterator<FullEntry> merged = spill.merge();
+                    while (merged.hasNext()) {
+                        selector.add(merged.next());
+                    }
                 }
+                sortTime = System.nanoTime() - sortStart;
+            } catch (IOException e) {
+                throw new FacetPhaseExecutionException(name, "Failed to spill the reduced groups to disk", e);
+            } finally {
+                spill.close();
+                CacheRecycler.pushHashMap(map);
             }
-            columnsFacet.releaseCache();
         }
 
-        // sort
-        Object[] values = map.internalValues();
-        Arrays.sort(values, (Comparator) comparatorType.comparator());
-
-        offset = (int)Math.min(map.size(), from);
-        limit = (size > 0) ?
-                (int)Math.min(map.size() - offset, size) :
-                map.size() - offset;
-        end = offset + limit;
-
-        List<FullEntry> ordered = new ArrayList<FullEntry>(limit);
-        total = map.size();
-
-        for (int i = offset; i < end; i++) {
-            FullEntry value = (FullEntry) values[i];
-            if (value == null) {
-                break;
+        long sortStart = System.nanoTime();
+        List<FullEntry> ordered = selector.page();
+        sortTime += System.nanoTime() - sortStart;
+        if (facets.size() > 1) {
+            for (FullEntry entry : ordered) {
+                entry.countError += countErrorBound;
             }
-            ordered.add(value);
         }
 
-        CacheRecycler.pushHashMap(map);
-
         // just initialize it as already ordered facet
         InternalFullColumnsFacet ret = new InternalFullColumnsFacet();
         ret.name = name;
         ret.comparatorType = comparatorType;
+        ret.keyTypes = keyTypes;
+        ret.valueFields = valueFields;
+        ret.distinct = distinct;
+        ret.digests = digests;
+        ret.percents = percents;
+        ret.typedKeys = typedKeys;
+        ret.dateMillis = dateMillis;
         ret.entries = ordered;
-        ret.total = total;
+        ret.total = complete ? selector.total() : -1L;
+        ret.countErrorBound = countErrorBound;
+        ret.sampled = sampled;
+        ret.sampleHits = sampleHits;
+        ret.sampleSize = sampleSize;
+
+        long reduceTime = System.nanoTime() - start;
+        ColumnsFacetStats.recordReduce(reduceTime, sortTime);
+        if (profile != null) {
+            profile.reduceTime += reduceTime;
+            profile.reduceSortTime += sortTime;
+            ret.profile = profile;
+        }
         return ret;
     }
 
+    /**
+     * Merges shard results sorted by key with a heap instead of hashing every entry. When the requested
+     * order is the key order, merging stops once the requested page is complete.
+     *
+     * @return whether every group has been merged, so that the selector counted them all
+     */
+    private boolean mergeSorted(List<Facet> facets, EntrySelector selector) {
+        List<Iterator<FullEntry>> sources = new ArrayList<Iterator<FullEntry>>(facets.size());
+        for (Facet facet : facets) {
+            final InternalFullColumnsFacet columnsFacet = (InternalFullColumnsFacet) facet;
+            final Iterator<FullEntry> entries = columnsFacet.entries.iterator();
+            // same count error accounting as the hashed merge
+            sources.add(new Iterator<FullEntry>() {
+                @Override
+                public boolean hasNext() {
+                    return entries.hasNext();
+                }
+
+                @Override
+                public FullEntry next() {
+                    FullEntry entry = entries.next();
+                    entry.countError -= columnsFacet.countErrorBound;
+                    return entry;
+                }
+
+                @Override
+                public void remove() {
+                    throw new UnsupportedOperationException();
+                }
+            });
+        }
+
+        long pageEnd = EntryKeyOrder.isPrefixOf(comparatorType.comparator()) && size > 0 ? from + size : -1;
+        SortedEntryMerge merged = new SortedEntryMerge(sources);
+        while (merged.hasNext()) {
+            if (selector.total() == pageEnd) {
+                return false;
+            }
+            selector.add(merged.next());
+        }
+        return true;
+    }
+
+    /**
+     * The group of an entry as a hash map key of the reduce, hashed and compared on the typed key values
+     * so that numeric and date keys are never formatted to be merged.
+     */
+    private static final class GroupKey {
+
+        private final FullEntry entry;
+
+        private final int hash;
+
+        GroupKey(FullEntry entry) {
+            this.entry = entry;
+            this.hash = entry.keyHash();
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof GroupKey)) {
+                return false;
+            }
+            GroupKey other = (GroupKey) o;
+            return hash == other.hash && EntryKeyOrder.INSTANCE.compare(entry, other.entry) == 0;
+        }
+    }
+
     static final class Fields {
         static final XContentBuilderString _TYPE = new XContentBuilderString("_type");
         static final XContentBuilderString GROUP_TOTOAL = new XContentBuilderString("total");
@@ -342,11 +780,22 @@ public class InternalFullColumnsFacet extends InternalColumnsFacet {
         static final XContentBuilderString KEY = new XContentBuilderString("key");
         static final XContentBuilderString KEYS = new XContentBuilderString("keys");
         static final XContentBuilderString COUNT = new XContentBuilderString("count");
+        static final XContentBuilderString COUNT_ERROR = new XContentBuilderString("count_error");
+        static final XContentBuilderString COUNT_ERROR_BOUND = new XContentBuilderString("count_error_bound");
+        static final XContentBuilderString COUNT_INTERVAL = new XContentBuilderString("count_interval");
+        static final XContentBuilderString SAMPLE = new XContentBuilderString("sample");
+        static final XContentBuilderString HITS = new XContentBuilderString("hits");
         static final XContentBuilderString TOTAL = new XContentBuilderString("total");
         static final XContentBuilderString TOTAL_COUNT = new XContentBuilderString("total_count");
         static final XContentBuilderString MEAN = new XContentBuilderString("mean");
+        static final XContentBuilderString SUM_OF_SQUARES = new XContentBuilderString("sum_of_squares");
+        static final XContentBuilderString VARIANCE = new XContentBuilderString("variance");
+        static final XContentBuilderString STD_DEVIATION = new XContentBuilderString("std_deviation");
         static final XContentBuilderString MIN = new XContentBuilderString("min");
         static final XContentBuilderString MAX = new XContentBuilderString("max");
+        static final XContentBuilderString VALUE_FIELDS = new XContentBuilderString("value_fields");
+        static final XContentBuilderString DISTINCT_COUNT = new XContentBuilderString("distinct_count");
+        static final XContentBuilderString PERCENTILES = new XContentBuilderString("percentiles");
     }
 
     @Override
@@ -355,93 +804,381 @@ public class InternalFullColumnsFacet extends InternalColumnsFacet {
         builder.field(Fields._TYPE, ColumnsFacet.TYPE);
         builder.field(Fields.GROUP_TOTOAL, total);
         builder.field(Fields.SIZE, entries.size());
+        if (countErrorBound > 0) {
+            builder.field(Fields.COUNT_ERROR_BOUND, countErrorBound);
+        }
+        if (sampled) {
+            builder.startObject(Fields.SAMPLE);
+            builder.field(Fields.SIZE, sampleSize);
+            builder.field(Fields.HITS, sampleHits);
+            builder.endObject();
+        }
         builder.startArray(Fields.ENTRIES);
         for (Entry entry : entries) {
             builder.startObject();
-            builder.field(Fields.KEYS, ((FullEntry)(entry)).getKeys());
+            keysToXContent(builder, (FullEntry) entry);
             builder.field(Fields.COUNT, entry.count());
-            builder.field(Fields.MIN, entry.min());
-            builder.field(Fields.MAX, entry.max());
-            builder.field(Fields.TOTAL, entry.total());
-            builder.field(Fields.TOTAL_COUNT, entry.totalCount());
-            builder.field(Fields.MEAN, entry.mean());
+            if (countErrorBound > 0) {
+                builder.field(Fields.COUNT_ERROR, entry.countError());
+            }
+            if (sampled) {
+                // normal approximation of the 95% confidence interval of the estimated count
+                double margin = CONFIDENCE_Z * Math.sqrt(entry.countVariance());
+                builder.startArray(Fields.COUNT_INTERVAL);
+                builder.value(Math.max(0, Math.round(entry.count() - margin)));
+                builder.value(Math.round(entry.count() + margin));
+                builder.endArray();
+            }
+            aggregatesToXContent(builder, entry);
+            if (distinct) {
+                builder.field(Fields.DISTINCT_COUNT, entry.distinctCount());
+            }
+            if (percents != null) {
+                builder.startObject(Fields.PERCENTILES);
+                for (double percent : percents) {
+                    builder.field(formatPercent(percent), entry.percentile(percent));
+                }
+                builder.endObject();
+            }
+            if (valueFields != null && valueFields.length > 1) {
+                builder.startObject(Fields.VALUE_FIELDS);
+                for (int i = 0; i < valueFields.length; i++) {
+                    builder.startObject(valueFields[i]);
+                    aggregatesToXContent(builder, entry.aggregates(i));
+                    builder.endObject();
+                }
+                builder.endObject();
+            }
             builder.endObject();
         }
         builder.endArray();
+        if (profile != null) {
+            profile.toXContent(builder, params);
+        }
         builder.endObject();
         return builder;
     }
 
+    private void keysToXContent(XContentBuilder builder, FullEntry entry) throws IOException {
+        if (!typedKeys && !dateMillis) {
+            builder.field(Fields.KEYS, entry.getKeys());
+            return;
+        }
+        builder.startArray(Fields.KEYS);
+        for (int i = 0; i < keyTypes.length; i++) {
+            byte keyType = keyTypes[i];
+            long value = entry.values[i];
+            if (keyType == KeyColumn.STRING) {
+                builder.value(entry.keys[i]);
+            } else if (keyType == KeyColumn.DATE && !dateMillis) {
+                builder.value(KeyColumn.format(keyType, value));
+            } else if (!typedKeys) {
+                builder.value(keyType == KeyColumn.DATE ? Long.toString(value) : KeyColumn.format(keyType, value));
+            } else if (keyType == KeyColumn.DOUBLE) {
+                builder.value(Double.longBitsToDouble(value));
+            } else if (keyType == KeyColumn.FLOAT) {
+                builder.value((float) Double.longBitsToDouble(value));
+            } else {
+                builder.value(value);
+            }
+        }
+        builder.endArray();
+    }
+
+    // 99 rather than 99.0, 99.9 as is
+    private static String formatPercent(double percent) {
+        return percent == Math.rint(percent) ? Long.toString((long) percent) : Double.toString(percent);
+    }
+
+    private static void aggregatesToXContent(XContentBuilder builder, Aggregates aggregates) throws IOException {
+        builder.field(Fields.MIN, aggregates.min());
+        builder.field(Fields.MAX, aggregates.max());
+        builder.field(Fields.TOTAL, aggregates.total());
+        builder.field(Fields.TOTAL_COUNT, aggregates.totalCount());
+        builder.field(Fields.MEAN, aggregates.mean());
+        builder.field(Fields.SUM_OF_SQUARES, aggregates.sumOfSquares());
+        builder.field(Fields.VARIANCE, aggregates.variance());
+        builder.field(Fields.STD_DEVIATION, aggregates.stdDeviation());
+    }
+
     public static InternalFullColumnsFacet readColumnsFacet(StreamInput in) throws IOException {
         InternalFullColumnsFacet facet = new InternalFullColumnsFacet();
         facet.readFrom(in);
         return facet;
     }
 
+    /**
+     * Stream format:
+     * <ul>
+     * <li>name, version, comparator id; for a multi fields comparator the order ids and descending flags</li>
+     * <li>size, from, count error bound, whether the entries are sorted by key and the key type of every key column</li>
+     * <li>the names of the value fields, none when they are unknown, the entries then having a single value field</li>
+     * <li>whether the entries have a distinct values sketch</li>
+     * <li>whether the entries have a percentiles digest, then the percentiles output</li>
+     * <li>whether numeric keys are output as numbers, whether date keys are output as epoch millis</li>
+     * <li>whether the entries were estimated from a sample, then the hits sampled from and the sample size</li>
+     * <li>for every string column, a dictionary of the distinct values of the shipped entries</li>
+     * <li>the entries: string keys as references into their dictionary (0 for missing), long and date
+     * keys as zig-zag variable length longs, floating point keys as doubles, then the aggregates of every
+     * value field, the distinct values sketch, sparse or dense (see {@link HyperLogLog}), the percentiles
+     * digest (see {@link TDigest}) and the variance of the count when sampled</li>
+     * <li>whether a profile follows, then the profile</li>
+     * </ul>
+     */
     @Override
     public void readFrom(StreamInput in) throws IOException {
         name = in.readUTF();
+        byte version = in.readByte();
+        if (version != STREAM_VERSION) {
+            throw new ElasticSearchIllegalStateException("Unsupported columns facet stream version [" + version + "]");
+        }
 
         byte comparatorTypeId = in.readByte();
+        Integer[] orders = null;
+        boolean[] des = null;
         if (comparatorTypeId >= 0) {
             comparatorType = ComparatorType.fromId(comparatorTypeId);
         } else {
-            ObjectInputStream oin = new ObjectInputStream(in);
-            int ordersMax = in.readInt();
-            Integer[] orders = new Integer[ordersMax];
-            boolean[] des = new boolean[ordersMax];
-            ComparableConverter[] convs = new ComparableConverter[ordersMax];
+            int ordersMax = in.readVInt();
+            orders = new Integer[ordersMax];
+            des = new boolean[ordersMax];
             for (int i = 0; i < ordersMax; i++) {
-                orders[i] = in.readInt();
+                orders[i] = in.readVInt();
                 des[i] = in.readBoolean();
-                try {
-                    convs[i] = (ComparableConverter)(oin.readObject());
-                } catch (ClassNotFoundException ex) {
-                    throw new IOException(ex);
+            }
+        }
+        this.size = in.readVLong();
+        this.from = in.readVLong();
+        this.countErrorBound = in.readVLong();
+        this.sortedByKey = in.readBoolean();
+
+        int keySize = in.readVInt();
+        keyTypes = new byte[keySize];
+        in.readFully(keyTypes);
+        if (orders != null) {
+            comparatorType = new ComparatorType((byte)-1, "keys", new MultiFieldsComparator(orders, des, keyTypes));
+        }
+        int valueSize = 1;
+        int names = in.readVInt();
+        if (names > 0) {
+            valueSize = names;
+            valueFields = new String[names];
+            for (int i = 0; i < names; i++) {
+                valueFields[i] = in.readString();
+            }
+        }
+        distinct = in.readBoolean();
+        digests = in.readBoolean();
+        int percentsSize = in.readVInt();
+        if (percentsSize > 0) {
+            percents = new double[percentsSize];
+            for (int i = 0; i < percentsSize; i++) {
+                percents[i] = in.readDouble();
+            }
+        }
+        typedKeys = in.readBoolean();
+        dateMillis = in.readBoolean();
+        sampled = in.readBoolean();
+        if (sampled) {
+            sampleHits = in.readVLong();
+            sampleSize = in.readVLong();
+        }
+
+        String[][] dictionaries = new String[keySize][];
+        for (int i = 0; i < keySize; i++) {
+            if (keyTypes[i] == KeyColumn.STRING) {
+                String[] dictionary = new String[in.readVInt() + 1];
+                for (int j = 1; j < dictionary.length; j++) {
+                    dictionary[j] = in.readString();
                 }
+                dictionaries[i] = dictionary;
             }
-            comparatorType = new ComparatorType((byte)-1, "keys", new MultiFieldsComparator(orders, des, convs));
         }
-        this.size = in.readLong();
-        this.from = in.readLong();
-        cachedEntries = false;
+
         int size = in.readVInt();
         entries = new ArrayList<FullEntry>(size);
         for (int i = 0; i < size; i++) {
-            entries.add(new FullEntry(in.readStringArray(), in.readString(), in.readVLong(), in.readDouble(), in.readDouble(), in.readVLong(), in.readDouble()));
+            String[] keys = new String[keySize];
+            long[] values = new long[keySize];
+            for (int j = 0; j < keySize; j++) {
+                switch (keyTypes[j]) {
+                    case KeyColumn.STRING:
+                        int ref = in.readVInt();
+                        keys[j] = dictionaries[j][ref];
+                        values[j] = ref - 1;
+                        break;
+                    case KeyColumn.LONG:
+                    case KeyColumn.DATE:
+                        long zigZag = in.readVLong();
+                        values[j] = (zigZag >>> 1) ^ -(zigZag & 1);
+                        break;
+                    default:
+                        values[j] = Double.doubleToLongBits(in.readDouble());
+                }
+            }
+            FullEntry entry = new FullEntry(keys, values, keyTypes, in.readVLong(), 0, 0, 0, 0);
+            entry.countError = in.readVLong();
+            entry.readAggregates(in);
+            if (valueSize > 1) {
+                entry.valueAggregates = new ValueAggregates[valueSize - 1];
+                for (int j = 0; j < entry.valueAggregates.length; j++) {
+                    entry.valueAggregates[j] = new ValueAggregates();
+                    entry.valueAggregates[j].readAggregates(in);
+                }
+            }
+            if (distinct) {
+                entry.distinct = HyperLogLog.readFrom(in);
+            }
+            if (digests) {
+                entry.digest = TDigest.readFrom(in);
+            }
+            if (sampled) {
+                entry.countVariance = in.readDouble();
+            }
+            entries.add(entry);
+        }
+
+        if (in.readBoolean()) {
+            profile = ColumnsFacetStats.readStats(in);
         }
     }
 
     @Override
-    public void writeTo(StreamOutput out) throws IOException {
+    public void writeTo(StreamOutput stream) throws IOException {
+        long start = System.nanoTime();
+        long bytes = write(stream);
+        ColumnsFacetStats.recordSerialize(bytes, System.nanoTime() - start);
+    }
+
+    /**
+     * Writes the facet in the stream format, returning the bytes written, 0 when the stream does not tell
+     * its position (compressed transport streams). The strings go through the stream itself, which may
+     * encode them as handles.
+     */
+    long write(StreamOutput out) throws IOException {
+        long startPosition = out.seekPositionSupported() ? out.position() : -1;
         out.writeUTF(name);
+        out.writeByte(STREAM_VERSION);
         out.writeByte(comparatorType.id());
         if (comparatorType.comparator() instanceof MultiFieldsComparator) {
-            ObjectOutputStream oout = new ObjectOutputStream(out);
-            Integer[] orders = ((MultiFieldsComparator)comparatorType.comparator()).getOrders();
-            boolean[] des = ((MultiFieldsComparator)comparatorType.comparator()).getDes();
-            ComparableConverter[] convs = ((MultiFieldsComparator)comparatorType.comparator()).getComparableConverter();
-            out.writeInt(orders.length);
-            int idx = 0;
-            for (Integer i : orders) {
-                out.writeInt(i);
-                out.writeBoolean(des[idx]);
-                oout.writeObject(convs[idx]);
-                idx++;
-            }
-        }
-        out.writeLong(this.size);
-        out.writeLong(this.from);
+            MultiFieldsComparator comparator = (MultiFieldsComparator) comparatorType.comparator();
+            Integer[] orders = comparator.getOrders();
+            boolean[] des = comparator.getDes();
+            out.writeVInt(orders.length);
+            for (int i = 0; i < orders.length; i++) {
+                out.writeVInt(orders[i]);
+                out.writeBoolean(des[i]);
+            }
+        }
+        out.writeVLong(this.size);
+        out.writeVLong(this.from);
+        out.writeVLong(this.countErrorBound);
+        out.writeBoolean(sortedByKey);
+
+        int keySize = keyTypes.length;
+        out.writeVInt(keySize);
+        out.writeBytes(keyTypes);
+        if (valueFields != null) {
+            out.writeVInt(valueFields.length);
+            for (String valueField : valueFields) {
+                out.writeString(valueField);
+            }
+        } else {
+            out.writeVInt(0);
+        }
+        out.writeBoolean(distinct);
+        out.writeBoolean(digests);
+        if (percents != null) {
+            out.writeVInt(percents.length);
+            for (double percent : percents) {
+                out.writeDouble(percent);
+            }
+        } else {
+            out.writeVInt(0);
+        }
+        out.writeBoolean(typedKeys);
+        out.writeBoolean(dateMillis);
+        out.writeBoolean(sampled);
+        if (sampled) {
+            out.writeVLong(sampleHits);
+            out.writeVLong(sampleSize);
+        }
+
+        // dictionary reference of every string key of every entry, 0 being a missing value
+        int[][] refs = new int[keySize][];
+        for (int i = 0; i < keySize; i++) {
+            if (keyTypes[i] != KeyColumn.STRING) {
+                continue;
+            }
+            TObjectIntHashMap<String> dictionary = CacheRecycler.popObjectIntMap();
+            List<String> values = new ArrayList<String>();
+            int[] columnRefs = new int[entries.size()];
+            int e = 0;
+            for (FullEntry entry : entries) {
+                String key = entry.keys[i];
+                if (key != null) {
+                    int ref = dictionary.get(key);
+                    if (ref == dictionary.getNoEntryValue()) {
+                        values.add(key);
+                        ref = values.size();
+                        dictionary.put(key, ref);
+                    }
+                    columnRefs[e] = ref;
+                }
+                e++;
+            }
+            CacheRecycler.pushObjectIntMap(dictionary);
+            out.writeVInt(values.size());
+            for (String value : values) {
+                out.writeString(value);
+            }
+            refs[i] = columnRefs;
+        }
+
         out.writeVInt(entries.size());
+        int e = 0;
         for (FullEntry entry : entries) {
-            out.writeStringArray(entry.keys);
-            out.writeString(entry.key);
+            for (int i = 0; i < keySize; i++) {
+                switch (keyTypes[i]) {
+                    case KeyColumn.STRING:
+                        out.writeVInt(refs[i][e]);
+                        break;
+                    case KeyColumn.LONG:
+                    case KeyColumn.DATE:
+                        long value = entry.values[i];
+                        out.writeVLong((value << 1) ^ (value >> 63));
+                        break;
+                    default:
+                        out.writeDouble(Double.longBitsToDouble(entry.values[i]));
+                }
+            }
             out.writeVLong(entry.count);
-            out.writeDouble(entry.min);
-            out.writeDouble(entry.max);
-            out.writeVLong(entry.totalCount);
-            out.writeDouble(entry.total);
+            out.writeVLong(entry.countError);
+            entry.writeAggregates(out);
+            if (entry.valueAggregates != null) {
+                for (ValueAggregates aggregates : entry.valueAggregates) {
+                    aggregates.writeAggregates(out);
+                }
+            }
+            if (distinct) {
+                HyperLogLog.writeTo(out, entry.distinct);
+            }
+            if (digests) {
+                TDigest.writeTo(out, entry.digest);
+            }
+            if (sampled) {
+                out.writeDouble(entry.countVariance);
+            }
+            e++;
+        }
+
+        if (profile != null) {
+            long resultBytes = startPosition < 0 ? 0 : out.position() - startPosition;
+            out.writeBoolean(true);
+            profile.writeTo(out, resultBytes);
+        } else {
+            out.writeBoolean(false);
         }
-        releaseCache();
+        return startPosition < 0 ? 0 : out.position() - startPosition;
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,631 @@
+package org.elasticsearch.search.facet.columns;
+
+import org.elasticsearch.common.CacheRecycler;
+import org.elasticsearch.common.joda.time.DateTime;
+import org.elasticsearch.common.joda.time.DateTimeZone;
+import org.elasticsearch.common.trove.map.hash.TObjectIntHashMap;
+import org.elasticsearch.index.field.data.FieldData;
+import org.elasticsearch.index.field.data.bytes.ByteFieldData;
+import org.elasticsearch.index.field.data.doubles.DoubleFieldData;
+import org.elasticsearch.index.field.data.floats.FloatFieldData;
+import org.elasticsearch.index.field.data.ints.IntFieldData;
+import org.elasticsearch.index.field.data.longs.LongFieldData;
+import org.elasticsearch.index.field.data.shorts.ShortFieldData;
+import org.elasticsearch.index.field.data.strings.StringFieldData;
+import org.elasticsearch.index.mapper.FieldMapper;
+import org.elasticsearch.index.mapper.core.*;
+import org.elasticsearch.script.SearchScript;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * A grouping column translating per-segment field data ordinals into a segment independent
+ * primitive key. Integral and date columns use their raw value, floating point columns the bits of
+ * their double value and string columns an id into a shard level dictionary. Strings are only
+ * produced by {@link #toString(long)} once per distinct group.
+ */
+abstract class KeyColumn {
+
+    /**
+     * The key used for a missing string value.
+     */
+    static final long MISSING = -1L;
+
+    /**
+     * Key types, telling how a key value is compared, sent and formatted.
+     * Strings compare their materialized value, dates compare as longs and floats as doubles.
+     */
+    static final byte STRING = 0;
+    static final byte LONG = 1;
+    static final byte DOUBLE = 2;
+    static final byte DATE = 3;
+    static final byte FLOAT = 4;
+
+    static byte typeOf(FieldMapper mapper) {
+        if (mapper instanceof DateFieldMapper) {
+            return DATE;
+        } else if (mapper instanceof ByteFieldMapper || mapper instanceof ShortFieldMapper
+                || mapper instanceof IntegerFieldMapper || mapper instanceof LongFieldMapper) {
+            return LONG;
+        } else if (mapper instanceof FloatFieldMapper) {
+            return FLOAT;
+        } else if (mapper instanceof DoubleFieldMapper) {
+            return DOUBLE;
+        }
+        return STRING;
+    }
+
+    /**
+     * Whether the key values of a type are compared as longs.
+     */
+    static boolean isLong(byte type) {
+        return type == LONG || type == DATE;
+    }
+
+    /**
+     * Whether the key values of a type are double bits.
+     */
+    static boolean isDouble(byte type) {
+        return type == DOUBLE || type == FLOAT;
+    }
+
+    /**
+     * Formats a numeric or date key value the way the field data formats it.
+     */
+    static String format(byte type, long value) {
+        switch (type) {
+            case DATE:
+                return new DateTime(value, DateTimeZone.UTC).toString();
+            case DOUBLE:
+                return Double.toString(Double.longBitsToDouble(value));
+            case FLOAT:
+                return Float.toString((float) Double.longBitsToDouble(value));
+            default:
+                return Long.toString(value);
+        }
+    }
+
+    /**
+     * A numeric or date key value as a number: a Long for integral and date keys (epoch millis), a
+     * Double or a Float for floating point keys.
+     */
+    static Number toNumber(byte type, long value) {
+        switch (type) {
+            case DOUBLE:
+                return Double.longBitsToDouble(value);
+            case FLOAT:
+                return (float) Double.longBitsToDouble(value);
+            default:
+                return value;
+        }
+    }
+
+    /**
+     * The column of a key field, its keys rounded to the given interval unless it is null.
+     */
+    static KeyColumn forMapper(FieldMapper mapper, KeyInterval interval) {
+        KeyColumn column = forMapper(mapper);
+        return interval == null ? column : new BucketKeyColumn(column, interval);
+    }
+
+    static KeyColumn forMapper(FieldMapper mapper) {
+        if (mapper instanceof DateFieldMapper) {
+            return new LongKeyColumn(DATE);
+        } else if (mapper instanceof ByteFieldMapper) {
+            return new ByteKeyColumn();
+        } else if (mapper instanceof ShortFieldMapper) {
+            return new ShortKeyColumn();
+        } else if (mapper instanceof IntegerFieldMapper) {
+            return new IntKeyColumn();
+        } else if (mapper instanceof LongFieldMapper) {
+            return new LongKeyColumn(LONG);
+        } else if (mapper instanceof FloatFieldMapper) {
+            return new FloatKeyColumn();
+        } else if (mapper instanceof DoubleFieldMapper) {
+            return new DoubleKeyColumn();
+        }
+        // String and Boolean (internal value F < T) share the same ordinal dictionary handling.
+        return new StringKeyColumn();
+    }
+
+    final byte type;
+
+    FieldData fieldData;
+
+    KeyColumn(byte type) {
+        this.type = type;
+    }
+
+    void setNextReader(FieldData fieldData) {
+        this.fieldData = fieldData;
+    }
+
+    /**
+     * Calls the given procedure with the ordinals of a document of the current segment, ordinal 0 for a
+     * document without value.
+     */
+    void forEachOrdinalInDoc(int docId, FieldData.OrdinalInDocProc proc) {
+        fieldData.forEachOrdinalInDoc(docId, proc);
+    }
+
+    /**
+     * The segment independent key of the given ordinal of the current segment.
+     */
+    abstract long key(int ordinal);
+
+    /**
+     * The number of ordinals of the current segment, ordinal 0 being the missing value.
+     */
+    abstract int ordinals();
+
+    /**
+     * Materializes the string value of a key previously returned by {@link #key(int)}.
+     */
+    String toString(long key) {
+        return format(type, key);
+    }
+
+    /**
+     * Translates a key of another column of the same field, collected over other documents,
+     * into a key of this column.
+     *
+     * @param dictionary the strings of the other column's keys, see {@link #dictionary()}
+     */
+    long translate(String[] dictionary, long key) {
+        return key;
+    }
+
+    /**
+     * The strings of the keys of a string column by id, null for other columns.
+     */
+    String[] dictionary() {
+        return null;
+    }
+
+    /**
+     * Estimated heap used by the column beyond the group keys, i.e. its dictionary.
+     */
+    long sizeInBytes() {
+        return 0;
+    }
+
+    /**
+     * Drops the values no retained group refers to. The keys of the retained groups are rewritten
+     * in place, before the table compacts them.
+     *
+     * @param groups   the group table, its column values being keys of this column
+     * @param column   the index of this column in the composite keys
+     * @param ids      the retained group ids
+     * @param retained the number of retained group ids
+     */
+    void compact(GroupTable groups, int column, int[] ids, int retained) {
+    }
+
+    /**
+     * Releases any cached resources.
+     */
+    void release() {
+    }
+
+    static class StringKeyColumn extends KeyColumn {
+
+        private final TObjectIntHashMap<String> ids = CacheRecycler.popObjectIntMap();
+
+        private final List<String> dictionary = new ArrayList<String>();
+
+        String[] values;
+
+        // ordinal -> dictionary id + 1, 0 when not resolved yet for the current segment
+        int[] ordToId = new int[0];
+
+        private long dictionaryBytes;
+
+        StringKeyColumn() {
+            super(STRING);
+        }
+
+        @Override
+        void setNextReader(FieldData fieldData) {
+            if (fieldData == this.fieldData) {
+                // another chunk of the same segment, the resolved ordinals still hold
+                return;
+            }
+            super.setNextReader(fieldData);
+            values = ((StringFieldData) fieldData).values();
+            if (ordToId.length < values.length) {
+                ordToId = new int[values.length];
+            } else {
+                Arrays.fill(ordToId, 0, values.length, 0);
+            }
+        }
+
+        @Override
+        long key(int ordinal) {
+            if (ordinal == 0) {
+                return MISSING;
+            }
+            int id = ordToId[ordinal];
+            if (id == 0) {
+                id = idOf(values[ordinal]) + 1;
+                ordToId[ordinal] = id;
+            }
+            return id - 1;
+        }
+
+        @Override
+        int ordinals() {
+            return values.length;
+        }
+
+        @Override
+        long translate(String[] dictionary, long key) {
+            return key == MISSING ? MISSING : idOf(dictionary[(int) key]);
+        }
+
+        @Override
+        String[] dictionary() {
+            return dictionary.toArray(new String[dictionary.size()]);
+        }
+
+        private int idOf(String value) {
+            if (ids.containsKey(value)) {
+                return ids.get(value);
+            }
+            ids.put(value, dictionary.size());
+            dictionary.add(value);
+            dictionaryBytes += bytesOf(value);
+            return dictionary.size() - 1;
+        }
+
+        @Override
+        String toString(long key) {
+            return key == MISSING ? null : dictionary.get((int) key);
+        }
+
+        // the string and its chars, the list slot and the map slot
+        private static long bytesOf(String value) {
+            return 40 + 2 * value.length() + 8 + 24;
+        }
+
+        @Override
+        long sizeInBytes() {
+            return dictionaryBytes + ordToId.length * 4L;
+        }
+
+        @Override
+        void compact(GroupTable groups, int column, int[] ids, int retained) {
+            List<String> values = new ArrayList<String>(dictionary);
+            int[] remap = new int[values.size()];
+            dictionary.clear();
+            this.ids.clear();
+            dictionaryBytes = 0;
+            for (int j = 0; j < retained; j++) {
+                int offset = ids[j] * groups.keyWidth + column;
+                long key = groups.keys[offset];
+                if (key == MISSING) {
+                    continue;
+                }
+                int id = remap[(int) key];
+                if (id == 0) {
+                    String value = values.get((int) key);
+                    this.ids.put(value, dictionary.size());
+                    dictionary.add(value);
+                    dictionaryBytes += bytesOf(value);
+                    id = dictionary.size();
+                    remap[(int) key] = id;
+                }
+                groups.keys[offset] = id - 1;
+            }
+            // ordinals resolve to the new ids again
+            Arrays.fill(ordToId, 0);
+        }
+
+        @Override
+        void release() {
+            CacheRecycler.pushObjectIntMap(ids);
+        }
+    }
+
+    /**
+     * The column of the <tt>key_script</tt>, its keys being the strings of the values the script returns
+     * for a document: null, a value, or a collection or an array of values. The values of a segment get
+     * ordinals in the order they are met, so that a value resolves to its dictionary id once per segment,
+     * as the values of a string field. A segment is never aggregated dense, its ordinals being unknown
+     * until it is collected.
+     */
+    static final class ScriptKeyColumn extends StringKeyColumn {
+
+        private final SearchScript script;
+
+        // the ordinal of every value met in the current segment
+        private final TObjectIntHashMap<String> ordinals = CacheRecycler.popObjectIntMap();
+
+        private int size;
+
+        ScriptKeyColumn(SearchScript script) {
+            this.script = script;
+        }
+
+        @Override
+        void setNextReader(FieldData fieldData) {
+            // the script itself is moved to the segment by the collector, along with the value script
+            ordinals.clear();
+            size = 1;
+            if (values == null) {
+                values = new String[16];
+                ordToId = new int[16];
+            } else {
+                Arrays.fill(ordToId, 0);
+            }
+        }
+
+        @Override
+        void forEachOrdinalInDoc(int docId, FieldData.OrdinalInDocProc proc) {
+            script.setNextDocId(docId);
+            Object value = script.run();
+            if (value == null) {
+                proc.onOrdinal(docId, 0);
+            } else if (value instanceof Collection) {
+                Collection<?> collection = (Collection<?>) value;
+                if (collection.isEmpty()) {
+                    proc.onOrdinal(docId, 0);
+                }
+                for (Object element : collection) {
+                    proc.onOrdinal(docId, ordinalOf(element));
+                }
+            } else if (value instanceof Object[]) {
+                Object[] array = (Object[]) value;
+                if (array.length == 0) {
+                    proc.onOrdinal(docId, 0);
+                }
+                for (Object element : array) {
+                    proc.onOrdinal(docId, ordinalOf(element));
+                }
+            } else {
+                proc.onOrdinal(docId, ordinalOf(value));
+            }
+        }
+
+        private int ordinalOf(Object value) {
+            if (value == null) {
+                return 0;
+            }
+            String string = value.toString();
+            if (ordinals.containsKey(string)) {
+                return ordinals.get(string);
+            }
+            if (size == values.length) {
+                values = Arrays.copyOf(values, size << 1);
+                ordToId = Arrays.copyOf(ordToId, size << 1);
+            }
+            ordinals.put(string, size);
+            values[size] = string;
+            return size++;
+        }
+
+        @Override
+        int ordinals() {
+            return Integer.MAX_VALUE;
+        }
+
+        @Override
+        long sizeInBytes() {
+            // the values of the segment and their map slots, the strings being counted by the dictionary
+            return super.sizeInBytes() + (values == null ? 0 : values.length * 8L) + ordinals.capacity() * 12L;
+        }
+
+        @Override
+        void release() {
+            super.release();
+            CacheRecycler.pushObjectIntMap(ordinals);
+        }
+    }
+
+    static class ByteKeyColumn extends KeyColumn {
+
+        private byte[] values;
+
+        ByteKeyColumn() {
+            super(LONG);
+        }
+
+        @Override
+        void setNextReader(FieldData fieldData) {
+            super.setNextReader(fieldData);
+            values = ((ByteFieldData) fieldData).values();
+        }
+
+        @Override
+        long key(int ordinal) {
+            return values[ordinal];
+        }
+
+        @Override
+        int ordinals() {
+            return values.length;
+        }
+    }
+
+    static class ShortKeyColumn extends KeyColumn {
+
+        private short[] values;
+
+        ShortKeyColumn() {
+            super(LONG);
+        }
+
+        @Override
+        void setNextReader(FieldData fieldData) {
+            super.setNextReader(fieldData);
+            values = ((ShortFieldData) fieldData).values();
+        }
+
+        @Override
+        long key(int ordinal) {
+            return values[ordinal];
+        }
+
+        @Override
+        int ordinals() {
+            return values.length;
+        }
+    }
+
+    static class IntKeyColumn extends KeyColumn {
+
+        private int[] values;
+
+        IntKeyColumn() {
+            super(LONG);
+        }
+
+        @Override
+        void setNextReader(FieldData fieldData) {
+            super.setNextReader(fieldData);
+            values = ((IntFieldData) fieldData).values();
+        }
+
+        @Override
+        long key(int ordinal) {
+            return values[ordinal];
+        }
+
+        @Override
+        int ordinals() {
+            return values.length;
+        }
+    }
+
+    static class LongKeyColumn extends KeyColumn {
+
+        private long[] values;
+
+        LongKeyColumn(byte type) {
+            super(type);
+        }
+
+        @Override
+        void setNextReader(FieldData fieldData) {
+            super.setNextReader(fieldData);
+            values = ((LongFieldData) fieldData).values();
+        }
+
+        @Override
+        long key(int ordinal) {
+            return values[ordinal];
+        }
+
+        @Override
+        int ordinals() {
+            return values.length;
+        }
+    }
+
+    static class FloatKeyColumn extends KeyColumn {
+
+        private float[] values;
+
+        FloatKeyColumn() {
+            super(FLOAT);
+        }
+
+        @Override
+        void setNextReader(FieldData fieldData) {
+            super.setNextReader(fieldData);
+            values = ((FloatFieldData) fieldData).values();
+        }
+
+        @Override
+        long key(int ordinal) {
+            return Double.doubleToLongBits(values[ordinal]);
+        }
+
+        @Override
+        int ordinals() {
+            return values.length;
+        }
+    }
+
+    static class DoubleKeyColumn extends KeyColumn {
+
+        private double[] values;
+
+        DoubleKeyColumn() {
+            super(DOUBLE);
+        }
+
+        @Override
+        void setNextReader(FieldData fieldData) {
+            super.setNextReader(fieldData);
+            values = ((DoubleFieldData) fieldData).values();
+        }
+
+        @Override
+        long key(int ordinal) {
+            return Double.doubleToLongBits(values[ordinal]);
+        }
+
+        @Override
+        int ordinals() {
+            return values.length;
+        }
+    }
+
+    /**
+     * A numeric or date column whose keys are the start of the interval bucket of the values.
+     */
+    static class BucketKeyColumn extends KeyColumn {
+
+        private final KeyColumn values;
+
+        private final KeyInterval interval;
+
+        // ordinal -> rounded key of the current segment, set when its ordinal is in roundedOrdinals; only for
+        // cached intervals
+        private long[] rounded;
+
+        private BitSet roundedOrdinals;
+
+        BucketKeyColumn(KeyColumn values, KeyInterval interval) {
+            super(values.type);
+            this.values = values;
+            this.interval = interval;
+        }
+
+        @Override
+        void setNextReader(FieldData fieldData) {
+            super.setNextReader(fieldData);
+            values.setNextReader(fieldData);
+            if (interval.cached()) {
+                int ordinals = values.ordinals();
+                if (rounded == null || rounded.length < ordinals) {
+                    rounded = new long[ordinals];
+                    roundedOrdinals = new BitSet(ordinals);
+                } else {
+                    roundedOrdinals.clear();
+                }
+            }
+        }
+
+        @Override
+        long key(int ordinal) {
+            if (rounded == null) {
+                return interval.round(values.key(ordinal));
+            }
+            if (!roundedOrdinals.get(ordinal)) {
+                rounded[ordinal] = interval.round(values.key(ordinal));
+                roundedOrdinals.set(ordinal);
+            }
+            return rounded[ordinal];
+        }
+
+        @Override
+        int ordinals() {
+            return values.ordinals();
+        }
+    }
+}
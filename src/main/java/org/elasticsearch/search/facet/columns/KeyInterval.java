@@ -0,0 +1,146 @@
+package org.elasticsearch.search.facet.columns;
+
+import org.elasticsearch.ElasticSearchIllegalArgumentException;
+import org.elasticsearch.common.joda.Joda;
+import org.elasticsearch.common.joda.TimeZoneRounding;
+import org.elasticsearch.common.joda.time.Chronology;
+import org.elasticsearch.common.joda.time.DateTimeField;
+import org.elasticsearch.common.joda.time.chrono.ISOChronology;
+import org.elasticsearch.common.unit.TimeValue;
+
+/**
+ * The interval a numeric or date key column is bucketed by: a key is rounded down to the start of its
+ * bucket, on the primitive key value. Integral and date intervals round the long value, floating point
+ * intervals the double value. Date intervals are either a fixed time value (e.g. <tt>6h</tt>) or a
+ * calendar unit (e.g. <tt>month</tt>), rounded in UTC the way the date histogram facet does.
+ */
+abstract class KeyInterval {
+
+    /**
+     * Parses the interval of a key column of the given type.
+     */
+    static KeyInterval parse(String field, byte type, String interval) {
+        try {
+            if (KeyColumn.isDouble(type)) {
+                return new DoubleInterval(Double.parseDouble(interval));
+            } else if (type == KeyColumn.DATE) {
+                DateTimeField calendarField = calendarField(interval, ISOChronology.getInstanceUTC());
+                if (calendarField != null) {
+                    return new DateInterval(TimeZoneRounding.builder(calendarField).build(), true);
+                }
+                TimeValue time = isNumber(interval) ? new TimeValue(Long.parseLong(interval)) : TimeValue.parseTimeValue(interval, null);
+                if (time.millis() <= 0) {
+                    throw new ElasticSearchIllegalArgumentException("Interval must be positive, got [" + interval + "]");
+                }
+                return new DateInterval(TimeZoneRounding.builder(time).build(), false);
+            } else if (KeyColumn.isLong(type)) {
+                return new LongInterval(Long.parseLong(interval));
+            }
+        } catch (ElasticSearchIllegalArgumentException e) {
+            throw e;
+        } catch (RuntimeException e) {
+            throw new ElasticSearchIllegalArgumentException("Invalid interval [" + interval + "] for key field [" + field + "]", e);
+        }
+        throw new ElasticSearchIllegalArgumentException("Interval set on key field [" + field + "], which is neither numeric nor a date");
+    }
+
+    private static boolean isNumber(String interval) {
+        for (int i = 0; i < interval.length(); i++) {
+            if (!Character.isDigit(interval.charAt(i))) {
+                return false;
+            }
+        }
+        return interval.length() > 0;
+    }
+
+    private static DateTimeField calendarField(String interval, Chronology chronology) {
+        if ("year".equals(interval) || "1y".equals(interval)) {
+            return chronology.year();
+        } else if ("quarter".equals(interval)) {
+            return Joda.QuarterOfYear.getField(chronology);
+        } else if ("month".equals(interval)) {
+            return chronology.monthOfYear();
+        } else if ("week".equals(interval) || "1w".equals(interval)) {
+            return chronology.weekOfWeekyear();
+        } else if ("day".equals(interval) || "1d".equals(interval)) {
+            return chronology.dayOfMonth();
+        } else if ("hour".equals(interval) || "1h".equals(interval)) {
+            return chronology.hourOfDay();
+        } else if ("minute".equals(interval) || "1m".equals(interval)) {
+            return chronology.minuteOfHour();
+        } else if ("second".equals(interval) || "1s".equals(interval)) {
+            return chronology.secondOfMinute();
+        }
+        return null;
+    }
+
+    /**
+     * The start of the bucket of a key value, in the key encoding of the column.
+     */
+    abstract long round(long key);
+
+    /**
+     * Whether rounding costs more than a lookup, so that it is done once per ordinal of a segment.
+     */
+    boolean cached() {
+        return false;
+    }
+
+    static final class LongInterval extends KeyInterval {
+
+        private final long interval;
+
+        LongInterval(long interval) {
+            if (interval <= 0) {
+                throw new ElasticSearchIllegalArgumentException("Interval must be positive, got [" + interval + "]");
+            }
+            this.interval = interval;
+        }
+
+        @Override
+        long round(long key) {
+            long offset = key % interval;
+            return offset < 0 ? key - offset - interval : key - offset;
+        }
+    }
+
+    static final class DoubleInterval extends KeyInterval {
+
+        private final double interval;
+
+        DoubleInterval(double interval) {
+            if (!(interval > 0)) {
+                throw new ElasticSearchIllegalArgumentException("Interval must be positive, got [" + interval + "]");
+            }
+            this.interval = interval;
+        }
+
+        @Override
+        long round(long key) {
+            double value = Double.longBitsToDouble(key);
+            return Double.doubleToLongBits(Math.floor(value / interval) * interval);
+        }
+    }
+
+    static final class DateInterval extends KeyInterval {
+
+        private final TimeZoneRounding rounding;
+
+        private final boolean calendar;
+
+        DateInterval(TimeZoneRounding rounding, boolean calendar) {
+            this.rounding = rounding;
+            this.calendar = calendar;
+        }
+
+        @Override
+        long round(long key) {
+            return rounding.calc(key);
+        }
+
+        @Override
+        boolean cached() {
+            return calendar;
+        }
+    }
+}
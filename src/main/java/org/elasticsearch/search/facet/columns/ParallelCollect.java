@@ -0,0 +1,218 @@
+package org.elasticsearch.search.facet.columns;
+
+import org.elasticsearch.ElasticSearchException;
+import org.elasticsearch.ElasticSearchInterruptedException;
+import org.elasticsearch.common.util.concurrent.EsExecutors;
+import org.elasticsearch.index.field.data.FieldData;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Collects the documents of a columns facet on a node wide pool of threads. The matching documents of
+ * a segment are buffered in chunks and each chunk is collected by a task into the group table of a
+ * worker {@link ColumnsProc}. A worker is used by one task at a time, so a facet has at most as many
+ * workers as the pool has threads. The workers are merged once every task completed. When the queue of
+ * the pool is full, or the pool is shut down with the node, a chunk is collected on the calling thread.
+ */
+abstract class ParallelCollect {
+
+    // Whether facets collect their segments on the columns facet pool, unless the request says
+    // otherwise with parallel.
+    // Usage:
+    // in config/elasticsearch.yml
+    // columns_facet.parallel = true
+    static boolean Parallel = Boolean.parseBoolean(Config.get("columns_facet.parallel", "false"));
+
+    // Threads of the node wide pool collecting the parallel facets, the available processors by default.
+    // Usage:
+    // in config/elasticsearch.yml
+    // columns_facet.parallel.threads = 16
+    static int Threads = Integer.parseInt(Config.get("columns_facet.parallel.threads",
+            Integer.toString(Runtime.getRuntime().availableProcessors())));
+
+    // Matching documents collected by one task, a large segment is split into chunks collected concurrently.
+    // Usage:
+    // in config/elasticsearch.yml
+    // columns_facet.parallel.chunk_docs = 65536
+    static int ChunkDocs = Integer.parseInt(Config.get("columns_facet.parallel.chunk_docs", "65536"));
+
+    // Chunks waiting for a thread of the pool, past that the searching threads collect their chunks themselves.
+    // Usage:
+    // in config/elasticsearch.yml
+    // columns_facet.parallel.queue_size = 64
+    static int QueueSize = Integer.parseInt(Config.get("columns_facet.parallel.queue_size",
+            Integer.toString(Threads * 4)));
+
+    private static ThreadPoolExecutor executor;
+
+    private static synchronized ThreadPoolExecutor executor() {
+        if (executor == null) {
+            executor = new ThreadPoolExecutor(Threads, Threads, 60, TimeUnit.SECONDS,
+                    new ArrayBlockingQueue<Runnable>(QueueSize), EsExecutors.daemonThreadFactory("columns_facet"));
+            executor.allowCoreThreadTimeOut(true);
+        }
+        return executor;
+    }
+
+    /**
+     * Shuts the pool down, called when the node closes. The running chunks complete.
+     */
+    static synchronized void shutdown() {
+        if (executor != null) {
+            executor.shutdown();
+            executor = null;
+        }
+    }
+
+    private final List<Future<?>> tasks = new ArrayList<Future<?>>();
+
+    private final Queue<ColumnsProc> idle = new ConcurrentLinkedQueue<ColumnsProc>();
+
+    private final List<ColumnsProc> workers = new ArrayList<ColumnsProc>();
+
+    private List<FieldData> valueFieldsData;
+
+    private List<FieldData> keyFieldsData;
+
+    private int[] docs = new int[Math.min(1024, ChunkDocs)];
+
+    private int docCount;
+
+    /**
+     * Creates the processor of a worker, called from the pool threads.
+     */
+    abstract ColumnsProc newWorker();
+
+    void setNextReader(List<FieldData> valueFieldsData, List<FieldData> keyFieldsData) {
+        submit();
+        this.valueFieldsData = valueFieldsData;
+        this.keyFieldsData = keyFieldsData;
+    }
+
+    void collect(int doc) {
+        if (docCount == docs.length) {
+            if (docCount >= ChunkDocs) {
+                submit();
+            } else {
+                int[] grown = new int[Math.min(docCount << 1, ChunkDocs)];
+                System.arraycopy(docs, 0, grown, 0, docCount);
+                docs = grown;
+            }
+        }
+        docs[docCount++] = doc;
+    }
+
+    /**
+     * Waits for every chunk to be collected.
+     *
+     * @return the workers, to be merged
+     */
+    List<ColumnsProc> finish() {
+        submit();
+        try {
+            for (Future<?> task : tasks) {
+                task.get();
+            }
+        } catch (InterruptedException e) {
+            abort();
+            Thread.currentThread().interrupt();
+            throw new ElasticSearchInterruptedException("Interrupted while collecting the columns facet", e);
+        } catch (ExecutionException e) {
+            abort();
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new ElasticSearchException("Failed to collect the columns facet", e.getCause());
+        }
+        synchronized (workers) {
+            return new ArrayList<ColumnsProc>(workers);
+        }
+    }
+
+    private void submit() {
+        if (docCount == 0) {
+            return;
+        }
+        Chunk chunk = new Chunk(valueFieldsData, keyFieldsData, docs, docCount);
+        docs = new int[docs.length];
+        docCount = 0;
+        try {
+            tasks.add(executor().submit(chunk));
+        } catch (RejectedExecutionException e) {
+            // the pool is saturated or shut down
+            try {
+                chunk.run();
+            } catch (RuntimeException t) {
+                abort();
+                throw t;
+            }
+        }
+    }
+
+    /**
+     * Cancels the chunks not started yet, waits for the running ones and releases the workers.
+     */
+    private void abort() {
+        for (Future<?> task : tasks) {
+            if (!task.cancel(false)) {
+                try {
+                    task.get();
+                } catch (Exception e) {
+                    // already failing
+                }
+            }
+        }
+        synchronized (workers) {
+            for (ColumnsProc worker : workers) {
+                worker.release();
+            }
+        }
+    }
+
+    private final class Chunk implements Runnable {
+
+        private final List<FieldData> valueFieldsData;
+
+        private final List<FieldData> keyFieldsData;
+
+        private final int[] docs;
+
+        private final int docCount;
+
+        Chunk(List<FieldData> valueFieldsData, List<FieldData> keyFieldsData, int[] docs, int docCount) {
+            this.valueFieldsData = valueFieldsData;
+            this.keyFieldsData = keyFieldsData;
+            this.docs = docs;
+            this.docCount = docCount;
+        }
+
+        @Override
+        public void run() {
+            ColumnsProc worker = idle.poll();
+            if (worker == null) {
+                worker = newWorker();
+                synchronized (workers) {
+                    workers.add(worker);
+                }
+            }
+            try {
+                worker.setValueFieldsData(valueFieldsData);
+                worker.setKeyFieldsData(keyFieldsData);
+                for (int i = 0; i < docCount; i++) {
+                    worker.collect(docs[i]);
+                }
+            } finally {
+                idle.offer(worker);
+            }
+        }
+    }
+}
@@ -0,0 +1,184 @@
+package org.elasticsearch.search.facet.columns;
+
+import org.elasticsearch.common.io.stream.InputStreamStreamInput;
+import org.elasticsearch.common.io.stream.OutputStreamStreamOutput;
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * Sorted runs of partially merged entries, spilled to local disk by the reduce phase when the merged groups
+ * exceed {@link #SpillThreshold}. The runs are then merged back by a {@link SortedEntryMerge}, so that only
+ * one entry per run is in memory.
+ */
+final class ReduceSpill implements Closeable {
+
+    // Number of merged groups above which the reduce phase spills them to a sorted run on disk.
+    // 0 or clear means never spill.
+    // Usage:
+    // in config/elasticsearch.yml
+    // columns_facet.reduce.spill_threshold = 1000000
+    static int SpillThreshold = Integer.parseInt(Config.get("columns_facet.reduce.spill_threshold", "0"));
+
+    // Directory of the spilled runs, java.io.tmpdir by default.
+    // Usage:
+    // in config/elasticsearch.yml
+    // columns_facet.reduce.spill_dir = /var/tmp
+    static String SpillDir = Config.get("columns_facet.reduce.spill_dir", System.getProperty("java.io.tmpdir"));
+
+    private final byte[] keyTypes;
+
+    private final List<File> runs = new ArrayList<File>();
+
+    private final List<StreamInput> inputs = new ArrayList<StreamInput>();
+
+    ReduceSpill(byte[] keyTypes) {
+        this.keyTypes = keyTypes;
+    }
+
+    boolean isEmpty() {
+        return runs.isEmpty();
+    }
+
+    /**
+     * Writes the entries, sorted by key, to a new run.
+     */
+    void spill(Collection<InternalFullColumnsFacet.FullEntry> entries) throws IOException {
+        InternalFullColumnsFacet.FullEntry[] sorted = entries.toArray(new InternalFullColumnsFacet.FullEntry[entries.size()]);
+        Arrays.sort(sorted, EntryKeyOrder.INSTANCE);
+
+        File run = File.createTempFile("columns-facet-reduce", ".run", new File(SpillDir));
+        runs.add(run);
+        StreamOutput out = new OutputStreamStreamOutput(new BufferedOutputStream(new FileOutputStream(run), 64 * 1024));
+        try {
+            out.writeVInt(sorted.length);
+            for (InternalFullColumnsFacet.FullEntry entry : sorted) {
+                writeEntry(out, entry);
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Merges the runs: every group once, in key order, its entries combined.
+     */
+    Iterator<InternalFullColumnsFacet.FullEntry> merge() throws IOException {
+        List<Run> sources = new ArrayList<Run>(runs.size());
+        for (File file : runs) {
+            StreamInput in = new InputStreamStreamInput(new BufferedInputStream(new FileInputStream(file), 64 * 1024));
+            inputs.add(in);
+            sources.add(new Run(in, in.readVInt()));
+        }
+        return new SortedEntryMerge(sources);
+    }
+
+    /**
+     * Closes and deletes the runs.
+     */
+    @Override
+    public void close() {
+        for (StreamInput in : inputs) {
+            try {
+                in.close();
+            } catch (IOException e) {
+                // best effort, the file is deleted anyway
+            }
+        }
+        for (File run : runs) {
+            run.delete();
+        }
+        inputs.clear();
+        runs.clear();
+    }
+
+    private void writeEntry(StreamOutput out, InternalFullColumnsFacet.FullEntry entry) throws IOException {
+        for (int i = 0; i < keyTypes.length; i++) {
+            if (keyTypes[i] == KeyColumn.STRING) {
+                out.writeOptionalString(entry.keys[i]);
+            } else {
+                out.writeLong(entry.values[i]);
+            }
+        }
+        out.writeVLong(entry.count);
+        // negative until the bounds of all the shards are added back
+        out.writeLong(entry.countError);
+        entry.writeAggregates(out);
+        if (entry.valueAggregates != null) {
+            out.writeVInt(entry.valueAggregates.length);
+            for (InternalFullColumnsFacet.ValueAggregates aggregates : entry.valueAggregates) {
+                aggregates.writeAggregates(out);
+            }
+        } else {
+            out.writeVInt(0);
+        }
+        HyperLogLog.writeTo(out, entry.distinct);
+        TDigest.writeTo(out, entry.digest);
+        out.writeDouble(entry.countVariance);
+    }
+
+    private InternalFullColumnsFacet.FullEntry readEntry(StreamInput in) throws IOException {
+        String[] keys = new String[keyTypes.length];
+        long[] values = new long[keyTypes.length];
+        for (int i = 0; i < keyTypes.length; i++) {
+            if (keyTypes[i] == KeyColumn.STRING) {
+                keys[i] = in.readOptionalString();
+            } else {
+                values[i] = in.readLong();
+            }
+        }
+        InternalFullColumnsFacet.FullEntry entry = new InternalFullColumnsFacet.FullEntry(keys, values, keyTypes,
+                in.readVLong(), 0, 0, 0, 0);
+        entry.countError = in.readLong();
+        entry.readAggregates(in);
+        int valueAggregates = in.readVInt();
+        if (valueAggregates > 0) {
+            entry.valueAggregates = new InternalFullColumnsFacet.ValueAggregates[valueAggregates];
+            for (int i = 0; i < valueAggregates; i++) {
+                entry.valueAggregates[i] = new InternalFullColumnsFacet.ValueAggregates();
+                entry.valueAggregates[i].readAggregates(in);
+            }
+        }
+        entry.distinct = HyperLogLog.readFrom(in);
+        entry.digest = TDigest.readFrom(in);
+        entry.countVariance = in.readDouble();
+        return entry;
+    }
+
+    private final class Run implements Iterator<InternalFullColumnsFacet.FullEntry> {
+
+        private final StreamInput in;
+
+        private int remaining;
+
+        Run(StreamInput in, int size) {
+            this.in = in;
+            this.remaining = size;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return remaining > 0;
+        }
+
+        @Override
+        public InternalFullColumnsFacet.FullEntry next() {
+            if (remaining == 0) {
+                throw new NoSuchElementException();
+            }
+            remaining--;
+            try {
+                return readEntry(in);
+            } catch (IOException e) {
+                throw new IllegalStateException("Failed to read a spilled columns facet run", e);
+            }
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
+}
@@ -0,0 +1,54 @@
+package org.elasticsearch.search.facet.columns;
+
+import org.elasticsearch.client.Client;
+import org.elasticsearch.cluster.ClusterService;
+import org.elasticsearch.cluster.node.DiscoveryNode;
+import org.elasticsearch.common.inject.Inject;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.rest.*;
+
+import java.io.IOException;
+
+import static org.elasticsearch.rest.RestRequest.Method.GET;
+import static org.elasticsearch.rest.action.support.RestXContentBuilder.restContentBuilder;
+
+/**
+ * Returns the columns facet metrics of the node receiving the request:
+ * <tt>curl -XGET 'http://localhost:9200/_columns_facet/stats?pretty'</tt>.
+ */
+public class RestColumnsFacetStatsAction extends BaseRestHandler {
+
+    private final ClusterService clusterService;
+
+    @Inject
+    public RestColumnsFacetStatsAction(Settings settings, Client client, RestController controller, ClusterService clusterService) {
+        super(settings, client);
+        this.clusterService = clusterService;
+        controller.registerHandler(GET, "/_columns_facet/stats", this);
+    }
+
+    @Override
+    public void handleRequest(RestRequest request, RestChannel channel) {
+        try {
+            XContentBuilder builder = restContentBuilder(request);
+            DiscoveryNode node = clusterService.localNode();
+            builder.startObject();
+            builder.startObject("node");
+            builder.field("id", node.id());
+            builder.field("name", node.name());
+            builder.endObject();
+            builder.startObject(ColumnsFacet.TYPE);
+            ColumnsFacetStats.nodeStatsToXContent(builder);
+            builder.endObject();
+            builder.endObject();
+            channel.sendResponse(new XContentRestResponse(request, RestStatus.OK, builder));
+        } catch (Exception e) {
+            try {
+                channel.sendResponse(new XContentThrowableRestResponse(request, e));
+            } catch (IOException e1) {
+                logger.error("Failed to send failure response", e1);
+            }
+        }
+    }
+}
@@ -0,0 +1,177 @@
+package org.elasticsearch.search.facet.columns;
+
+import org.elasticsearch.common.cache.Cache;
+import org.elasticsearch.common.cache.CacheBuilder;
+import org.elasticsearch.common.cache.RemovalListener;
+import org.elasticsearch.common.cache.RemovalNotification;
+import org.elasticsearch.common.cache.Weigher;
+import org.elasticsearch.common.metrics.CounterMetric;
+import org.elasticsearch.index.shard.ShardId;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Node level cache of the serialized shard results of the columns facets requested with <tt>cache</tt>.
+ * A result is keyed by its shard and the version of the shard reader, and by the request (see
+ * {@link FacetRequestKey}), so a request repeated before the shard is refreshed skips the collection. Once a newer
+ * reader of a shard is seen, the results of its older readers are dropped; the cache is bounded by the
+ * bytes of the results.
+ * <p/>
+ * Results are kept serialized: the reduce merges into the entries of the shard results, so every hit reads
+ * a fresh copy.
+ */
+final class ResultCache {
+
+    // Bytes of shard results cached on the node, or a percentage of the heap. 0 disables the cache.
+    // Usage:
+    // in config/elasticsearch.yml
+    // columns_facet.result_cache.size = 1%
+    static long Size = GroupMemoryBudget.parseLimit(Config.get("columns_facet.result_cache.size", "1%"));
+
+    static final CounterMetric NodeHits = new CounterMetric();
+    static final CounterMetric NodeMisses = new CounterMetric();
+
+    private static final Cache<Key, byte[]> cache = Size > 0 ? CacheBuilder.newBuilder()
+            .maximumWeight(Size)
+            .weigher(new Weigher<Key, byte[]>() {
+                @Override
+                public int weigh(Key key, byte[] result) {
+                    return result.length;
+                }
+            })
+            .removalListener(new RemovalListener<Key, byte[]>() {
+                @Override
+                public void onRemoval(RemovalNotification<Key, byte[]> notification) {
+                    // evicted by size: the key set of the shard is concurrent, no need for its lock
+                    ShardResults shard = shards.get(notification.getKey().shardId);
+                    if (shard != null && notification.wasEvicted()) {
+                        shard.keys.remove(notification.getKey());
+                    }
+                }
+            })
+            .<Key, byte[]>build() : null;
+
+    // the newest reader version seen per shard, and the keys of the results cached for it, until the shard closes
+    private static final ConcurrentMap<ShardId, ShardResults> shards = new ConcurrentHashMap<ShardId, ShardResults>();
+
+    private ResultCache() {
+    }
+
+    static boolean enabled() {
+        return cache != null;
+    }
+
+    /**
+     * The serialized result of a facet, null if it is not cached. A key of a newer reader drops the results
+     * of the older readers of its shard.
+     */
+    static byte[] get(Key key) {
+        ShardResults shard = shard(key.shardId);
+        synchronized (shard) {
+            if (shard.readerVersion < key.readerVersion) {
+                shard.readerVersion = key.readerVersion;
+                cache.invalidateAll(shard.keys);
+                shard.keys.clear();
+            }
+        }
+        byte[] result = cache.getIfPresent(key);
+        if (result != null) {
+            NodeHits.inc();
+        } else {
+            NodeMisses.inc();
+        }
+        return result;
+    }
+
+    static void put(Key key, byte[] result) {
+        ShardResults shard = shard(key.shardId);
+        synchronized (shard) {
+            // a result of an older reader would never be read again
+            if (shard.readerVersion <= key.readerVersion) {
+                shard.keys.add(key);
+                cache.put(key, result);
+            }
+        }
+    }
+
+    /**
+     * Drops the results of a closed shard along with what is tracked for it.
+     */
+    static void clear(ShardId shardId) {
+        ShardResults shard = shards.remove(shardId);
+        if (shard != null && cache != null) {
+            synchronized (shard) {
+                cache.invalidateAll(shard.keys);
+                shard.keys.clear();
+            }
+        }
+    }
+
+    private static ShardResults shard(ShardId shardId) {
+        ShardResults shard = shards.get(shardId);
+        if (shard == null) {
+            ShardResults created = new ShardResults();
+            shard = shards.putIfAbsent(shardId, created);
+            if (shard == null) {
+                shard = created;
+            }
+        }
+        return shard;
+    }
+
+    static long sizeInBytes() {
+        long bytes = 0;
+        if (cache != null) {
+            for (byte[] result : cache.asMap().values()) {
+                bytes += result.length;
+            }
+        }
+        return bytes;
+    }
+
+    /**
+     * The newest reader version seen for a shard and the keys of its cached results, updated under the lock
+     * of the instance so a refresh drops exactly the results of the shard.
+     */
+    private static final class ShardResults {
+
+        long readerVersion = Long.MIN_VALUE;
+
+        final Set<Key> keys = Collections.newSetFromMap(new ConcurrentHashMap<Key, Boolean>());
+    }
+
+    /**
+     * A shard result: the shard and the version of its reader, and the request.
+     */
+    static final class Key {
+
+        final ShardId shardId;
+
+        final long readerVersion;
+
+        private final FacetRequestKey request;
+
+        Key(ShardId shardId, long readerVersion, FacetRequestKey request) {
+            this.shardId = shardId;
+            this.readerVersion = readerVersion;
+            this.request = request;
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * (31 * shardId.hashCode() + (int) (readerVersion ^ (readerVersion >>> 32))) + request.hashCode();
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            return readerVersion == other.readerVersion && shardId.equals(other.shardId) && request.equals(other.request);
+        }
+    }
+}
@@ -0,0 +1,160 @@
+package org.elasticsearch.search.facet.columns;
+
+import org.elasticsearch.common.cache.Cache;
+import org.elasticsearch.common.cache.CacheBuilder;
+import org.elasticsearch.common.cache.Weigher;
+import org.elasticsearch.common.metrics.CounterMetric;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+
+/**
+ * Node level cache of the groups collected from a segment by the columns facets requested with
+ * <tt>segment_cache</tt>. The groups of a segment are keyed by the core of the segment and its live
+ * documents, and by the request (see {@link FacetRequestKey}), so after a refresh only the new and the
+ * merged segments are collected, the groups of the others being merged from the cache.
+ * <p/>
+ * A segment is only referenced weakly: once it is merged away and closed its groups are dropped. The
+ * cached groups are shared by the requests, so they are only read, see {@link ColumnsProc#merge(Partial)}.
+ */
+final class SegmentCache {
+
+    // Bytes of segment groups cached on the node, or a percentage of the heap. 0 disables the cache.
+    // Usage:
+    // in config/elasticsearch.yml
+    // columns_facet.segment_cache.size = 2%
+    static long Size = GroupMemoryBudget.parseLimit(Config.get("columns_facet.segment_cache.size", "2%"));
+
+    static final CounterMetric NodeHits = new CounterMetric();
+    static final CounterMetric NodeMisses = new CounterMetric();
+
+    private static final Cache<Key, Partial> cache = Size > 0 ? CacheBuilder.newBuilder()
+            .maximumWeight(Size)
+            .weigher(new Weigher<Key, Partial>() {
+                @Override
+                public int weigh(Key key, Partial partial) {
+                    return (int) Math.min(partial.sizeInBytes, Integer.MAX_VALUE);
+                }
+            })
+            .<Key, Partial>build() : null;
+
+    // the keys of the segments collected by the garbage collector
+    private static final ReferenceQueue<Object> closedSegments = new ReferenceQueue<Object>();
+
+    private SegmentCache() {
+    }
+
+    static boolean enabled() {
+        return cache != null;
+    }
+
+    /**
+     * The groups of a segment, null if they are not cached.
+     */
+    static Partial get(Key key) {
+        purge();
+        Partial partial = cache.getIfPresent(key);
+        if (partial != null) {
+            NodeHits.inc();
+        } else {
+            NodeMisses.inc();
+        }
+        return partial;
+    }
+
+    static void put(Key key, Partial partial) {
+        cache.put(key, partial);
+    }
+
+    private static void purge() {
+        Reference<?> closed;
+        while ((closed = closedSegments.poll()) != null) {
+            cache.invalidate(((SegmentReference) closed).key);
+        }
+    }
+
+    static long sizeInBytes() {
+        long bytes = 0;
+        if (cache != null) {
+            for (Partial partial : cache.asMap().values()) {
+                bytes += partial.sizeInBytes;
+            }
+        }
+        return bytes;
+    }
+
+    /**
+     * The groups collected from a segment, with the strings of their string keys.
+     */
+    static final class Partial {
+
+        final GroupTable groups;
+
+        // the strings of the keys by id, per key column, null for the other columns
+        final String[][] dictionaries;
+
+        final long sizeInBytes;
+
+        // the hits of the segment and those sampled, reported by sampling facets
+        final long hits;
+
+        final long sampled;
+
+        Partial(GroupTable groups, String[][] dictionaries, long sizeInBytes, long hits, long sampled) {
+            this.groups = groups;
+            this.dictionaries = dictionaries;
+            this.sizeInBytes = sizeInBytes;
+            this.hits = hits;
+            this.sampled = sampled;
+        }
+    }
+
+    /**
+     * The groups of a segment: its core, which does not change when documents get deleted, the number of
+     * its live documents, which does, and the request.
+     */
+    static final class Key {
+
+        private final SegmentReference segment;
+
+        private final int segmentHash;
+
+        private final int numDocs;
+
+        private final FacetRequestKey request;
+
+        Key(Object segmentCoreKey, int numDocs, FacetRequestKey request) {
+            this.segment = new SegmentReference(segmentCoreKey, this);
+            this.segmentHash = System.identityHashCode(segmentCoreKey);
+            this.numDocs = numDocs;
+            this.request = request;
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * (31 * segmentHash + numDocs) + request.hashCode();
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            // a closed segment equals no other one, but its own key for the purge
+            return this == other || (segmentHash == other.segmentHash && numDocs == other.numDocs
+                    && segment.get() != null && segment.get() == other.segment.get() && request.equals(other.request));
+        }
+    }
+
+    private static final class SegmentReference extends WeakReference<Object> {
+
+        final Key key;
+
+        SegmentReference(Object segmentCoreKey, Key key) {
+            super(segmentCoreKey, closedSegments);
+            this.key = key;
+        }
+    }
+}
@@ -0,0 +1,88 @@
+package org.elasticsearch.search.facet.columns;
+
+import org.apache.lucene.util.PriorityQueue;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * Merges sources of entries sorted in {@link EntryKeyOrder} into one sorted sequence with every group once,
+ * the entries of a group being combined into the first one.
+ */
+final class SortedEntryMerge implements Iterator<InternalFullColumnsFacet.FullEntry> {
+
+    private final SourceQueue queue;
+
+    SortedEntryMerge(List<? extends Iterator<InternalFullColumnsFacet.FullEntry>> sources) {
+        queue = new SourceQueue(sources.size());
+        for (Iterator<InternalFullColumnsFacet.FullEntry> entries : sources) {
+            Source source = new Source(entries);
+            if (source.next()) {
+                queue.add(source);
+            }
+        }
+    }
+
+    @Override
+    public boolean hasNext() {
+        return queue.size() > 0;
+    }
+
+    @Override
+    public InternalFullColumnsFacet.FullEntry next() {
+        if (queue.size() == 0) {
+            throw new NoSuchElementException();
+        }
+        InternalFullColumnsFacet.FullEntry merged = advance();
+        while (queue.size() > 0 && EntryKeyOrder.INSTANCE.compare(queue.top().current, merged) == 0) {
+            merged.merge(advance());
+        }
+        return merged;
+    }
+
+    // the smallest entry of all sources, moving its source forward
+    private InternalFullColumnsFacet.FullEntry advance() {
+        Source source = queue.top();
+        InternalFullColumnsFacet.FullEntry entry = source.current;
+        if (source.next()) {
+            queue.updateTop();
+        } else {
+            queue.pop();
+        }
+        return entry;
+    }
+
+    @Override
+    public void remove() {
+        throw new UnsupportedOperationException();
+    }
+
+    private static final class Source {
+
+        private final Iterator<InternalFullColumnsFacet.FullEntry> entries;
+
+        InternalFullColumnsFacet.FullEntry current;
+
+        Source(Iterator<InternalFullColumnsFacet.FullEntry> entries) {
+            this.entries = entries;
+        }
+
+        boolean next() {
+            current = entries.hasNext() ? entries.next() : null;
+            return current != null;
+        }
+    }
+
+    private static final class SourceQueue extends PriorityQueue<Source> {
+
+        SourceQueue(int sources) {
+            initialize(sources);
+        }
+
+        @Override
+        protected boolean lessThan(Source a, Source b) {
+            return EntryKeyOrder.INSTANCE.compare(a.current, b.current) < 0;
+        }
+    }
+}
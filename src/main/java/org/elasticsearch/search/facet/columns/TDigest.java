@@ -0,0 +1,304 @@
+package org.elasticsearch.search.facet.columns;
+
+import org.elasticsearch.ElasticSearchIllegalArgumentException;
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Merging t-digest of the values of a group, estimating their quantiles. Values are buffered in a
+ * primitive array and merged into centroids (mean, weight) sorted by mean once the buffer is full, so
+ * adding a value does not allocate. A centroid may only grow while it spans one unit of the
+ * <tt>k(q) = compression / 2&pi; asin(2q - 1)</tt> scale, which keeps the centroids near the tails small:
+ * a digest has at most about <tt>compression</tt> centroids, and the extreme quantiles stay accurate.
+ * <p/>
+ * Digests of the same compression merge by merging their centroids. Groups with fewer values than
+ * the buffer holds keep them all, their quantiles being exact.
+ */
+final class TDigest {
+
+    // Default compression of the percentiles digests: about compression centroids, 16 bytes each, per
+    // group, and a quantile error of a few tenths of a percent of the values. Can be overridden per
+    // request with percentiles_compression.
+    // Usage:
+    // in config/elasticsearch.yml
+    // columns_facet.percentiles_compression = 100
+    static int DefaultCompression = Integer.parseInt(Config.get("columns_facet.percentiles_compression", "100"));
+
+    static final int MIN_COMPRESSION = 10;
+
+    static final int MAX_COMPRESSION = 1000;
+
+    static void checkCompression(int compression) {
+        if (compression < MIN_COMPRESSION || compression > MAX_COMPRESSION) {
+            throw new ElasticSearchIllegalArgumentException("Percentiles compression must be between " + MIN_COMPRESSION
+                    + " and " + MAX_COMPRESSION + ", got [" + compression + "]");
+        }
+    }
+
+    private static final int INITIAL_BUFFER = 8;
+
+    final int compression;
+
+    private double[] means;
+
+    private long[] weights;
+
+    private int centroids;
+
+    // the merge output, swapped with the centroids
+    private double[] mergedMeans;
+
+    private long[] mergedWeights;
+
+    private double[] buffer;
+
+    private int buffered;
+
+    private long count;
+
+    private double min = Double.POSITIVE_INFINITY;
+
+    private double max = Double.NEGATIVE_INFINITY;
+
+    TDigest(int compression) {
+        this.compression = compression;
+        this.buffer = new double[INITIAL_BUFFER];
+        this.means = new double[0];
+        this.weights = new long[0];
+    }
+
+    private int maxBuffer() {
+        return compression * 2;
+    }
+
+    /**
+     * Adds a value.
+     */
+    void add(double value) {
+        if (buffered == buffer.length) {
+            if (buffer.length < maxBuffer()) {
+                buffer = Arrays.copyOf(buffer, Math.min(buffer.length * 2, maxBuffer()));
+            } else {
+                compress();
+            }
+        }
+        buffer[buffered++] = value;
+        count++;
+        if (value < min) {
+            min = value;
+        }
+        if (value > max) {
+            max = value;
+        }
+    }
+
+    /**
+     * Adds the values of another digest of the same compression.
+     */
+    void merge(TDigest other) {
+        if (other.compression != compression) {
+            throw new ElasticSearchIllegalArgumentException("Cannot merge percentiles digests of compression ["
+                    + compression + "] and [" + other.compression + "]");
+        }
+        other.compress();
+        compress();
+        mergeCentroids(other.means, other.weights, other.centroids);
+        count += other.count;
+        min = Math.min(min, other.min);
+        max = Math.max(max, other.max);
+    }
+
+    /**
+     * A copy of the digest, which can be added to without changing this one.
+     */
+    TDigest copy() {
+        compress();
+        TDigest copy = new TDigest(compression);
+        copy.means = Arrays.copyOf(means, centroids);
+        copy.weights = Arrays.copyOf(weights, centroids);
+        copy.centroids = centroids;
+        copy.count = count;
+        copy.min = min;
+        copy.max = max;
+        return copy;
+    }
+
+    /**
+     * Merges the buffered values into the centroids. A compressed digest is only read when merged into
+     * another one or copied.
+     */
+    void compress() {
+        if (buffered == 0) {
+            return;
+        }
+        Arrays.sort(buffer, 0, buffered);
+        mergeCentroids(buffer, null, buffered);
+        buffered = 0;
+    }
+
+    /**
+     * Merges sorted points, of weight 1 when <tt>otherWeights</tt> is null, with the centroids.
+     */
+    private void mergeCentroids(double[] otherMeans, long[] otherWeights, int otherCount) {
+        int capacity = centroids + otherCount;
+        if (mergedMeans == null || mergedMeans.length < capacity) {
+            mergedMeans = new double[capacity];
+            mergedWeights = new long[capacity];
+        }
+        long total = 0;
+        for (int i = 0; i < centroids; i++) {
+            total += weights[i];
+        }
+        if (otherWeights == null) {
+            total += otherCount;
+        } else {
+            for (int i = 0; i < otherCount; i++) {
+                total += otherWeights[i];
+            }
+        }
+
+        int merged = 0;
+        long weightSoFar = 0;
+        double limit = 0;
+        int i = 0;
+        int j = 0;
+        while (i < centroids || j < otherCount) {
+            double mean;
+            long weight;
+            if (j == otherCount || (i < centroids && means[i] <= otherMeans[j])) {
+                mean = means[i];
+                weight = weights[i++];
+            } else {
+                mean = otherMeans[j];
+                weight = otherWeights == null ? 1 : otherWeights[j];
+                j++;
+            }
+            if (merged > 0 && weightSoFar + weight <= limit) {
+                // absorbed by the current centroid, its mean moving towards the point
+                long current = mergedWeights[merged - 1] + weight;
+                mergedMeans[merged - 1] += (mean - mergedMeans[merged - 1]) * weight / current;
+                mergedWeights[merged - 1] = current;
+            } else {
+                // a new centroid, which may grow up to one unit of the scale further
+                double q = (double) weightSoFar / total;
+                limit = total * quantileOf(scaleOf(q) + 1);
+                mergedMeans[merged] = mean;
+                mergedWeights[merged] = weight;
+                merged++;
+            }
+            weightSoFar += weight;
+        }
+
+        double[] swapMeans = means;
+        long[] swapWeights = weights;
+        means = mergedMeans;
+        weights = mergedWeights;
+        mergedMeans = swapMeans;
+        mergedWeights = swapWeights;
+        centroids = merged;
+    }
+
+    private double scaleOf(double q) {
+        return compression / (2 * Math.PI) * Math.asin(2 * q - 1);
+    }
+
+    private double quantileOf(double k) {
+        if (k >= compression / 4.0) {
+            return 1;
+        }
+        return (Math.sin(k * 2 * Math.PI / compression) + 1) / 2;
+    }
+
+    /**
+     * The number of values added.
+     */
+    long count() {
+        return count;
+    }
+
+    /**
+     * Estimates the value below which the given fraction of the values fall, interpolating between the
+     * centers of the centroids, the min and the max. NaN without values.
+     */
+    double quantile(double q) {
+        compress();
+        if (centroids == 0) {
+            return Double.NaN;
+        }
+        if (q <= 0) {
+            return min;
+        }
+        if (q >= 1) {
+            return max;
+        }
+        double target = q * count;
+        // below the center of the first centroid, between the min and that center
+        double center = weights[0] / 2.0;
+        if (target < center) {
+            return min + (means[0] - min) * target / center;
+        }
+        for (int i = 1; i < centroids; i++) {
+            double nextCenter = center + (weights[i - 1] + weights[i]) / 2.0;
+            if (target < nextCenter) {
+                return means[i - 1] + (means[i] - means[i - 1]) * (target - center) / (nextCenter - center);
+            }
+            center = nextCenter;
+        }
+        // past the center of the last centroid, between that center and the max
+        double last = count - center;
+        return means[centroids - 1] + (max - means[centroids - 1]) * (target - center) / last;
+    }
+
+    /**
+     * Estimated heap used by the digest.
+     */
+    long sizeInBytes() {
+        long bytes = 48 + buffer.length * 8L + means.length * 16L;
+        if (mergedMeans != null) {
+            bytes += mergedMeans.length * 16L;
+        }
+        return bytes;
+    }
+
+    /**
+     * Writes a digest that may be null: its compression, count, min and max, then its centroids.
+     */
+    static void writeTo(StreamOutput out, TDigest digest) throws IOException {
+        if (digest == null) {
+            out.writeVInt(0);
+            return;
+        }
+        digest.compress();
+        out.writeVInt(digest.compression);
+        out.writeVLong(digest.count);
+        out.writeDouble(digest.min);
+        out.writeDouble(digest.max);
+        out.writeVInt(digest.centroids);
+        for (int i = 0; i < digest.centroids; i++) {
+            out.writeDouble(digest.means[i]);
+            out.writeVLong(digest.weights[i]);
+        }
+    }
+
+    static TDigest readFrom(StreamInput in) throws IOException {
+        int compression = in.readVInt();
+        if (compression == 0) {
+            return null;
+        }
+        TDigest digest = new TDigest(compression);
+        digest.count = in.readVLong();
+        digest.min = in.readDouble();
+        digest.max = in.readDouble();
+        digest.centroids = in.readVInt();
+        digest.means = new double[digest.centroids];
+        digest.weights = new long[digest.centroids];
+        for (int i = 0; i < digest.centroids; i++) {
+            digest.means[i] = in.readDouble();
+            digest.weights[i] = in.readVLong();
+        }
+        return digest;
+    }
+}
@@ -1,16 +1,18 @@
 package org.elasticsearch.search.facet.columns;
 
 import org.elasticsearch.ElasticSearchException;
+import org.elasticsearch.common.unit.ByteSizeValue;
 import org.elasticsearch.rest.RestStatus;
 
 public class TooManyDistinctValuesException extends ElasticSearchException {
 
-    public TooManyDistinctValuesException(int maxDistinctGroup) {
-        super(String.format("Facet distinct values exceeds max limit - %d", maxDistinctGroup));
+    public TooManyDistinctValuesException(int groups, long bytes, long limit) {
+        super(String.format("Facet distinct values exceed the memory limit - %d groups need %s, limit is %s",
+                groups, new ByteSizeValue(bytes), new ByteSizeValue(limit)));
     }
 
     @Override
     public RestStatus status() {
         return RestStatus.FORBIDDEN;
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,182 @@
+package org.elasticsearch.search.facet.columns;
+
+import org.elasticsearch.index.field.data.FieldData;
+import org.elasticsearch.index.field.data.FieldDataType;
+import org.elasticsearch.index.field.data.NumericFieldData;
+import org.elasticsearch.index.field.data.strings.StringFieldDataType;
+import org.elasticsearch.script.SearchScript;
+
+import java.util.Collection;
+
+/**
+ * An aggregated column, adding the values of a document to the aggregate slot of its group for one
+ * value field (see {@link GroupTable}). Numeric columns aggregate the total, sum of squares, min and max
+ * of their values, other columns only count them. A numeric column may also add its values to the
+ * percentiles digest of the group.
+ */
+abstract class ValueColumn {
+
+    static ValueColumn forType(FieldDataType type) {
+        if (type instanceof StringFieldDataType) {
+            return new CountValueColumn();
+        }
+        return new NumericValueColumn();
+    }
+
+    GroupTable groups;
+
+    int slot;
+
+    abstract void setNextReader(FieldData fieldData);
+
+    /**
+     * Aggregates the values of a document into a slot of the given table.
+     */
+    abstract void aggregate(int docId, GroupTable groups, int slot);
+
+    static class NumericValueColumn extends ValueColumn implements NumericFieldData.DoubleValueInDocProc {
+
+        private NumericFieldData fieldData;
+
+        // compression of the percentiles digests, 0 without digests
+        private int compression;
+
+        private int group;
+
+        /**
+         * Adds the values to the percentiles digest of the group too.
+         */
+        void trackDigests(int compression) {
+            this.compression = compression;
+        }
+
+        @Override
+        void setNextReader(FieldData fieldData) {
+            this.fieldData = (NumericFieldData) fieldData;
+        }
+
+        @Override
+        void aggregate(int docId, GroupTable groups, int slot) {
+            this.groups = groups;
+            this.slot = slot;
+            if (compression != 0) {
+                group = slot / groups.valueWidth;
+            }
+            forEachValueInDoc(docId);
+        }
+
+        void forEachValueInDoc(int docId) {
+            fieldData.forEachValueInDoc(docId, this);
+        }
+
+        @Override
+        public void onValue(int docId, double value) {
+            groups.totalCount[slot]++;
+            groups.total[slot] += value;
+            groups.sumOfSquares[slot] += value * value;
+            if (value < groups.min[slot]) {
+                groups.min[slot] = value;
+            }
+            if (value > groups.max[slot]) {
+                groups.max[slot] = value;
+            }
+            if (compression != 0) {
+                TDigest digest = groups.digests[group];
+                if (digest == null) {
+                    digest = new TDigest(compression);
+                    groups.digests[group] = digest;
+                }
+                digest.add(value);
+            }
+        }
+    }
+
+    /**
+     * The column of the <tt>value_script</tt>, aggregating the numbers the script returns for a document:
+     * null, a number, or a collection or an array of numbers. The script runs once per document, the
+     * numbers are kept for the other groups of its key combinations.
+     */
+    static final class ScriptValueColumn extends NumericValueColumn {
+
+        private final SearchScript script;
+
+        private int doc = -1;
+
+        private double[] values = new double[4];
+
+        private int valueCount;
+
+        ScriptValueColumn(SearchScript script) {
+            this.script = script;
+        }
+
+        @Override
+        void setNextReader(FieldData fieldData) {
+            // the script itself is moved to the segment by the collector, along with the key script
+            doc = -1;
+        }
+
+        @Override
+        void forEachValueInDoc(int docId) {
+            if (docId != doc) {
+                doc = docId;
+                valueCount = 0;
+                script.setNextDocId(docId);
+                Object value = script.run();
+                if (value instanceof Number) {
+                    addValue(((Number) value).doubleValue());
+                } else if (value instanceof Collection) {
+                    for (Object element : (Collection<?>) value) {
+                        if (element instanceof Number) {
+                            addValue(((Number) element).doubleValue());
+                        }
+                    }
+                } else if (value instanceof Object[]) {
+                    for (Object element : (Object[]) value) {
+                        if (element instanceof Number) {
+                            addValue(((Number) element).doubleValue());
+                        }
+                    }
+                }
+            }
+            for (int i = 0; i < valueCount; i++) {
+                onValue(docId, values[i]);
+            }
+        }
+
+        private void addValue(double value) {
+            if (valueCount == values.length) {
+                double[] grown = new double[valueCount << 1];
+                System.arraycopy(values, 0, grown, 0, valueCount);
+                values = grown;
+            }
+            values[valueCount++] = value;
+        }
+    }
+
+    static final class CountValueColumn extends ValueColumn implements FieldData.StringValueInDocProc {
+
+        private FieldData fieldData;
+
+        @Override
+        void setNextReader(FieldData fieldData) {
+            this.fieldData = fieldData;
+        }
+
+        @Override
+        void aggregate(int docId, GroupTable groups, int slot) {
+            this.groups = groups;
+            this.slot = slot;
+            fieldData.forEachValueInDoc(docId, this);
+        }
+
+        @Override
+        public void onValue(int docId, String value) {
+            groups.totalCount[slot]++;
+        }
+
+        @Override
+        public void onMissing(int docId) {
+        }
+    }
+}
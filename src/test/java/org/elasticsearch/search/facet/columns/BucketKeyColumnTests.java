@@ -0,0 +1,51 @@
+package org.elasticsearch.search.facet.columns;
+
+import org.testng.annotations.Test;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+
+/**
+ */
+public class BucketKeyColumnTests {
+
+    @Test
+    public void testCachedRounding() {
+        final long[] keys = {0, -1, Long.MIN_VALUE, 1, -2};
+        KeyColumn values = new KeyColumn(KeyColumn.LONG) {
+            @Override
+            long key(int ordinal) {
+                return keys[ordinal];
+            }
+
+            @Override
+            int ordinals() {
+                return keys.length;
+            }
+        };
+        final int[] rounds = new int[1];
+        KeyInterval interval = new KeyInterval() {
+            @Override
+            long round(long key) {
+                rounds[0]++;
+                return key;
+            }
+
+            @Override
+            boolean cached() {
+                return true;
+            }
+        };
+        KeyColumn.BucketKeyColumn column = new KeyColumn.BucketKeyColumn(values, interval);
+        for (int segment = 0; segment < 2; segment++) {
+            column.setNextReader(null);
+            for (int pass = 0; pass < 3; pass++) {
+                for (int ordinal = 0; ordinal < keys.length; ordinal++) {
+                    assertThat(column.key(ordinal), equalTo(keys[ordinal]));
+                }
+            }
+            // every key rounded once per segment, -1 included
+            assertThat(rounds[0], equalTo((segment + 1) * keys.length));
+        }
+    }
+}
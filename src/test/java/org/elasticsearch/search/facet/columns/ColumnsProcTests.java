@@ -0,0 +1,513 @@
+package org.elasticsearch.search.facet.columns;
+
+import org.elasticsearch.index.field.data.FieldData;
+import org.elasticsearch.index.field.data.doubles.SingleValueDoubleFieldData;
+import org.elasticsearch.index.field.data.longs.MultiValueLongFieldData;
+import org.elasticsearch.index.field.data.strings.MultiValueStringFieldData;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+
+/**
+ */
+public class ColumnsProcTests {
+
+    private int savedDenseMaxSlots;
+
+    @BeforeMethod
+    public void saveDenseMaxSlots() {
+        savedDenseMaxSlots = ColumnsProc.DenseMaxSlots;
+    }
+
+    @AfterMethod
+    public void restoreDenseMaxSlots() {
+        ColumnsProc.DenseMaxSlots = savedDenseMaxSlots;
+    }
+
+    @Test
+    public void testCrossProductOrder() {
+        byte[] keyTypes = {KeyColumn.STRING, KeyColumn.LONG, KeyColumn.STRING};
+        Segment segment = new Segment(keyTypes).doc(2, new Object[]{"b", "a"}, new Object[]{2L, 1L}, new Object[]{"y", "x"});
+        for (int denseMaxSlots : new int[]{0, 65536}) {
+            ColumnsProc.DenseMaxSlots = denseMaxSlots;
+            // the last key column varies fastest, values in field data order
+            ColumnsProc proc = newProc(keyTypes);
+            proc.maxKeysPerDoc = 3;
+            assertThat(counts(collect(proc, segment)).keySet(), equalTo(set("a|1|x", "a|1|y", "a|2|x")));
+
+            proc = newProc(keyTypes);
+            Map<String, InternalFullColumnsFacet.FullEntry> all = entries(collect(proc, segment));
+            assertThat(all.keySet(), equalTo(set("a|1|x", "a|1|y", "a|2|x", "a|2|y", "b|1|x", "b|1|y", "b|2|x", "b|2|y")));
+            for (InternalFullColumnsFacet.FullEntry entry : all.values()) {
+                assertThat(entry.count(), equalTo(1L));
+                assertThat(entry.total(), equalTo(2.0));
+            }
+        }
+    }
+
+    @Test
+    public void testMissingKeys() {
+        byte[] keyTypes = {KeyColumn.STRING, KeyColumn.LONG, KeyColumn.STRING};
+        Segment segment = new Segment(keyTypes)
+                // no leading key: not grouped
+                .doc(1, new Object[0], new Object[]{1L}, new Object[]{"x"})
+                .doc(2, new Object[]{"a"}, new Object[]{1L}, new Object[0])
+                .doc(4, new Object[]{"a", "b"}, new Object[]{1L}, new Object[0])
+                .doc(8, new Object[]{"b"}, new Object[]{1L}, new Object[]{"x"});
+        for (int denseMaxSlots : new int[]{0, 65536}) {
+            ColumnsProc.DenseMaxSlots = denseMaxSlots;
+            Map<String, InternalFullColumnsFacet.FullEntry> entries = entries(collect(newProc(keyTypes), segment));
+            assertThat(entries.keySet(), equalTo(set("a|1|null", "b|1|null", "b|1|x")));
+            assertThat(entries.get("a|1|null").count(), equalTo(2L));
+            assertThat(entries.get("a|1|null").total(), equalTo(6.0));
+            assertThat(entries.get("a|1|null").keys()[2], equalTo(null));
+            assertThat(entries.get("b|1|null").count(), equalTo(1L));
+            assertThat(entries.get("b|1|x").total(), equalTo(8.0));
+        }
+    }
+
+    @Test
+    public void testMatchesExactGroups() {
+        byte[] keyTypes = {KeyColumn.STRING, KeyColumn.LONG, KeyColumn.STRING};
+        for (long seed = 0; seed < 5; seed++) {
+            List<Segment> segments = randomSegments(new Random(seed), keyTypes, 3, 200, 6);
+            for (int maxKeysPerDoc : new int[]{0, 1, 5}) {
+                Map<String, double[]> exact = exact(segments, maxKeysPerDoc);
+                for (int denseMaxSlots : new int[]{0, 65536}) {
+                    ColumnsProc.DenseMaxSlots = denseMaxSlots;
+                    ColumnsProc proc = newProc(keyTypes);
+                    proc.maxKeysPerDoc = maxKeysPerDoc;
+                    Map<String, InternalFullColumnsFacet.FullEntry> entries = entries(collect(proc, segments));
+                    assertThat(entries.keySet(), equalTo(exact.keySet()));
+                    for (Map.Entry<String, double[]> group : exact.entrySet()) {
+                        InternalFullColumnsFacet.FullEntry entry = entries.get(group.getKey());
+                        assertThat(group.getKey(), (double) entry.count(), equalTo(group.getValue()[0]));
+                        assertThat(group.getKey(), entry.total(), equalTo(group.getValue()[1]));
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testEvictionTies() {
+        byte[] keyTypes = {KeyColumn.STRING};
+        Segment segment = new Segment(keyTypes);
+        // g1, g2 and g3 tie at the threshold, the first of them created is kept
+        for (String group : new String[]{"g3", "g0", "g1", "g2", "g0", "g1", "g2", "g3", "g0", "g1", "g2", "g3", "g0", "g0"}) {
+            segment.doc(1, new Object[]{group});
+        }
+        segment.doc(1, new Object[]{"g4"});
+        ColumnsProc.DenseMaxSlots = 0;
+        ColumnsProc proc = newProc(keyTypes);
+        proc.minGroups = 1;
+        proc.setMaxGroups(4);
+        Map<String, InternalFullColumnsFacet.FullEntry> entries = entries(collect(proc, segment));
+        assertThat(entries.keySet(), equalTo(set("g0", "g3", "g4")));
+        assertThat(entries.get("g0").count(), equalTo(5L));
+        assertThat(entries.get("g0").countError(), equalTo(0L));
+        assertThat(entries.get("g3").count(), equalTo(3L));
+        assertThat(entries.get("g3").countError(), equalTo(0L));
+        // g4 may have been evicted before with up to the largest count evicted
+        assertThat(entries.get("g4").count(), equalTo(1L));
+        assertThat(entries.get("g4").countError(), equalTo(3L));
+        assertThat(proc.groups.newGroupError, equalTo(3L));
+    }
+
+    @Test
+    public void testApproximateGroupsWithinCountErrors() {
+        byte[] keyTypes = {KeyColumn.STRING, KeyColumn.LONG, KeyColumn.STRING};
+        for (long seed = 0; seed < 5; seed++) {
+            List<Segment> segments = skewedSegments(new Random(seed), keyTypes, 3, 500);
+            Map<String, double[]> exact = exact(segments, 0);
+            for (int denseMaxSlots : new int[]{0, 65536}) {
+                ColumnsProc.DenseMaxSlots = denseMaxSlots;
+                ColumnsProc proc = newProc(keyTypes);
+                proc.minGroups = 10;
+                proc.setMaxGroups(40);
+                List<InternalFullColumnsFacet.FullEntry> entries = collect(proc, segments);
+                assertThat(entries.size() <= 40, equalTo(true));
+                assertWithinCountErrors(entries, proc.groups.newGroupError, exact);
+            }
+        }
+    }
+
+    @Test
+    public void testMemoryLimitWithinCountErrors() {
+        byte[] keyTypes = {KeyColumn.STRING, KeyColumn.LONG, KeyColumn.STRING};
+        for (long seed = 0; seed < 5; seed++) {
+            List<Segment> segments = skewedSegments(new Random(seed), keyTypes, 3, 500);
+            Map<String, double[]> exact = exact(segments, 0);
+            for (int denseMaxSlots : new int[]{0, 65536}) {
+                ColumnsProc.DenseMaxSlots = denseMaxSlots;
+                ColumnsProc proc = newProc(keyTypes);
+                proc.minGroups = 10;
+                proc.budget = new GroupMemoryBudget(32 * 1024, 0, true);
+                List<InternalFullColumnsFacet.FullEntry> entries = collect(proc, segments);
+                assertThat(entries.size() < exact.size(), equalTo(true));
+                assertWithinCountErrors(entries, proc.groups.newGroupError, exact);
+            }
+        }
+    }
+
+    @Test(expectedExceptions = TooManyDistinctValuesException.class)
+    public void testMemoryLimitFails() {
+        byte[] keyTypes = {KeyColumn.STRING, KeyColumn.LONG, KeyColumn.STRING};
+        ColumnsProc proc = newProc(keyTypes);
+        proc.budget = new GroupMemoryBudget(32 * 1024, 0, false);
+        collect(proc, skewedSegments(new Random(1), keyTypes, 3, 500));
+    }
+
+    @Test
+    public void testDenseMatchesHashed() {
+        byte[] keyTypes = {KeyColumn.STRING, KeyColumn.LONG, KeyColumn.STRING};
+        for (long seed = 0; seed < 5; seed++) {
+            // the dense slots grow with the second segment and are reused, larger, by the next ones
+            List<Segment> segments = randomSegments(new Random(seed), keyTypes, new int[]{3, 12, 2, 7, 1}, 300, 4);
+            Map<String, String> expected = null;
+            // hashed only, dense and hashed segments mixed, dense only
+            for (int denseMaxSlots : new int[]{0, 200, 65536}) {
+                ColumnsProc.DenseMaxSlots = denseMaxSlots;
+                for (int chunk : new int[]{0, 64}) {
+                    ColumnsProc proc = newProc(keyTypes);
+                    Map<String, String> groups = summary(chunk == 0 ? collect(proc, segments) : collectInChunks(proc, segments, chunk));
+                    if (expected == null) {
+                        expected = groups;
+                    } else {
+                        assertThat("dense_max_slots " + denseMaxSlots + ", chunk " + chunk, groups, equalTo(expected));
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testDenseFoldEvicts() {
+        byte[] keyTypes = {KeyColumn.STRING, KeyColumn.LONG};
+        for (long seed = 0; seed < 5; seed++) {
+            List<Segment> segments = randomSegments(new Random(seed), keyTypes, new int[]{10, 20, 5}, 400, 3);
+            Map<String, double[]> exact = exact(segments, 0);
+            ColumnsProc.DenseMaxSlots = 65536;
+            ColumnsProc proc = newProc(keyTypes);
+            proc.minGroups = 4;
+            // a segment holds more combinations than the table keeps, its fold evicts
+            proc.setMaxGroups(16);
+            List<InternalFullColumnsFacet.FullEntry> entries = collect(proc, segments);
+            assertThat(entries.size() <= 16, equalTo(true));
+            assertWithinCountErrors(entries, proc.groups.newGroupError, exact);
+        }
+    }
+
+    /**
+     * Collects the documents of every segment in chunks, switching the value and key field data before
+     * every chunk as the parallel collection does.
+     */
+    static List<InternalFullColumnsFacet.FullEntry> collectInChunks(ColumnsProc proc, List<Segment> segments, int chunk) {
+        for (Segment segment : segments) {
+            List<FieldData> valueFieldsData = segment.valueFieldsData();
+            for (int start = 0; start < segment.values.size(); start += chunk) {
+                proc.setValueFieldsData(valueFieldsData);
+                proc.setKeyFieldsData(segment.keyFieldsData());
+                for (int doc = start; doc < Math.min(start + chunk, segment.values.size()); doc++) {
+                    proc.collect(doc);
+                }
+            }
+        }
+        return proc.buildEntries();
+    }
+
+    /**
+     * The aggregates of every group by key.
+     */
+    static Map<String, String> summary(List<InternalFullColumnsFacet.FullEntry> entries) {
+        Map<String, String> summary = new TreeMap<String, String>();
+        for (Map.Entry<String, InternalFullColumnsFacet.FullEntry> entry : entries(entries).entrySet()) {
+            InternalFullColumnsFacet.FullEntry e = entry.getValue();
+            summary.put(entry.getKey(), e.count() + " " + e.countError() + " " + e.totalCount() + " " + e.total() + " "
+                    + e.sumOfSquares() + " " + e.min() + " " + e.max());
+        }
+        return summary;
+    }
+
+    /**
+     * Every group returned counts between its count and its count plus its count error, and every group
+     * missing at most the count error of the groups created last.
+     */
+    static void assertWithinCountErrors(List<InternalFullColumnsFacet.FullEntry> entries, long newGroupError,
+                                        Map<String, double[]> exact) {
+        assertThat(newGroupError > 0, equalTo(true));
+        Map<String, InternalFullColumnsFacet.FullEntry> byKey = entries(entries);
+        for (Map.Entry<String, double[]> group : exact.entrySet()) {
+            long count = (long) group.getValue()[0];
+            InternalFullColumnsFacet.FullEntry entry = byKey.get(group.getKey());
+            if (entry == null) {
+                assertThat(group.getKey(), count <= newGroupError, equalTo(true));
+            } else {
+                assertThat(group.getKey(), entry.count() <= count, equalTo(true));
+                assertThat(group.getKey(), count <= entry.count() + entry.countError(), equalTo(true));
+            }
+        }
+        for (String key : byKey.keySet()) {
+            assertThat(key, exact.containsKey(key), equalTo(true));
+        }
+    }
+
+    static ColumnsProc newProc(byte[] keyTypes) {
+        KeyColumn[] keyColumns = new KeyColumn[keyTypes.length];
+        for (int i = 0; i < keyTypes.length; i++) {
+            keyColumns[i] = keyTypes[i] == KeyColumn.STRING ? new KeyColumn.StringKeyColumn() : new KeyColumn.LongKeyColumn(keyTypes[i]);
+        }
+        return new ColumnsProc(keyColumns, new ValueColumn[]{new ValueColumn.NumericValueColumn()});
+    }
+
+    static List<InternalFullColumnsFacet.FullEntry> collect(ColumnsProc proc, Segment... segments) {
+        return collect(proc, Arrays.asList(segments));
+    }
+
+    /**
+     * Collects every document of the segments, in order, as the collector does.
+     */
+    static List<InternalFullColumnsFacet.FullEntry> collect(ColumnsProc proc, List<Segment> segments) {
+        for (Segment segment : segments) {
+            proc.setValueFieldsData(segment.valueFieldsData());
+            proc.setKeyFieldsData(segment.keyFieldsData());
+            for (int doc = 0; doc < segment.values.size(); doc++) {
+                proc.collect(doc);
+            }
+        }
+        return proc.buildEntries();
+    }
+
+    /**
+     * Segments of random documents, with up to <tt>maxValues</tt> values per key column, some missing, and
+     * key values drawn from ranges that differ per segment, so that segments have different ordinals.
+     */
+    static List<Segment> randomSegments(Random random, byte[] keyTypes, int count, int docs, int maxValues) {
+        int[] ranges = new int[count];
+        for (int s = 0; s < count; s++) {
+            ranges[s] = 2 + random.nextInt(12);
+        }
+        return randomSegments(random, keyTypes, ranges, docs, maxValues);
+    }
+
+    /**
+     * Segments of random documents whose key values are drawn from the given range per segment.
+     */
+    static List<Segment> randomSegments(Random random, byte[] keyTypes, int[] ranges, int docs, int maxValues) {
+        List<Segment> segments = new ArrayList<Segment>();
+        for (int range : ranges) {
+            Segment segment = new Segment(keyTypes);
+            for (int doc = 0; doc < docs; doc++) {
+                Object[][] keys = new Object[keyTypes.length][];
+                for (int i = 0; i < keyTypes.length; i++) {
+                    keys[i] = new Object[random.nextInt(4) == 0 ? 0 : 1 + random.nextInt(random.nextInt(maxValues) + 1)];
+                    for (int v = 0; v < keys[i].length; v++) {
+                        int value = random.nextInt(range);
+                        keys[i][v] = keyTypes[i] == KeyColumn.STRING ? (Object) ("s" + value) : (Object) (long) (1 + value);
+                    }
+                }
+                segment.doc(random.nextInt(100), keys);
+            }
+            segments.add(segment);
+        }
+        return segments;
+    }
+
+    /**
+     * Segments of documents with a few frequent and many rare key values, multi-valued in the string key
+     * columns, so that groups are evicted while a document is grouped into its combinations.
+     */
+    static List<Segment> skewedSegments(Random random, byte[] keyTypes, int count, int docs) {
+        List<Segment> segments = new ArrayList<Segment>();
+        for (int s = 0; s < count; s++) {
+            Segment segment = new Segment(keyTypes);
+            for (int doc = 0; doc < docs; doc++) {
+                Object[][] keys = new Object[keyTypes.length][];
+                for (int i = 0; i < keyTypes.length; i++) {
+                    keys[i] = new Object[keyTypes[i] == KeyColumn.STRING ? 1 + random.nextInt(3) : 1];
+                    for (int v = 0; v < keys[i].length; v++) {
+                        int value = (int) (Math.pow(random.nextDouble(), 4) * 60);
+                        keys[i][v] = keyTypes[i] == KeyColumn.STRING ? (Object) ("s" + value) : (Object) (long) (1 + value % 3);
+                    }
+                }
+                segment.doc(random.nextInt(100), keys);
+            }
+            segments.add(segment);
+        }
+        return segments;
+    }
+
+    /**
+     * The count and the total of every group, grouping the documents the straightforward way.
+     */
+    static Map<String, double[]> exact(List<Segment> segments, int maxKeysPerDoc) {
+        Map<String, double[]> groups = new HashMap<String, double[]>();
+        for (Segment segment : segments) {
+            for (int doc = 0; doc < segment.values.size(); doc++) {
+                List<Object>[] keys = segment.docKeys(doc);
+                if (keys[0].isEmpty()) {
+                    continue;
+                }
+                List<String> combinations = new ArrayList<String>();
+                combinations.add("");
+                for (int i = 0; i < keys.length; i++) {
+                    // a missing value groups under the missing key, null for strings and 0 for numbers
+                    Object missing = segment.keyTypes[i] == KeyColumn.STRING ? null : (Object) 0L;
+                    List<Object> values = keys[i].isEmpty() ? Arrays.asList(missing) : keys[i];
+                    List<String> next = new ArrayList<String>();
+                    for (String prefix : combinations) {
+                        for (Object value : values) {
+                            next.add(i == 0 ? String.valueOf(value) : prefix + "|" + value);
+                        }
+                    }
+                    combinations = next;
+                }
+                if (maxKeysPerDoc > 0 && combinations.size() > maxKeysPerDoc) {
+                    combinations = combinations.subList(0, maxKeysPerDoc);
+                }
+                for (String key : combinations) {
+                    double[] group = groups.get(key);
+                    if (group == null) {
+                        group = new double[2];
+                        groups.put(key, group);
+                    }
+                    group[0]++;
+                    group[1] += segment.values.get(doc);
+                }
+            }
+        }
+        return groups;
+    }
+
+    static Map<String, InternalFullColumnsFacet.FullEntry> entries(List<InternalFullColumnsFacet.FullEntry> entries) {
+        Map<String, InternalFullColumnsFacet.FullEntry> byKey = new TreeMap<String, InternalFullColumnsFacet.FullEntry>();
+        for (InternalFullColumnsFacet.FullEntry entry : entries) {
+            StringBuilder key = new StringBuilder();
+            for (int i = 0; i < entry.values.length; i++) {
+                if (i > 0) {
+                    key.append('|');
+                }
+                key.append(entry.keyTypes[i] == KeyColumn.STRING ? entry.keys[i] : Long.toString(entry.values[i]));
+            }
+            assertThat("duplicate group " + key, byKey.put(key.toString(), entry), equalTo(null));
+        }
+        return byKey;
+    }
+
+    static Map<String, Long> counts(List<InternalFullColumnsFacet.FullEntry> entries) {
+        Map<String, Long> counts = new TreeMap<String, Long>();
+        for (Map.Entry<String, InternalFullColumnsFacet.FullEntry> entry : entries(entries).entrySet()) {
+            counts.put(entry.getKey(), entry.getValue().count());
+        }
+        return counts;
+    }
+
+    static Set<String> set(String... keys) {
+        return new TreeSet<String>(Arrays.asList(keys));
+    }
+
+    /**
+     * The documents of a segment: the values of every key column, strings or longs, and one value
+     * aggregated, turned into multi-valued field data as loaded from an index.
+     */
+    static final class Segment {
+
+        final byte[] keyTypes;
+
+        final List<Object[][]> keys = new ArrayList<Object[][]>();
+
+        final List<Double> values = new ArrayList<Double>();
+
+        private List<FieldData> keyFieldsData;
+
+        Segment(byte[] keyTypes) {
+            this.keyTypes = keyTypes;
+        }
+
+        Segment doc(double value, Object[]... keys) {
+            this.keys.add(keys);
+            values.add(value);
+            keyFieldsData = null;
+            return this;
+        }
+
+        /**
+         * The distinct values of every key column of a document, in field data order.
+         */
+        @SuppressWarnings("unchecked")
+        List<Object>[] docKeys(int doc) {
+            List<Object>[] docKeys = new List[keyTypes.length];
+            for (int i = 0; i < keyTypes.length; i++) {
+                docKeys[i] = new ArrayList<Object>(new TreeSet<Object>(Arrays.asList(keys.get(doc)[i])));
+            }
+            return docKeys;
+        }
+
+        List<FieldData> valueFieldsData() {
+            int[] ordinals = new int[values.size()];
+            double[] doubles = new double[values.size() + 1];
+            for (int doc = 0; doc < ordinals.length; doc++) {
+                ordinals[doc] = doc + 1;
+                doubles[doc + 1] = values.get(doc);
+            }
+            List<FieldData> fieldsData = new ArrayList<FieldData>();
+            fieldsData.add(new SingleValueDoubleFieldData("v", ordinals, doubles));
+            return fieldsData;
+        }
+
+        /**
+         * The field data of the key columns, the same instances for every call, as for the chunks of a segment.
+         */
+        List<FieldData> keyFieldsData() {
+            if (keyFieldsData != null) {
+                return keyFieldsData;
+            }
+            keyFieldsData = new ArrayList<FieldData>();
+            for (int i = 0; i < keyTypes.length; i++) {
+                TreeSet<Object> distinct = new TreeSet<Object>();
+                int levels = 1;
+                for (int doc = 0; doc < values.size(); doc++) {
+                    List<Object> docValues = docKeys(doc)[i];
+                    distinct.addAll(docValues);
+                    levels = Math.max(levels, docValues.size());
+                }
+                List<Object> sorted = new ArrayList<Object>(distinct);
+                // ordinal 0 is the missing value
+                int[][] ordinals = new int[levels][values.size()];
+                for (int doc = 0; doc < values.size(); doc++) {
+                    List<Object> docValues = docKeys(doc)[i];
+                    for (int level = 0; level < docValues.size(); level++) {
+                        ordinals[level][doc] = sorted.indexOf(docValues.get(level)) + 1;
+                    }
+                }
+                if (keyTypes[i] == KeyColumn.STRING) {
+                    String[] strings = new String[sorted.size() + 1];
+                    for (int o = 0; o < sorted.size(); o++) {
+                        strings[o + 1] = (String) sorted.get(o);
+                    }
+                    keyFieldsData.add(new MultiValueStringFieldData("k" + i, ordinals, strings));
+                } else {
+                    long[] longs = new long[sorted.size() + 1];
+                    for (int o = 0; o < sorted.size(); o++) {
+                        longs[o + 1] = (Long) sorted.get(o);
+                    }
+                    keyFieldsData.add(new MultiValueLongFieldData("k" + i, ordinals, longs));
+                }
+            }
+            return keyFieldsData;
+        }
+    }
+}
@@ -0,0 +1,161 @@
+package org.elasticsearch.search.facet.columns;
+
+import org.testng.annotations.Test;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.greaterThan;
+
+/**
+ */
+public class GroupTableTests {
+
+    @Test
+    public void testAddFind() {
+        GroupTable groups = new GroupTable(2);
+        long[] key = {3, -7};
+        assertThat(groups.find(key), equalTo(-1));
+        int id = groups.add(key);
+        assertThat(id, equalTo(0));
+        // the key is copied, the array can be reused
+        key[0] = 4;
+        assertThat(groups.add(key), equalTo(1));
+        assertThat(groups.add(new long[]{3, -7}), equalTo(0));
+        assertThat(groups.find(new long[]{3, -7}), equalTo(0));
+        assertThat(groups.find(new long[]{4, -7}), equalTo(1));
+        assertThat(groups.find(new long[]{-7, 3}), equalTo(-1));
+        assertThat(groups.size(), equalTo(2));
+        assertThat(groups.key(1, 0), equalTo(4L));
+        assertThat(groups.key(1, 1), equalTo(-7L));
+        // new groups start with cleared aggregates
+        assertThat(groups.count[id], equalTo(0L));
+        assertThat(groups.min[id], equalTo(Double.POSITIVE_INFINITY));
+        assertThat(groups.max[id], equalTo(Double.NEGATIVE_INFINITY));
+    }
+
+    @Test
+    public void testGrow() {
+        GroupTable groups = new GroupTable(1, 2, 16);
+        int initialCapacity = groups.capacity();
+        for (int i = 0; i < 10000; i++) {
+            int id = groups.add(new long[]{i * 31L});
+            assertThat(id, equalTo(i));
+            groups.count[id] = i;
+            groups.total[id * 2 + 1] = i;
+        }
+        assertThat(groups.size(), equalTo(10000));
+        assertThat(groups.capacity(), greaterThan(initialCapacity));
+        for (int i = 0; i < 10000; i++) {
+            int id = groups.find(new long[]{i * 31L});
+            assertThat(id, equalTo(i));
+            assertThat(groups.count[id], equalTo((long) i));
+            assertThat(groups.total[id * 2 + 1], equalTo((double) i));
+        }
+        assertThat(groups.find(new long[]{1}), equalTo(-1));
+    }
+
+    @Test
+    public void testLimitCapacity() {
+        GroupTable groups = new GroupTable(1);
+        groups.limitCapacity(20);
+        for (int i = 0; i < 20; i++) {
+            assertThat(groups.isFull() && groups.atCapacityLimit(), equalTo(false));
+            groups.add(new long[]{i});
+        }
+        assertThat(groups.atCapacityLimit(), equalTo(true));
+        assertThat(groups.isFull(), equalTo(true));
+        assertThat(groups.capacity(), equalTo(20));
+    }
+
+    @Test
+    public void testRetain() {
+        GroupTable groups = new GroupTable(1);
+        for (int i = 0; i < 10; i++) {
+            int id = groups.add(new long[]{i});
+            groups.count[id] = i + 1;
+            groups.totalCount[id] = i + 1;
+            groups.total[id] = 10 * i;
+            groups.min[id] = i;
+            groups.max[id] = i;
+        }
+        // keeps the 3 groups with the highest counts, evicting counts of at most 7
+        groups.retain(new int[]{7, 8, 9}, 3, 7);
+        assertThat(groups.size(), equalTo(3));
+        for (int i = 7; i < 10; i++) {
+            int id = groups.find(new long[]{i});
+            assertThat(id, equalTo(i - 7));
+            assertThat(groups.count[id], equalTo((long) i + 1));
+            assertThat(groups.total[id], equalTo(10.0 * i));
+            assertThat(groups.min[id], equalTo((double) i));
+            assertThat(groups.countError[id], equalTo(0L));
+        }
+        assertThat(groups.find(new long[]{0}), equalTo(-1));
+
+        // a group evicted before comes back with the evicted count as its error, and cleared aggregates
+        int id = groups.add(new long[]{0});
+        assertThat(id, equalTo(3));
+        assertThat(groups.count[id], equalTo(0L));
+        assertThat(groups.total[id], equalTo(0.0));
+        assertThat(groups.min[id], equalTo(Double.POSITIVE_INFINITY));
+        assertThat(groups.countError[id], equalTo(7L));
+
+        // errors of the evictions add up
+        groups.retain(new int[]{0, 1, 2}, 3, 2);
+        assertThat(groups.newGroupError, equalTo(9L));
+        assertThat(groups.countError[groups.add(new long[]{1})], equalTo(9L));
+    }
+
+    @Test
+    public void testMerge() {
+        GroupTable groups = new GroupTable(1, 2, 16);
+        GroupTable other = new GroupTable(1, 2, 16);
+        int id = groups.add(new long[]{42});
+        int otherId = other.add(new long[]{42});
+        groups.count[id] = 2;
+        other.count[otherId] = 3;
+        for (int field = 0; field < 2; field++) {
+            groups.totalCount[id * 2 + field] = 2;
+            groups.total[id * 2 + field] = 5;
+            groups.sumOfSquares[id * 2 + field] = 13;
+            groups.min[id * 2 + field] = 2;
+            groups.max[id * 2 + field] = 3;
+            other.totalCount[otherId * 2 + field] = 3;
+            other.total[otherId * 2 + field] = 6 + field;
+            other.sumOfSquares[otherId * 2 + field] = 14;
+            other.min[otherId * 2 + field] = 1;
+            other.max[otherId * 2 + field] = 2 + field * 2;
+        }
+        other.addCountError(otherId, 4);
+
+        groups.merge(id, other, otherId, true);
+        assertThat(groups.count[id], equalTo(5L));
+        assertThat(groups.countError[id], equalTo(4L));
+        assertThat(groups.totalCount[id * 2], equalTo(5L));
+        assertThat(groups.total[id * 2], equalTo(11.0));
+        assertThat(groups.total[id * 2 + 1], equalTo(12.0));
+        assertThat(groups.sumOfSquares[id * 2 + 1], equalTo(27.0));
+        assertThat(groups.min[id * 2], equalTo(1.0));
+        assertThat(groups.max[id * 2], equalTo(3.0));
+        assertThat(groups.max[id * 2 + 1], equalTo(4.0));
+        // the other table is only read
+        assertThat(other.count[otherId], equalTo(3L));
+    }
+
+    @Test
+    public void testMergeSketches() {
+        GroupTable groups = new GroupTable(1);
+        GroupTable other = new GroupTable(1);
+        groups.trackDistinct();
+        other.trackDistinct();
+        int id = groups.add(new long[]{1});
+        int otherId = other.add(new long[]{1});
+        other.distinct[otherId] = new HyperLogLog(10);
+        other.distinct[otherId].offer(1L << 62);
+
+        // a shared table hands over a copy of its sketch
+        groups.merge(id, other, otherId, true);
+        groups.distinct[id].offer(1L << 61);
+        assertThat(groups.distinct[id].cardinality(), equalTo(2L));
+        assertThat(other.distinct[otherId].cardinality(), equalTo(1L));
+    }
+}
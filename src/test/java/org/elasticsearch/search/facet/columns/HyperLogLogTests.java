@@ -0,0 +1,162 @@
+package org.elasticsearch.search.facet.columns;
+
+import org.elasticsearch.common.io.stream.BytesStreamInput;
+import org.elasticsearch.common.io.stream.BytesStreamOutput;
+import org.testng.annotations.Test;
+
+import java.io.IOException;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.greaterThanOrEqualTo;
+import static org.hamcrest.Matchers.lessThanOrEqualTo;
+
+/**
+ */
+public class HyperLogLogTests {
+
+    @Test
+    public void testError() {
+        for (int precision : new int[]{8, 12, 14}) {
+            // 4 standard errors
+            double maxError = 4 * 1.04 / Math.sqrt(1 << precision);
+            for (int cardinality : new int[]{1, 10, 100, 1000, 5000, 20000, 100000, 500000}) {
+                HyperLogLog sketch = new HyperLogLog(precision);
+                for (int i = 0; i < cardinality; i++) {
+                    sketch.offer(hash(i));
+                    // duplicates do not count
+                    sketch.offer(hash(i / 2));
+                }
+                double error = Math.abs(sketch.cardinality() - cardinality) / (double) cardinality;
+                assertThat("precision " + precision + ", cardinality " + cardinality, error, lessThanOrEqualTo(maxError));
+            }
+        }
+    }
+
+    @Test
+    public void testSmallRange() {
+        // linear counting is exact as long as the values fall into distinct registers
+        HyperLogLog sketch = new HyperLogLog(14);
+        for (int i = 1; i <= 20; i++) {
+            sketch.offer((long) i << 50);
+            assertThat(sketch.cardinality(), equalTo((long) i));
+        }
+    }
+
+    @Test
+    public void testLargeRange() {
+        // every register of rank 58: the raw estimate is past 1/30 of the hash space, where collisions of the
+        // hashes are corrected for
+        HyperLogLog sketch = new HyperLogLog(4);
+        for (long register = 0; register < 16; register++) {
+            sketch.offer((register << 60) | 4);
+        }
+        double raw = 0.673 * 16 * 16 / (16 * Math.scalb(1.0, -58));
+        double hashSpace = Math.scalb(1.0, 64);
+        assertThat((double) sketch.cardinality(), greaterThan(raw));
+        assertThat((double) sketch.cardinality(), equalTo((double) Math.round(-hashSpace * Math.log(1 - raw / hashSpace))));
+
+        // every register at the highest rank
+        for (long register = 0; register < 16; register++) {
+            sketch.offer(register << 60);
+        }
+        assertThat(sketch.cardinality(), equalTo(Long.MAX_VALUE));
+    }
+
+    @Test
+    public void testSparseToDense() throws IOException {
+        int precision = 10;
+        HyperLogLog sketch = new HyperLogLog(precision);
+        boolean dense = false;
+        for (int i = 0; i < 2000; i++) {
+            long before = sketch.cardinality();
+            sketch.offer(hash(i));
+            long after = sketch.cardinality();
+            assertThat(after, greaterThanOrEqualTo(before));
+            // never more than a byte per register
+            assertThat(sketch.sizeInBytes(), lessThanOrEqualTo(24L + (1 << precision)));
+            if (!dense && isDense(sketch)) {
+                dense = true;
+                // the estimate does not change with the representation
+                assertThat(after - before, lessThanOrEqualTo(2L));
+                assertThat(Math.abs(after - (i + 1)), lessThanOrEqualTo(10L));
+            } else {
+                assertThat(isDense(sketch), equalTo(dense));
+            }
+        }
+        assertThat(dense, equalTo(true));
+        assertThat(writeRead(sketch).cardinality(), equalTo(sketch.cardinality()));
+    }
+
+    @Test
+    public void testMergeAssociative() throws IOException {
+        int[][] ranges = {{0, 50}, {25, 3000}, {2500, 2600}, {0, 400}};
+        HyperLogLog[] sketches = new HyperLogLog[ranges.length];
+        HyperLogLog all = new HyperLogLog(11);
+        for (int s = 0; s < ranges.length; s++) {
+            sketches[s] = new HyperLogLog(11);
+            for (int i = ranges[s][0]; i < ranges[s][1]; i++) {
+                sketches[s].offer(hash(i));
+                all.offer(hash(i));
+            }
+        }
+
+        // ((a + b) + c) + d
+        HyperLogLog left = sketches[0].copy();
+        for (int s = 1; s < sketches.length; s++) {
+            left.merge(sketches[s]);
+        }
+        // a + (b + (c + d)), d + c + b + a
+        HyperLogLog right = sketches[3].copy();
+        for (int s = 2; s >= 0; s--) {
+            HyperLogLog merged = sketches[s].copy();
+            merged.merge(right);
+            right = merged;
+        }
+        HyperLogLog reverse = sketches[3].copy();
+        for (int s = 2; s >= 0; s--) {
+            reverse.merge(sketches[s]);
+        }
+        // sparse into sparse, after a round trip
+        HyperLogLog sparse = writeRead(sketches[0]);
+        sparse.merge(writeRead(sketches[2]));
+
+        assertThat(bytes(left), equalTo(bytes(all)));
+        assertThat(bytes(right), equalTo(bytes(all)));
+        assertThat(bytes(reverse), equalTo(bytes(all)));
+        assertThat(left.cardinality(), equalTo(all.cardinality()));
+
+        HyperLogLog expected = sketches[0].copy();
+        expected.merge(sketches[2]);
+        assertThat(bytes(sparse), equalTo(bytes(expected)));
+        // the merged sketches are left as they were
+        assertThat(sketches[0].cardinality(), lessThanOrEqualTo(55L));
+    }
+
+    private static boolean isDense(HyperLogLog sketch) throws IOException {
+        // the form written first, 2 for dense
+        return bytes(sketch)[0] == 2;
+    }
+
+    private static long hash(long value) {
+        // MurmurHash3 finalizer
+        long h = value;
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    private static byte[] bytes(HyperLogLog sketch) throws IOException {
+        BytesStreamOutput out = new BytesStreamOutput();
+        HyperLogLog.writeTo(out, sketch);
+        return out.bytes().toBytes();
+    }
+
+    private static HyperLogLog writeRead(HyperLogLog sketch) throws IOException {
+        return HyperLogLog.readFrom(new BytesStreamInput(bytes(sketch), false));
+    }
+}
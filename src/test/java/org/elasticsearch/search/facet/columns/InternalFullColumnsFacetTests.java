@@ -0,0 +1,235 @@
+package org.elasticsearch.search.facet.columns;
+
+import org.elasticsearch.common.io.stream.BytesStreamInput;
+import org.elasticsearch.common.io.stream.BytesStreamOutput;
+import org.elasticsearch.common.io.stream.HandlesStreamInput;
+import org.elasticsearch.common.io.stream.HandlesStreamOutput;
+import org.elasticsearch.search.facet.Facet;
+import org.testng.annotations.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.closeTo;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.notNullValue;
+import static org.hamcrest.Matchers.nullValue;
+
+/**
+ */
+public class InternalFullColumnsFacetTests {
+
+    private static final byte[] KEY_TYPES = {KeyColumn.STRING, KeyColumn.LONG, KeyColumn.DOUBLE};
+
+    @Test
+    public void testWriteRead() throws IOException {
+        InternalFullColumnsFacet facet = shardFacet(0, 50, 5);
+        facet.valueFields = new String[]{"v", "w"};
+        facet.distinct = true;
+        facet.digests = true;
+        facet.percents = new double[]{50, 99};
+        facet.typedKeys = true;
+        facet.countErrorBound = 3;
+        facet.sampled = true;
+        facet.sampleHits = 1000;
+        facet.sampleSize = 100;
+        for (InternalFullColumnsFacet.FullEntry entry : facet.entries()) {
+            entry.valueAggregates = new InternalFullColumnsFacet.ValueAggregates[]{
+                    new InternalFullColumnsFacet.ValueAggregates(entry.count, entry.count * 2, entry.count * 4, 1, 3)};
+            entry.distinct = new HyperLogLog(8);
+            entry.distinct.offer(entry.count * 0x9E3779B97F4A7C15L);
+            entry.digest = new TDigest(100);
+            entry.digest.add(entry.count);
+            entry.countVariance = entry.count / 2.0;
+            entry.countError = 1;
+        }
+        facet.profile = new ColumnsFacetStats();
+        facet.profile.docsCollected = 42;
+
+        InternalFullColumnsFacet read = writeRead(facet);
+        assertThat(read.name(), equalTo("f"));
+        assertThat(read.size(), equalTo(facet.size()));
+        assertThat(read.from(), equalTo(facet.from()));
+        assertThat(read.keyTypes, equalTo(KEY_TYPES));
+        assertThat(read.valueFields, equalTo(new String[]{"v", "w"}));
+        assertThat(read.distinct, equalTo(true));
+        assertThat(read.digests, equalTo(true));
+        assertThat(read.percents, equalTo(new double[]{50, 99}));
+        assertThat(read.typedKeys, equalTo(true));
+        assertThat(read.dateMillis, equalTo(false));
+        assertThat(read.countErrorBound, equalTo(3L));
+        assertThat(read.sampleHits, equalTo(1000L));
+        assertThat(read.sampleSize, equalTo(100L));
+        assertThat(read.profile, notNullValue());
+        assertThat(read.profile.docsCollected, equalTo(42L));
+
+        List<InternalFullColumnsFacet.FullEntry> entries = facet.entries();
+        List<InternalFullColumnsFacet.FullEntry> readEntries = read.entries();
+        assertThat(readEntries.size(), equalTo(entries.size()));
+        for (int i = 0; i < entries.size(); i++) {
+            InternalFullColumnsFacet.FullEntry entry = entries.get(i);
+            InternalFullColumnsFacet.FullEntry readEntry = readEntries.get(i);
+            assertThat(readEntry.keys(), equalTo(entry.keys()));
+            assertThat(readEntry.typedKeys(), equalTo(entry.typedKeys()));
+            assertThat(readEntry.count(), equalTo(entry.count()));
+            assertThat(readEntry.countError(), equalTo(1L));
+            assertThat(readEntry.countVariance(), equalTo(entry.countVariance()));
+            assertThat(readEntry.totalCount(), equalTo(entry.totalCount()));
+            assertThat(readEntry.total(), equalTo(entry.total()));
+            assertThat(readEntry.sumOfSquares(), equalTo(entry.sumOfSquares()));
+            assertThat(readEntry.min(), equalTo(entry.min()));
+            assertThat(readEntry.max(), equalTo(entry.max()));
+            assertThat(readEntry.aggregates(1).total(), equalTo(entry.count * 2.0));
+            assertThat(readEntry.aggregates(1).max(), equalTo(3.0));
+            assertThat(readEntry.distinctCount(), equalTo(1L));
+            assertThat(readEntry.percentile(50), equalTo((double) entry.count));
+        }
+    }
+
+    @Test
+    public void testWriteReadMissingKeys() throws IOException {
+        List<InternalFullColumnsFacet.FullEntry> entries = new ArrayList<InternalFullColumnsFacet.FullEntry>();
+        entries.add(entry(null, 1, 1.5, 2));
+        entries.add(entry("a", -1, Double.NaN, 3));
+        InternalFullColumnsFacet read = writeRead(new InternalFullColumnsFacet("f", ColumnsFacet.ComparatorType.COUNT,
+                KEY_TYPES, entries, 0, 0, -1));
+        assertThat(read.entries().get(0).keys()[0], nullValue());
+        assertThat(read.entries().get(1).keys()[0], equalTo("a"));
+        assertThat(read.entries().get(1).typedKeys()[1], equalTo((Object) (-1L)));
+        assertThat(read.distinct, equalTo(false));
+        assertThat(read.sampled, equalTo(false));
+        assertThat(read.profile, nullValue());
+    }
+
+    @Test
+    public void testWriteReadHandles() throws IOException {
+        // the transport writes shard results to a stream encoding repeated strings as handles
+        InternalFullColumnsFacet facet = new InternalFullColumnsFacet("my_facet", ColumnsFacet.ComparatorType.COUNT,
+                KEY_TYPES, shardFacet(0, 20, 0).entries(), 0, 0, -1);
+        facet.valueFields = new String[]{"price", "my_facet"};
+        for (InternalFullColumnsFacet.FullEntry entry : facet.entries()) {
+            entry.keys[0] = entry.values[1] % 2 == 0 ? "books" : "price";
+            entry.valueAggregates = new InternalFullColumnsFacet.ValueAggregates[]{
+                    new InternalFullColumnsFacet.ValueAggregates(entry.count, entry.count * 2, entry.count * 4, 1, 3)};
+        }
+        facet.profile = new ColumnsFacetStats();
+        InternalFullColumnsFacet other = shardFacet(5, 10, 0);
+
+        BytesStreamOutput bytes = new BytesStreamOutput();
+        HandlesStreamOutput out = new HandlesStreamOutput(bytes);
+        facet.writeTo(out);
+        other.writeTo(out);
+        facet.writeTo(out);
+        HandlesStreamInput in = new HandlesStreamInput(new BytesStreamInput(bytes.bytes().toBytes(), false));
+        InternalFullColumnsFacet[] reads = {InternalFullColumnsFacet.readColumnsFacet(in),
+                InternalFullColumnsFacet.readColumnsFacet(in), InternalFullColumnsFacet.readColumnsFacet(in)};
+        assertThat(in.available(), equalTo(0));
+
+        for (int r = 0; r < reads.length; r++) {
+            InternalFullColumnsFacet written = r == 1 ? other : facet;
+            InternalFullColumnsFacet read = reads[r];
+            assertThat(read.name(), equalTo(written.name()));
+            assertThat(read.entries().size(), equalTo(written.entries().size()));
+            for (int i = 0; i < written.entries().size(); i++) {
+                assertThat(read.entries().get(i).keys(), equalTo(written.entries().get(i).keys()));
+                assertThat(read.entries().get(i).count(), equalTo(written.entries().get(i).count()));
+            }
+        }
+        assertThat(reads[0].valueFields, equalTo(new String[]{"price", "my_facet"}));
+        assertThat(reads[0].entries().get(3).aggregates(1).total(), equalTo(facet.entries().get(3).count * 2.0));
+        assertThat(reads[0].profile.bytesSerialized > 0, equalTo(true));
+    }
+
+    @Test
+    public void testReduceRoundTrip() throws IOException {
+        // overlapping groups on three shards, shipped through the stream as from the shards
+        List<Facet> shards = new ArrayList<Facet>();
+        Map<String, Long> expected = new HashMap<String, Long>();
+        for (int shard = 0; shard < 3; shard++) {
+            InternalFullColumnsFacet facet = shardFacet(shard * 10, 30, 0);
+            for (InternalFullColumnsFacet.FullEntry entry : facet.entries()) {
+                Long count = expected.get(entry.key());
+                expected.put(entry.key(), (count == null ? 0 : count) + entry.count());
+            }
+            shards.add(writeRead(facet));
+        }
+
+        InternalFullColumnsFacet reduced = (InternalFullColumnsFacet) ((InternalFullColumnsFacet) shards.get(0)).reduce("f", shards);
+        assertThat(reduced.total(), equalTo((long) expected.size()));
+        assertThat(reduced.entries().size(), equalTo(expected.size()));
+        InternalFullColumnsFacet.FullEntry previous = null;
+        for (InternalFullColumnsFacet.FullEntry entry : reduced.entries()) {
+            assertThat(entry.count(), equalTo(expected.get(entry.key())));
+            assertThat(entry.totalCount(), equalTo(entry.count()));
+            assertThat(entry.mean(), closeTo(1.5, 1e-9));
+            if (previous != null) {
+                assertThat(ColumnsFacet.ComparatorType.COUNT.comparator().compare(previous, entry) <= 0, equalTo(true));
+            }
+            previous = entry;
+        }
+
+        // the reduced result goes through the stream too
+        InternalFullColumnsFacet read = writeRead(reduced);
+        assertThat(read.entries().size(), equalTo(reduced.entries().size()));
+        for (int i = 0; i < reduced.entries().size(); i++) {
+            assertThat(read.entries().get(i).key(), equalTo(reduced.entries().get(i).key()));
+            assertThat(read.entries().get(i).count(), equalTo(reduced.entries().get(i).count()));
+        }
+    }
+
+    @Test
+    public void testReduceCountError() throws IOException {
+        List<Facet> shards = new ArrayList<Facet>();
+        for (int shard = 0; shard < 2; shard++) {
+            InternalFullColumnsFacet facet = shardFacet(shard * 5, 10, 0);
+            facet.countErrorBound = shard + 1;
+            shards.add(writeRead(facet));
+        }
+        InternalFullColumnsFacet reduced = (InternalFullColumnsFacet) ((InternalFullColumnsFacet) shards.get(0)).reduce("f", shards);
+        assertThat(reduced.total(), equalTo(15L));
+        assertThat(reduced.entries().size(), equalTo(15));
+        assertThat(reduced.countErrorBound, equalTo(3L));
+        for (InternalFullColumnsFacet.FullEntry entry : reduced.entries()) {
+            // a group missing from a shard may have up to the bound of that shard there
+            long group = entry.values[1];
+            assertThat(entry.countError(), equalTo(group < 5 ? 2L : group < 10 ? 0L : 1L));
+        }
+
+        List<Facet> paged = new ArrayList<Facet>();
+        for (int shard = 0; shard < 2; shard++) {
+            paged.add(writeRead(shardFacet(shard * 5, 10, 5)));
+        }
+        reduced = (InternalFullColumnsFacet) ((InternalFullColumnsFacet) paged.get(0)).reduce("f", paged);
+        assertThat(reduced.total(), equalTo(15L));
+        assertThat(reduced.entries().size(), equalTo(5));
+    }
+
+    /**
+     * A shard result of the groups <tt>first..first+groups</tt>, each counting its number plus one values of 1
+     * and 2, ordered by count.
+     */
+    private static InternalFullColumnsFacet shardFacet(int first, int groups, int size) {
+        List<InternalFullColumnsFacet.FullEntry> entries = new ArrayList<InternalFullColumnsFacet.FullEntry>();
+        for (int i = first; i < first + groups; i++) {
+            entries.add(entry("k" + i, i, i / 4.0, 2 * (i + 1)));
+        }
+        return new InternalFullColumnsFacet("f", ColumnsFacet.ComparatorType.COUNT, KEY_TYPES, entries, size, 0, -1);
+    }
+
+    private static InternalFullColumnsFacet.FullEntry entry(String s, long l, double d, long count) {
+        InternalFullColumnsFacet.FullEntry entry = new InternalFullColumnsFacet.FullEntry(new String[]{s, null, null},
+                new long[]{0, l, Double.doubleToLongBits(d)}, KEY_TYPES, count, 1, 2, count, 1.5 * count);
+        entry.sumOfSquares = 2.5 * count;
+        return entry;
+    }
+
+    private static InternalFullColumnsFacet writeRead(InternalFullColumnsFacet facet) throws IOException {
+        BytesStreamOutput out = new BytesStreamOutput();
+        facet.writeTo(out);
+        return InternalFullColumnsFacet.readColumnsFacet(new BytesStreamInput(out.bytes().toBytes(), false));
+    }
+}
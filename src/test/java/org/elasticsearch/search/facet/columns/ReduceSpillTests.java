@@ -0,0 +1,101 @@
+package org.elasticsearch.search.facet.columns;
+
+import org.elasticsearch.ElasticSearchIllegalArgumentException;
+import org.elasticsearch.search.facet.Facet;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+
+/**
+ */
+public class ReduceSpillTests {
+
+    private File spillDir;
+
+    private String savedSpillDir;
+
+    private int savedSpillThreshold;
+
+    @BeforeMethod
+    public void createSpillDir() throws IOException {
+        savedSpillDir = ReduceSpill.SpillDir;
+        savedSpillThreshold = ReduceSpill.SpillThreshold;
+        spillDir = File.createTempFile("columns-facet-spill", "");
+        spillDir.delete();
+        spillDir.mkdirs();
+        ReduceSpill.SpillDir = spillDir.getPath();
+    }
+
+    @AfterMethod
+    public void deleteSpillDir() {
+        ReduceSpill.SpillDir = savedSpillDir;
+        ReduceSpill.SpillThreshold = savedSpillThreshold;
+        for (File file : spillDir.listFiles()) {
+            file.delete();
+        }
+        spillDir.delete();
+    }
+
+    @Test
+    public void testSpillMerge() throws IOException {
+        ReduceSpill spill = new ReduceSpill(SortedEntryMergeTests.KEY_TYPES);
+        try {
+            spill.spill(Arrays.asList(SortedEntryMergeTests.entry("b", 1, 2), SortedEntryMergeTests.entry("a", 3, 4)));
+            spill.spill(Arrays.asList(SortedEntryMergeTests.entry("a", 3, 1), SortedEntryMergeTests.entry(null, 0, 7)));
+            assertThat(spillDir.list().length, equalTo(2));
+
+            List<String> merged = new ArrayList<String>();
+            for (Iterator<InternalFullColumnsFacet.FullEntry> it = spill.merge(); it.hasNext(); ) {
+                InternalFullColumnsFacet.FullEntry entry = it.next();
+                merged.add(entry.keys[0] + ":" + entry.values[1] + "=" + entry.count() + "/" + entry.total());
+            }
+            assertThat(merged, equalTo(Arrays.asList("a:3=5/10.0", "b:1=2/4.0", "null:0=7/14.0")));
+        } finally {
+            spill.close();
+        }
+        assertThat(spillDir.list().length, equalTo(0));
+    }
+
+    @Test
+    public void testSpilledReduceMatchesInMemoryReduce() {
+        for (long seed = 0; seed < 5; seed++) {
+            ReduceSpill.SpillThreshold = 0;
+            InternalFullColumnsFacet inMemory = SortedEntryMergeTests.reduce(SortedEntryMergeTests.shards(seed, 4, false, 0));
+            // spills after every shard or so
+            ReduceSpill.SpillThreshold = 150;
+            InternalFullColumnsFacet spilled = SortedEntryMergeTests.reduce(SortedEntryMergeTests.shards(seed, 4, false, 0));
+            assertThat(spilled.total(), equalTo(inMemory.total()));
+            assertThat(SortedEntryMergeTests.summary(spilled), equalTo(SortedEntryMergeTests.summary(inMemory)));
+            assertThat(spillDir.list().length, equalTo(0));
+        }
+    }
+
+    @Test
+    public void testRunsDeletedOnFailure() {
+        ReduceSpill.SpillThreshold = 150;
+        List<Facet> shards = SortedEntryMergeTests.shards(3, 4, false, 0);
+        // a sketch of another precision fails the merge of the last shard, after runs were spilled
+        InternalFullColumnsFacet last = (InternalFullColumnsFacet) shards.get(3);
+        for (InternalFullColumnsFacet.FullEntry entry : last.entries()) {
+            entry.distinct = new HyperLogLog(10);
+            entry.distinct.offer(1);
+        }
+        try {
+            SortedEntryMergeTests.reduce(shards);
+            assertThat("the reduce should have failed", false);
+        } catch (ElasticSearchIllegalArgumentException e) {
+            // expected
+        }
+        assertThat(spillDir.list().length, equalTo(0));
+    }
+}
@@ -0,0 +1,163 @@
+package org.elasticsearch.search.facet.columns;
+
+import org.elasticsearch.search.facet.Facet;
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+
+/**
+ */
+public class SortedEntryMergeTests {
+
+    static final byte[] KEY_TYPES = {KeyColumn.STRING, KeyColumn.LONG};
+
+    @Test
+    public void testMerge() {
+        List<Iterator<InternalFullColumnsFacet.FullEntry>> sources = new ArrayList<Iterator<InternalFullColumnsFacet.FullEntry>>();
+        sources.add(Arrays.asList(entry("a", 1, 1), entry("a", 2, 2), entry("b", -5, 3)).iterator());
+        sources.add(Collections.<InternalFullColumnsFacet.FullEntry>emptyList().iterator());
+        sources.add(Arrays.asList(entry("a", 2, 10), entry("b", -5, 20), entry(null, 0, 30)).iterator());
+        SortedEntryMerge merge = new SortedEntryMerge(sources);
+
+        List<String> merged = new ArrayList<String>();
+        while (merge.hasNext()) {
+            InternalFullColumnsFacet.FullEntry entry = merge.next();
+            merged.add(entry.keys[0] + ":" + entry.values[1] + "=" + entry.count());
+        }
+        // every group once, in key order, missing strings last
+        assertThat(merged, equalTo(Arrays.asList("a:1=1", "a:2=12", "b:-5=23", "null:0=30")));
+    }
+
+    @Test
+    public void testSortedReduceMatchesHashedReduce() {
+        for (long seed = 0; seed < 5; seed++) {
+            InternalFullColumnsFacet hashed = reduce(shards(seed, 4, false, 0));
+            InternalFullColumnsFacet sorted = reduce(shards(seed, 4, true, 0));
+            assertThat(sorted.total(), equalTo(hashed.total()));
+            assertThat(summary(sorted), equalTo(summary(hashed)));
+        }
+    }
+
+    @Test
+    public void testSortedReduceStopsAtPage() {
+        // ordered by the key columns ascending, the merge stops once the page is complete
+        ColumnsFacet.ComparatorType keyOrder = new ColumnsFacet.ComparatorType((byte) -1, "keys",
+                new ColumnsFacet.MultiFieldsComparator(new Integer[]{0, 1}, new boolean[]{false, false}, KEY_TYPES));
+        InternalFullColumnsFacet hashed = reduce(shards(11, 3, false, 10, keyOrder));
+        InternalFullColumnsFacet sorted = reduce(shards(11, 3, true, 10, keyOrder));
+        assertThat(sorted.total(), equalTo(-1L));
+        assertThat(sorted.entries().size(), equalTo(10));
+        List<String> hashedKeys = new ArrayList<String>();
+        List<String> sortedKeys = new ArrayList<String>();
+        for (int i = 0; i < 10; i++) {
+            hashedKeys.add(hashed.entries().get(i).key() + "=" + hashed.entries().get(i).count());
+            sortedKeys.add(sorted.entries().get(i).key() + "=" + sorted.entries().get(i).count());
+        }
+        assertThat(sortedKeys, equalTo(hashedKeys));
+    }
+
+    @Test
+    public void testDoubleKeyOrder() {
+        byte[] keyTypes = {KeyColumn.DOUBLE};
+        double[] keys = {Double.NaN, 1.5, -0.0, Double.NEGATIVE_INFINITY, 0.0, Double.NaN, -3, Double.POSITIVE_INFINITY, 0.0};
+        List<InternalFullColumnsFacet.FullEntry> entries = new ArrayList<InternalFullColumnsFacet.FullEntry>();
+        for (double key : keys) {
+            entries.add(new InternalFullColumnsFacet.FullEntry(new String[]{null},
+                    new long[]{Double.doubleToLongBits(key)}, keyTypes, 1, 1, 1, 1, 1));
+        }
+        ColumnsFacet.MultiFieldsComparator comparator = new ColumnsFacet.MultiFieldsComparator(new Integer[]{0},
+                new boolean[]{false}, keyTypes);
+        List<InternalFullColumnsFacet.FullEntry> sorted = new ArrayList<InternalFullColumnsFacet.FullEntry>(entries);
+        Collections.sort(sorted, comparator);
+        List<InternalFullColumnsFacet.FullEntry> keyOrder = new ArrayList<InternalFullColumnsFacet.FullEntry>(entries);
+        Collections.sort(keyOrder, EntryKeyOrder.INSTANCE);
+        List<String> sortedKeys = new ArrayList<String>();
+        for (int i = 0; i < sorted.size(); i++) {
+            // the requested ascending key order is the key order of the sorted merge
+            assertThat(comparator.compare(sorted.get(i), keyOrder.get(i)), equalTo(0));
+            assertThat(EntryKeyOrder.INSTANCE.compare(sorted.get(i), keyOrder.get(i)), equalTo(0));
+            sortedKeys.add(Double.toString(Double.longBitsToDouble(sorted.get(i).values[0])));
+        }
+        assertThat(sortedKeys, equalTo(Arrays.asList("-Infinity", "-3.0", "-0.0", "0.0", "0.0", "1.5", "Infinity", "NaN", "NaN")));
+        // a NaN key is equal to itself, -0.0 and 0.0 are different groups
+        assertThat(comparator.compare(entries.get(0), entries.get(5)), equalTo(0));
+        assertThat(comparator.compare(entries.get(2), entries.get(4)), equalTo(-1));
+    }
+
+    static InternalFullColumnsFacet reduce(List<Facet> shards) {
+        return (InternalFullColumnsFacet) ((InternalFullColumnsFacet) shards.get(0)).reduce("f", shards);
+    }
+
+    static List<Facet> shards(long seed, int count, boolean sortedByKey, int size) {
+        return shards(seed, count, sortedByKey, size, ColumnsFacet.ComparatorType.COUNT);
+    }
+
+    /**
+     * Shard results of random subsets of the same groups, with count error bounds, distinct sketches and
+     * percentiles digests: the same seed builds the same shard results.
+     */
+    static List<Facet> shards(long seed, int count, boolean sortedByKey, int size, ColumnsFacet.ComparatorType comparatorType) {
+        Random random = new Random(seed);
+        List<Facet> shards = new ArrayList<Facet>();
+        for (int shard = 0; shard < count; shard++) {
+            List<InternalFullColumnsFacet.FullEntry> entries = new ArrayList<InternalFullColumnsFacet.FullEntry>();
+            for (int group = 0; group < 300; group++) {
+                if (random.nextInt(3) == 0) {
+                    continue;
+                }
+                InternalFullColumnsFacet.FullEntry entry = entry(group % 30 == 29 ? null : "g" + group % 30,
+                        group / 30 * 7 - 20, 1 + random.nextInt(50));
+                entry.countError = random.nextInt(3);
+                entry.distinct = new HyperLogLog(8);
+                entry.distinct.offer((group * 31L + shard) * 0x9E3779B97F4A7C15L);
+                entry.digest = new TDigest(20);
+                entry.digest.add(entry.count);
+                entries.add(entry);
+            }
+            if (sortedByKey) {
+                Collections.sort(entries, EntryKeyOrder.INSTANCE);
+            } else {
+                Collections.shuffle(entries, new Random(seed + shard));
+            }
+            InternalFullColumnsFacet facet = new InternalFullColumnsFacet("f", comparatorType, KEY_TYPES, entries,
+                    size, 0, -1);
+            facet.distinct = true;
+            facet.digests = true;
+            facet.sortedByKey = sortedByKey;
+            facet.countErrorBound = random.nextInt(4);
+            shards.add(facet);
+        }
+        return shards;
+    }
+
+    static InternalFullColumnsFacet.FullEntry entry(String s, long l, long count) {
+        InternalFullColumnsFacet.FullEntry entry = new InternalFullColumnsFacet.FullEntry(new String[]{s, null},
+                new long[]{0, l}, KEY_TYPES, count, count % 5, count, count, 2.0 * count);
+        entry.sumOfSquares = 4.0 * count;
+        return entry;
+    }
+
+    /**
+     * The merged figures of every entry by key. Digests do not merge the same in every order, only their
+     * counts are compared.
+     */
+    static Map<String, String> summary(InternalFullColumnsFacet facet) {
+        Map<String, String> summary = new TreeMap<String, String>();
+        for (InternalFullColumnsFacet.FullEntry entry : facet.entries()) {
+            summary.put(entry.key(), entry.count() + " " + entry.countError() + " " + entry.totalCount() + " "
+                    + entry.total() + " " + entry.sumOfSquares() + " " + entry.min() + " " + entry.max() + " "
+                    + entry.distinctCount() + " " + entry.digest.count());
+        }
+        return summary;
+    }
+}
@@ -0,0 +1,180 @@
+package org.elasticsearch.search.facet.columns;
+
+import org.elasticsearch.ElasticSearchIllegalArgumentException;
+import org.elasticsearch.common.io.stream.BytesStreamInput;
+import org.elasticsearch.common.io.stream.BytesStreamOutput;
+import org.testng.annotations.Test;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.closeTo;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.lessThanOrEqualTo;
+
+/**
+ */
+public class TDigestTests {
+
+    @Test
+    public void testCompression() throws IOException {
+        Random random = new Random(42);
+        int previous = 0;
+        for (int compression : new int[]{10, 100, 500}) {
+            TDigest digest = new TDigest(compression);
+            for (int i = 0; i < 100000; i++) {
+                digest.add(random.nextGaussian());
+            }
+            int centroids = centroids(digest);
+            assertThat(centroids, lessThanOrEqualTo(compression));
+            // a higher compression keeps more centroids
+            assertThat(centroids, greaterThan(previous));
+            previous = centroids;
+            assertThat(digest.count(), equalTo(100000L));
+        }
+    }
+
+    @Test
+    public void testQuantiles() {
+        Random random = new Random(7);
+        int n = 100000;
+        double[] values = new double[n];
+        TDigest digest = new TDigest(100);
+        for (int i = 0; i < n; i++) {
+            values[i] = random.nextDouble() * 1000;
+            digest.add(values[i]);
+        }
+        Arrays.sort(values);
+        for (double q : new double[]{0.001, 0.01, 0.1, 0.25, 0.5, 0.75, 0.9, 0.99, 0.999}) {
+            // the error in quantile space is smallest near the tails
+            double tolerance = 0.02 * Math.sqrt(q * (1 - q)) + 0.0005;
+            assertThat("quantile " + q, rankOf(values, digest.quantile(q)) / (double) n, closeTo(q, tolerance));
+        }
+    }
+
+    @Test
+    public void testExtremes() {
+        TDigest digest = new TDigest(100);
+        for (int i = 1; i <= 10000; i++) {
+            digest.add(i);
+        }
+        assertThat(digest.quantile(0), equalTo(1.0));
+        assertThat(digest.quantile(1), equalTo(10000.0));
+        assertThat(digest.quantile(-0.5), equalTo(1.0));
+        assertThat(digest.quantile(1.5), equalTo(10000.0));
+        assertThat(digest.quantile(0.00001), closeTo(1.0, 1));
+        assertThat(digest.quantile(0.99999), closeTo(10000.0, 1));
+    }
+
+    @Test
+    public void testEmpty() throws IOException {
+        TDigest digest = new TDigest(100);
+        assertThat(Double.isNaN(digest.quantile(0)), equalTo(true));
+        assertThat(Double.isNaN(digest.quantile(0.5)), equalTo(true));
+        assertThat(Double.isNaN(digest.quantile(1)), equalTo(true));
+        assertThat(digest.count(), equalTo(0L));
+
+        TDigest read = writeRead(digest);
+        assertThat(Double.isNaN(read.quantile(0.5)), equalTo(true));
+
+        // merging an empty digest changes nothing
+        TDigest other = new TDigest(100);
+        other.add(3);
+        other.merge(digest);
+        assertThat(other.count(), equalTo(1L));
+        assertThat(other.quantile(0.5), equalTo(3.0));
+        digest.merge(other);
+        assertThat(digest.quantile(0.5), equalTo(3.0));
+    }
+
+    @Test
+    public void testOneCentroid() throws IOException {
+        TDigest digest = new TDigest(100);
+        digest.add(12.5);
+        for (double q : new double[]{0, 0.01, 0.5, 0.99, 1}) {
+            assertThat(digest.quantile(q), equalTo(12.5));
+        }
+        assertThat(centroids(digest), equalTo(1));
+
+        // one centroid of several values, read back from the stream
+        TDigest same = new TDigest(10);
+        for (int i = 0; i < 1000; i++) {
+            same.add(-4);
+        }
+        TDigest read = writeRead(same);
+        assertThat(read.count(), equalTo(1000L));
+        for (double q : new double[]{0, 0.5, 1}) {
+            assertThat(read.quantile(q), equalTo(-4.0));
+        }
+    }
+
+    @Test
+    public void testMerge() throws IOException {
+        Random random = new Random(3);
+        int n = 50000;
+        double[] values = new double[n];
+        TDigest all = new TDigest(100);
+        TDigest[] parts = new TDigest[5];
+        for (int p = 0; p < parts.length; p++) {
+            parts[p] = new TDigest(100);
+        }
+        for (int i = 0; i < n; i++) {
+            // every part a different range, as from shards holding different data
+            int p = i % parts.length;
+            values[i] = random.nextDouble() * 100 + p * 20;
+            parts[p].add(values[i]);
+            all.add(values[i]);
+        }
+        Arrays.sort(values);
+
+        TDigest merged = writeRead(parts[0]);
+        for (int p = 1; p < parts.length; p++) {
+            merged.merge(writeRead(parts[p]));
+        }
+        assertThat(merged.count(), equalTo((long) n));
+        assertThat(merged.quantile(0), equalTo(values[0]));
+        assertThat(merged.quantile(1), equalTo(values[n - 1]));
+        assertThat(centroids(merged), lessThanOrEqualTo(100));
+        for (double q : new double[]{0.01, 0.1, 0.5, 0.9, 0.99}) {
+            assertThat("quantile " + q, rankOf(values, merged.quantile(q)) / (double) n, closeTo(q, 0.01));
+            assertThat("quantile " + q, merged.quantile(q), closeTo(all.quantile(q), 1));
+        }
+
+        // a copy is merged into without changing the digest copied
+        TDigest copy = parts[0].copy();
+        copy.merge(parts[1]);
+        assertThat(parts[0].count(), equalTo((long) n / parts.length));
+        assertThat(copy.count(), equalTo(2L * n / parts.length));
+    }
+
+    @Test(expectedExceptions = ElasticSearchIllegalArgumentException.class)
+    public void testMergeCompressionMismatch() {
+        new TDigest(100).merge(new TDigest(200));
+    }
+
+    private static int rankOf(double[] sorted, double value) {
+        int index = Arrays.binarySearch(sorted, value);
+        return index >= 0 ? index : -index - 1;
+    }
+
+    private static int centroids(TDigest digest) throws IOException {
+        BytesStreamOutput out = new BytesStreamOutput();
+        TDigest.writeTo(out, digest);
+        BytesStreamInput in = new BytesStreamInput(out.bytes().toBytes(), false);
+        // compression, count, min and max precede the centroids
+        in.readVInt();
+        in.readVLong();
+        in.readDouble();
+        in.readDouble();
+        return in.readVInt();
+    }
+
+    private static TDigest writeRead(TDigest digest) throws IOException {
+        BytesStreamOutput out = new BytesStreamOutput();
+        TDigest.writeTo(out, digest);
+        return TDigest.readFrom(new BytesStreamInput(out.bytes().toBytes(), false));
+    }
+}